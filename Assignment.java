@@ -1,28 +1,91 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Array;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.DateTimeException;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.InputMismatchException;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
 /**
  * A class representing the rows of STAFF table and any operations that can be
  * performed on it.
@@ -33,19 +96,29 @@ class Staff
 	 * @param 1
 	 *            StaffID: INTEGER
 	 */
-	private static PreparedStatement select_stmnt;
+	private static final String select_sql = "SELECT * FROM STAFF WHERE StaffID=?";
 
 	/**
-	 * Select a row from the STAFF table.
+	 * Check a StaffID against the {@link StaffDirectory}, selecting the row
+	 * from the STAFF table only if the directory cannot be loaded.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param staffid
 	 *            The id of the row to select.
 	 * @return Whether or not the staff with the given id exists.
 	 */
-	public static boolean exists(int staffid)
+	public static boolean exists(Connection conn, int staffid)
+	{
+		Boolean known = StaffDirectory.contains(conn, staffid);
+		return known != null ? known : select(conn, staffid);
+	}
+
+	private static boolean select(Connection conn, int staffid)
 	{
 		try
 		{
+			PreparedStatement select_stmnt = StatementCache.prepare(conn, select_sql);
 			select_stmnt.setInt(1, staffid);
 			ResultSet r = select_stmnt.executeQuery();
 			return r.next();
@@ -56,11 +129,112 @@ class Staff
 			return false;
 		}
 	}
+}
+
+/**
+ * The StaffIDs of the STAFF table as a bitset, so that checking a StaffID
+ * needs no query. The application never changes STAFF; the set is loaded the
+ * first time it is needed and again once it is older than staff.ttl seconds
+ * (default 60), or after {@link #invalidate()} when the staff was changed,
+ * e.g. by the {@link DataGenerator}. A member of staff added by other means is
+ * therefore only known after at most staff.ttl seconds.
+ * <p>
+ * The set takes one bit per StaffID up to the largest one, so if a StaffID is
+ * negative or above staff.maxid (default 1048576) no set is kept and every
+ * StaffID is looked up in the database until the next load.
+ */
+class StaffDirectory
+{
+	/** Nanoseconds after which the set is loaded again. */
+	private static final long ttl = TimeUnit.SECONDS.toNanos(Long.getLong("staff.ttl", 60));
+
+	/** The largest StaffID the set holds. */
+	private static final int maxid = Integer.getInteger("staff.maxid", 1 << 20);
+
+	private static final String select_sql = "SELECT StaffID FROM STAFF";
+
+	/**
+	 * The set of ids, or null if they do not fit, and when it was loaded.
+	 * Never modified once shared.
+	 */
+	private static final class Snapshot
+	{
+		final BitSet ids;
+		final long loaded;
+
+		Snapshot(BitSet ids, long loaded)
+		{
+			this.ids = ids;
+			this.loaded = loaded;
+		}
+	}
+
+	private static volatile Snapshot current;
+
+	/**
+	 * @param conn
+	 *            Used to load the set if it is missing or out of date.
+	 * @return Whether the StaffID exists, or null if the set could not be
+	 *         loaded.
+	 */
+	public static Boolean contains(Connection conn, int staffid)
+	{
+		Snapshot s = current;
+		if (s == null || System.nanoTime() - s.loaded > ttl)
+		{
+			s = reload(conn, s);
+		}
+		if (s == null || s.ids == null)
+		{
+			return null;
+		}
+		return staffid >= 0 && s.ids.get(staffid);
+	}
+
+	/**
+	 * Forget the set so that it is loaded again when next needed.
+	 */
+	public static void invalidate()
+	{
+		current = null;
+	}
 
-	public static void prepareStatements(Connection conn) throws SQLException
+	/**
+	 * Load the set unless another thread has replaced the stale one meanwhile.
+	 * 
+	 * @return The current set, or null if it could not be loaded.
+	 */
+	private static synchronized Snapshot reload(Connection conn, Snapshot stale)
 	{
-		String sql = "SELECT * FROM STAFF WHERE StaffID=?";
-		select_stmnt = conn.prepareStatement(sql);
+		Snapshot s = current;
+		if (s != null && s != stale)
+		{
+			return s;
+		}
+		BitSet ids = new BitSet();
+		try (Statement stmnt = conn.createStatement(); ResultSet r = stmnt.executeQuery(select_sql))
+		{
+			while (r.next())
+			{
+				int id = r.getInt(1);
+				if (id < 0 || id > maxid)
+				{
+					System.err.println(
+							"[WARN] StaffID " + id + " does not fit in the set, checking each one in the database.");
+					ids = null;
+					break;
+				}
+				ids.set(id);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			System.err.println("[WARN] Could not load the StaffIDs, checking each one in the database.");
+			return null;
+		}
+		current = s = new Snapshot(ids, System.nanoTime());
+		return s;
 	}
 }
 
@@ -75,35 +249,37 @@ class StaffOrders
 	 * @param 2
 	 *            OrderID: INTEGER
 	 */
-	private static PreparedStatement select_stmnt;
+	private static final String select_sql = "SELECT * FROM STAFF_ORDERS WHERE StaffID=? AND OrderID=?";
 	/**
 	 * @param 1
 	 *            StaffID: INTEGER
 	 * @param 2
 	 *            OrderID: INTEGER
 	 */
-	private static PreparedStatement insert_stmnt;
+	static final String insert_sql = "INSERT INTO STAFF_ORDERS VALUES (?, ?)";
 
-	private static boolean areLinked(int staffid, int ordid) throws SQLException
+	private static boolean areLinked(Connection conn, int staffid, int ordid) throws SQLException
 	{
+		PreparedStatement select_stmnt = StatementCache.prepare(conn, select_sql);
 		select_stmnt.setInt(1, staffid);
 		select_stmnt.setInt(2, ordid);
 		ResultSet r = select_stmnt.executeQuery();
 		return r.next();
 	}
 
-	public static void link(int staffid, int ordid)
+	public static void link(Connection conn, int staffid, int ordid)
 	{
 		try
 		{
-			if (areLinked(staffid, ordid))
+			if (areLinked(conn, staffid, ordid))
 			{
 				System.err.println("Order " + ordid + " is already linked with staff " + staffid);
 				return;
 			}
-			insert_stmnt.setInt(1, staffid);
-			insert_stmnt.setInt(2, ordid);
-			insert_stmnt.executeUpdate();
+			if (linkNew(conn, staffid, ordid))
+			{
+				SalesSummary.linkAdded(conn, staffid, ordid);
+			}
 		}
 		catch (SQLException e)
 		{
@@ -111,13 +287,20 @@ class StaffOrders
 		}
 	}
 
-	public static void prepareStatements(Connection conn) throws SQLException
+	/**
+	 * Link an order that was just inserted, and so cannot be linked yet,
+	 * without checking first; the primary key rejects a duplicate. The sales
+	 * summaries are left to the caller, which usually adds the whole order
+	 * with {@link SalesSummary#orderAdded}.
+	 * 
+	 * @return Whether the link was inserted.
+	 */
+	public static boolean linkNew(Connection conn, int staffid, int ordid) throws SQLException
 	{
-		String sql = "SELECT * FROM STAFF_ORDERS WHERE StaffID=? AND OrderID=?";
-		StaffOrders.select_stmnt = conn.prepareStatement(sql);
-
-		sql = "INSERT INTO STAFF_ORDERS VALUES (?, ?)";
-		StaffOrders.insert_stmnt = conn.prepareStatement(sql);
+		PreparedStatement insert_stmnt = StatementCache.prepare(conn, insert_sql);
+		insert_stmnt.setInt(1, staffid);
+		insert_stmnt.setInt(2, ordid);
+		return insert_stmnt.executeUpdate() > 0;
 	}
 }
 
@@ -137,14 +320,14 @@ class OrderItems
 	 * @param 3
 	 *            ProductQuantity: INTEGER
 	 */
-	private static PreparedStatement insert_stmnt;
+	static final String insert_sql = "INSERT INTO ORDER_PRODUCTS VALUES (?, ?, ?)";
 	/**
 	 * Select all products from a particular order
 	 * 
 	 * @param 1
 	 *            OrderID: INTEGER
 	 */
-	private static PreparedStatement select_of_order_stmnt;
+	private static final String select_of_order_sql = "SELECT * FROM ORDER_PRODUCTS WHERE OrderID = ?";
 	/**
 	 * Delete one row of this table
 	 * 
@@ -153,24 +336,27 @@ class OrderItems
 	 * @param 2
 	 *            ProductID: INTEGER
 	 */
-	private static PreparedStatement delete_stmnt;
+	private static final String delete_sql = "DELETE FROM ORDER_PRODUCTS WHERE OrderID = ? AND ProductID = ?";
 
 	/**
 	 * Select all ProductIDs and ProductQuanitites for a particular order
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param ord
 	 *            The order whose products will be selected
 	 * @return A mapping of ProductID->ProductQuantity of the particular order;
 	 */
-	public static Map<Integer, Integer> ofOrder(Order ord)
+	public static IntIntMap ofOrder(Connection conn, Order ord)
 	{
 		if (ord == null)
 		{
 			return null;
 		}
-		Map<Integer, Integer> tbr = new HashMap<>();
+		IntIntMap tbr = new IntIntMap();
 		try
 		{
+			PreparedStatement select_of_order_stmnt = StatementCache.prepare(conn, select_of_order_sql);
 			select_of_order_stmnt.setInt(1, ord.id);
 			ResultSet r = select_of_order_stmnt.executeQuery();
 			while (r.next())
@@ -186,27 +372,17 @@ class OrderItems
 		return tbr;
 	}
 
-	public static void prepareStatements(Connection conn) throws SQLException
-	{
-		String sql = "INSERT INTO ORDER_PRODUCTS VALUES (?, ?, ?)";
-		insert_stmnt = conn.prepareStatement(sql);
-
-		sql = "SELECT * FROM ORDER_PRODUCTS WHERE OrderID = ?";
-		select_of_order_stmnt = conn.prepareStatement(sql);
-
-		sql = "DELETE FROM ORDER_PRODUCTS WHERE OrderID = ? AND ProductID = ?";
-		delete_stmnt = conn.prepareStatement(sql);
-	}
-
 	/**
 	 * Delete a row from the ORDER_PRODUCTS table.
 	 * 
 	 * @return True if the delete operation deleted one row
 	 */
-	public static boolean delete(int ordid, int prodid)
+	public static boolean delete(Connection conn, int ordid, int prodid)
 	{
 		try
 		{
+			SalesSummary.lineRemoved(conn, ordid, prodid);
+			PreparedStatement delete_stmnt = StatementCache.prepare(conn, delete_sql);
 			delete_stmnt.setInt(1, ordid);
 			delete_stmnt.setInt(2, prodid);
 			return delete_stmnt.executeUpdate() > 0;
@@ -222,6 +398,8 @@ class OrderItems
 	 * Add a new product to an order. Inserts a new row. Does not make any
 	 * changes to other tables.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param ordid
 	 *            Order to add product to.
 	 * @param prodid
@@ -230,14 +408,20 @@ class OrderItems
 	 *            The quantity of the product to be added.
 	 * @return True if successfuly inserted one row.
 	 */
-	public static boolean insert(int ordid, int prodid, int amount)
+	public static boolean insert(Connection conn, int ordid, int prodid, int amount)
 	{
 		try
 		{
+			PreparedStatement insert_stmnt = StatementCache.prepare(conn, insert_sql);
 			insert_stmnt.setInt(1, ordid);
 			insert_stmnt.setInt(2, prodid);
 			insert_stmnt.setInt(3, amount);
-			return insert_stmnt.executeUpdate() > 0;
+			if (insert_stmnt.executeUpdate() == 0)
+			{
+				return false;
+			}
+			SalesSummary.lineAdded(conn, ordid, prodid);
+			return true;
 		}
 		catch (SQLException e)
 		{
@@ -249,42 +433,93 @@ class OrderItems
 
 /**
  * Class to handle conversions of {@link String} to and from
- * {@link java.sql.Date}.
+ * {@link java.sql.Date}. Strings are checked and parsed in one pass over their
+ * characters, and the most recently converted dates are kept in two small
+ * caches so that converting a date seen before allocates nothing. The caches
+ * hold immutable entries and may be read and written by any thread, so every
+ * method is thread-safe.
+ * <p>
+ * The {@link Date}s returned may be shared between callers and must not be
+ * modified.
  */
 class OracleDateFormat implements VarConstraints<String>
 {
-	private static final DateTimeFormatter fromformat = new DateTimeFormatterBuilder().parseCaseInsensitive()
-			.appendPattern("d-MMM-yy").toFormatter();
-	private static final DateFormat toformat = new SimpleDateFormat("d-MMM-yy");
+	private static final String[] months = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+			"Nov", "Dec" };
+	/** The number of entries of each cache, a power of two. */
+	private static final int cache_size = 1024;
+	/** Dates by the key returned by {@link #parse(String)}. */
+	private static final Entry[] parsed = new Entry[cache_size];
+	/** Strings by the time of the date. */
+	private static final Entry[] formatted = new Entry[cache_size];
+
+	/**
+	 * A cached conversion. The fields are final so that an entry written by one
+	 * thread is seen whole by the others.
+	 */
+	private static final class Entry
+	{
+		final long key;
+		final Date date;
+		final String text;
+
+		Entry(long key, Date date, String text)
+		{
+			this.key = key;
+			this.date = date;
+			this.text = text;
+		}
+	}
+
+	private static int slot(long key)
+	{
+		return (int) ((key ^ key >>> 32) * 0x9E3779B97F4A7C15L >>> 64 - 10) & cache_size - 1;
+	}
 
 	public static Date stringToDate(String s)
 	{
-		if (s == null || !isValid(s))
+		final int key = s == null ? -1 : parse(s);
+		if (key < 0)
 		{
 			return null;
 		}
-		LocalDate ldate = LocalDate.parse(s, fromformat);
-		return Date.valueOf(ldate);
+		final int slot = slot(key);
+		Entry e = parsed[slot];
+		if (e == null || e.key != key)
+		{
+			final int day = key % 32, month = key / 32 % 12, year = 2000 + key / 32 / 12;
+			e = new Entry(key, Date.valueOf(LocalDate.of(year, month + 1, day)), null);
+			parsed[slot] = e;
+		}
+		return e.date;
 	}
 
 	public static String dateToString(Date d)
 	{
-		return d == null ? null : toformat.format(d);
+		if (d == null)
+		{
+			return null;
+		}
+		final long key = d.getTime();
+		final int slot = slot(key);
+		Entry e = formatted[slot];
+		if (e == null || e.key != key)
+		{
+			LocalDate ldate = d.toLocalDate();
+			int yy = Math.floorMod(ldate.getYear(), 100);
+			e = new Entry(key, null, ldate.getDayOfMonth() + "-" + months[ldate.getMonthValue() - 1]
+					+ (yy < 10 ? "-0" : "-") + yy);
+			formatted[slot] = e;
+		}
+		return e.text;
 	}
 
-	private static final String oracle_date_regex = "^([0-9]{1,2})-([a-zA-Z]{3,3})-[0-9]{2,2}";
-	private static final Pattern test_pattern = Pattern.compile(oracle_date_regex);
-	private static final IntRangeCheck day_check = new IntRangeCheck(1, 32);
-	private static final StringOptionsNoCase month_check = new StringOptionsNoCase("jan", "feb", "mar", "arp", "may",
-			"jun", "jul", "aug", "sep", "oct", "nov", "dec");
-
 	/**
 	 * Check for validity of a string. For a string to be valid it must: <br/>
-	 * a) Conform to the regular expression
-	 * <code>[0-9]{1,2}-[a-zA-Z]{3,3}-[0-9]{2,2}</code> (the "default oracle
-	 * DD-MON-YY format") <br/>
-	 * b) 0 < DD < 32 <br/>
-	 * c) MON is a valid month string (case insensitive).
+	 * a) Be of the form DD-MON-YY (the "default oracle DD-MON-YY format"),
+	 * where DD is one or two digits, MON three letters and YY two digits <br/>
+	 * b) MON is a valid month string (case insensitive) <br/>
+	 * c) DD is a day of that month in the year 20YY.
 	 * 
 	 * @param s
 	 *            The string to check if it is a valid date string.
@@ -292,14 +527,77 @@ class OracleDateFormat implements VarConstraints<String>
 	 */
 	public static boolean isValid(String s)
 	{
-		Matcher m = test_pattern.matcher(s);
-		if (!m.matches())
+		return s != null && parse(s) >= 0;
+	}
+
+	/**
+	 * Check and parse a date string in one pass.
+	 * 
+	 * @return (YY * 12 + month) * 32 + DD, with months counted from 0, or -1 if
+	 *         the string is not valid (see {@link #isValid(String)}).
+	 */
+	private static int parse(String s)
+	{
+		final int n = s.length();
+		int i = 0, day = 0;
+		while (i < n && i < 2 && s.charAt(i) >= '0' && s.charAt(i) <= '9')
 		{
-			return false;
+			day = day * 10 + s.charAt(i++) - '0';
+		}
+		// What is left must be exactly "-MON-YY".
+		if (i == 0 || n - i != 7 || s.charAt(i) != '-' || s.charAt(i + 4) != '-')
+		{
+			return -1;
+		}
+		final int month = month(s.charAt(i + 1), s.charAt(i + 2), s.charAt(i + 3));
+		final char y1 = s.charAt(i + 5), y2 = s.charAt(i + 6);
+		if (month < 0 || y1 < '0' || y1 > '9' || y2 < '0' || y2 > '9')
+		{
+			return -1;
+		}
+		final int yy = (y1 - '0') * 10 + y2 - '0';
+		if (day < 1 || day > lengthOfMonth(month, 2000 + yy))
+		{
+			return -1;
+		}
+		return (yy * 12 + month) * 32 + day;
+	}
+
+	/**
+	 * @return The month of three letters, counted from 0, or -1.
+	 */
+	private static int month(char a, char b, char c)
+	{
+		// Setting bit 5 turns an upper case letter into lower case and any
+		// other ASCII character into one that is not a lower case letter.
+		a |= 0x20;
+		b |= 0x20;
+		c |= 0x20;
+		for (int m = 0; m < months.length; ++m)
+		{
+			String name = months[m];
+			if (a == (name.charAt(0) | 0x20) && b == name.charAt(1) && c == name.charAt(2))
+			{
+				return m;
+			}
+		}
+		return -1;
+	}
+
+	private static int lengthOfMonth(int month, int year)
+	{
+		switch (month)
+		{
+		case 1:
+			return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+		case 3:
+		case 5:
+		case 8:
+		case 10:
+			return 30;
+		default:
+			return 31;
 		}
-		int day = Integer.parseInt(m.group(1));
-		String month = m.group(2);
-		return m.matches() && month_check.verify(month) && day_check.verify(day);
 	}
 
 	/** Implemented statically */
@@ -334,11 +632,13 @@ class Delivery
 	 * @param 7
 	 *            DELIVERYDATE:DATE
 	 */
-	private static PreparedStatement insert_stmnt;
+	static final String insert_sql = "INSERT INTO DELIVERIES VALUES (?, ?, ?, ?, ?, ?, ?)";
 
 	/**
 	 * Insert a new row in the table.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param ord
 	 *            Order to add delivery to
 	 * @param fname
@@ -355,11 +655,12 @@ class Delivery
 	 *            Date of delivery
 	 * @return True if successfully inserted one row.
 	 */
-	public static boolean insert(Order ord, String fname, String lname, String house, String street, String city,
-			String date)
+	public static boolean insert(Connection conn, Order ord, String fname, String lname, String house, String street,
+			String city, String date)
 	{
 		try
 		{
+			PreparedStatement insert_stmnt = StatementCache.prepare(conn, insert_sql);
 			insert_stmnt.setInt(1, ord.id);
 			insert_stmnt.setString(2, fname);
 			insert_stmnt.setString(3, lname);
@@ -376,12 +677,6 @@ class Delivery
 			return false;
 		}
 	}
-
-	public static void prepareStatements(Connection conn) throws SQLException
-	{
-		String sql = "INSERT INTO DELIVERIES VALUES (?, ?, ?, ?, ?, ?, ?)";
-		insert_stmnt = conn.prepareStatement(sql);
-	}
 }
 
 /**
@@ -402,11 +697,13 @@ class Collection
 	 * @param 4
 	 *            CollectionDate: DATE
 	 */
-	private static PreparedStatement insert_stmnt;
+	static final String insert_sql = "INSERT INTO COLLECTIONS VALUES (?, ?, ?, ?)";
 
 	/**
 	 * Make a new record for a new collection.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param ord
 	 *            The order to add collection to.
 	 * @param fname
@@ -417,7 +714,7 @@ class Collection
 	 *            Date of collection.
 	 * @return True if successfully added new row in COLLECTIONS table.
 	 */
-	public static boolean insert(Order ord, String fname, String lname, String date)
+	public static boolean insert(Connection conn, Order ord, String fname, String lname, String date)
 	{
 		if (ord.type != "Collection")
 		{
@@ -425,6 +722,7 @@ class Collection
 		}
 		try
 		{
+			PreparedStatement insert_stmnt = StatementCache.prepare(conn, insert_sql);
 			insert_stmnt.setInt(1, ord.id);
 			insert_stmnt.setString(2, fname);
 			insert_stmnt.setString(3, lname);
@@ -438,12 +736,6 @@ class Collection
 			return false;
 		}
 	}
-
-	public static void prepareStatements(Connection conn) throws SQLException
-	{
-		String sql = "INSERT INTO COLLECTIONS VALUES (?, ?, ?, ?)";
-		insert_stmnt = conn.prepareStatement(sql);
-	}
 }
 
 /**
@@ -462,7 +754,7 @@ class Order
 	 * @param 1
 	 *            OrderID to select
 	 */
-	private static PreparedStatement select_stmnt;
+	private static final String select_sql = "SELECT * FROM ORDERS WHERE OrderID = ?";
 	/**
 	 * Insert a new row in the ORDERS table.
 	 * 
@@ -476,45 +768,61 @@ class Order
 	 * @param 4
 	 *            OrderPlaced: DATE the date that the order was placed on .
 	 */
-	private static PreparedStatement insert_stmnt;
+	static final String insert_sql = "INSERT INTO ORDERS VALUES (?, ?, ?, ?)";
+	/**
+	 * Insert a new row in the ORDERS table whose OrderID is taken from seq_ord
+	 * by the database and returned as a generated key.
+	 * 
+	 * @param 1
+	 *            OrderType: VARCHAR(30)
+	 * @param 2
+	 *            OrderCompleted: INTEGER
+	 * @param 3
+	 *            OrderPlaced: DATE
+	 */
+	private static final String insert_returning_sql = "INSERT INTO ORDERS VALUES (seq_ord.nextval, ?, ?, ?)";
 	/** Get a new OrderID from the SQL SEQUENCE seq_ord */
-	private static PreparedStatement getnewid_stmnt;
+	static final String getnewid_sql = "SELECT seq_ord.nextval FROM DUAL";
 	/**
 	 * Delete one row of the ORDERS table.
 	 * 
 	 * @param 1
 	 *            OrderID: INTEGER the id of the order that will be deleted.
 	 */
-	private static PreparedStatement delete_stmnt;
-
-	public static void prepareStatements(Connection conn) throws SQLException
-	{
-		String sql = "SELECT * FROM ORDERS WHERE OrderID = ?";
-		Order.select_stmnt = conn.prepareStatement(sql);
-
-		sql = "INSERT INTO ORDERS VALUES (?, ?, ?, ?)";
-		Order.insert_stmnt = conn.prepareStatement(sql);
-
-		sql = "SELECT seq_ord.nextval FROM DUAL";
-		Order.getnewid_stmnt = conn.prepareStatement(sql);
+	private static final String delete_sql = "DELETE FROM ORDERS WHERE OrderID=?";
 
-		sql = "DELETE FROM ORDERS WHERE OrderID=?";
-		Order.delete_stmnt = conn.prepareStatement(sql);
-	}
-
-	private static int getNewId()
+	/**
+	 * Insert a new row in the ORDERS table. The OrderID comes from the
+	 * {@link OrderIdAllocator}, or from the INSERT itself when it runs in
+	 * returning mode, so no extra round trip is needed for it.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @return The OrderID of the new row or -1 if no row was inserted.
+	 */
+	static int insertRow(Connection conn, String type, int completed, Date date) throws SQLException
 	{
-		try
+		if (OrderIdAllocator.returning)
 		{
-			ResultSet r = getnewid_stmnt.executeQuery();
-			r.next();
-			return r.getInt(1);
-		}
-		catch (SQLException e)
-		{
-			e.printStackTrace();
-			return -1;
+			PreparedStatement insert_stmnt = StatementCache.prepare(conn, insert_returning_sql, "OrderID");
+			insert_stmnt.setString(1, type);
+			insert_stmnt.setInt(2, completed);
+			insert_stmnt.setDate(3, date);
+			if (insert_stmnt.executeUpdate() == 0)
+			{
+				return -1;
+			}
+			ResultSet keys = insert_stmnt.getGeneratedKeys();
+			keys.next();
+			return keys.getInt(1);
 		}
+		final int newid = OrderIdAllocator.next(conn);
+		PreparedStatement insert_stmnt = StatementCache.prepare(conn, insert_sql);
+		insert_stmnt.setInt(1, newid);
+		insert_stmnt.setString(2, type);
+		insert_stmnt.setInt(3, completed);
+		insert_stmnt.setDate(4, date);
+		return insert_stmnt.executeUpdate() > 0 ? newid : -1;
 	}
 
 	private boolean was_deleted = false;
@@ -522,7 +830,7 @@ class Order
 	public final String type;
 	public final int completed;
 	public final Date date;
-	private Map<Integer, Integer> products;
+	private IntIntMap products;
 
 	private Order(int orderid, String type, int completed, Date date)
 	{
@@ -532,54 +840,56 @@ class Order
 		this.date = date;
 	}
 
-	private void initProducts()
+	private void initProducts(Connection conn)
 	{
-		this.products = OrderItems.ofOrder(this);
+		this.products = OrderItems.ofOrder(conn, this);
 		if (this.products == null)
 		{
-			this.products = new HashMap<>();
+			this.products = new IntIntMap();
 		}
 	}
 
-	public Product addProduct(int prodid, int amount)
+	/**
+	 * Add a product to this order and take the quantity out of its stock. The
+	 * stock is reserved first so nothing is inserted if there is not enough of
+	 * it.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param prodid
+	 *            The product to be added.
+	 * @param amount
+	 *            The quantity of the product to be added.
+	 * @return True if the product was added and its stock decreased.
+	 */
+	public boolean addProduct(Connection conn, int prodid, int amount)
 	{
 		if (was_deleted)
 		{
 			throw new IllegalStateException("Order was deleted.");
 		}
-		if (this.hasProduct(prodid))
+		if (this.hasProduct(conn, prodid))
 		{
 			System.err.println("Attempted to add product " + prodid + " to order " + id + " that already has it.");
-			return null;
-		}
-		Product p = Product.select(prodid);
-		if (p == null)
-		{
-			System.err.println("[ERROR] Failed to selct product " + prodid + " when attempting to add to order " + id);
-			return null;
+			return false;
 		}
-		if (amount > p.getStock())
+		if (!Product.reserve(conn, prodid, amount))
 		{
-			System.err.printf(
-					"[ERROR] Attempted to add quantity %d of product %d to order %d which is greater than product stock %d\n",
-					amount, p.id, this.id, p.getStock());
-			return null;
+			System.err.printf("[ERROR] Not enough stock of product %d to add quantity %d to order %d\n", prodid,
+					amount, this.id);
+			return false;
 		}
-		this.products.put(prodid, amount);
-		if (!OrderItems.insert(this.id, prodid, amount))
+		if (!OrderItems.insert(conn, this.id, prodid, amount))
 		{
 			System.err.println("[ERROR] Failed to add product " + prodid + " to order " + id);
-			return null;
-		}
-		if (!p.updateStock(p.getStock() - amount))
-		{
-			System.err.println("[ERROR] Failed to decrease stock of product " + id + " when adding to order " + id);
-			return null;
+			Product.release(conn, prodid, amount);
+			return false;
 		}
-		return p;
+		this.products.put(prodid, amount);
+		return true;
 	}
 
-	public boolean hasProduct(int prodid)
+	public boolean hasProduct(Connection conn, int prodid)
 	{
 		if (was_deleted)
 		{
@@ -587,7 +897,7 @@ class Order
 		}
 		if (this.products == null)
 		{
-			this.initProducts();
+			this.initProducts(conn);
 		}
 		return this.products.containsKey(prodid);
 	}
@@ -621,14 +931,17 @@ class Order
 	/**
 	 * Select a single row from the ORDERS table.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param orderid
 	 *            The id of the row to be selected (ProductID)
 	 * @return A new instance of Order representing the row that was selected.
 	 */
-	public static Order select(int orderid)
+	public static Order select(Connection conn, int orderid)
 	{
 		try
 		{
+			PreparedStatement select_stmnt = StatementCache.prepare(conn, select_sql);
 			select_stmnt.setInt(1, orderid);
 			ResultSet r = select_stmnt.executeQuery();
 			if (r.next())
@@ -643,24 +956,26 @@ class Order
 		return null;
 	}
 
-	public static Order insertInStoreOrder(String date)
+	public static Order insertInStoreOrder(Connection conn, String date)
 	{
-		return insert("InStore", 1, date);
+		return insert(conn, "InStore", 1, date);
 	}
 
-	public static Order insertCollectionOrder(String date)
+	public static Order insertCollectionOrder(Connection conn, String date)
 	{
-		return insert("Collection", 0, date);
+		return insert(conn, "Collection", 0, date);
 	}
 
-	public static Order insertDeliveryOrder(String date)
+	public static Order insertDeliveryOrder(Connection conn, String date)
 	{
-		return insert("Delivery", 0, date);
+		return insert(conn, "Delivery", 0, date);
 	}
 
 	/**
 	 * Inserts a new row in the ORDERS table.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param type
 	 *            The type of the order to be inserted.
 	 * @param completed
@@ -669,21 +984,16 @@ class Order
 	 *            The date the order was placed on.
 	 * @return An instance representing the order that was inserted.
 	 */
-	public static Order insert(String type, int completed, String date)
+	public static Order insert(Connection conn, String type, int completed, String date)
 	{
 		if (!(type_check.verify(type) && oracle_date_check.verify(date) && completed_check.verify(completed)))
 		{
 			return null;
 		}
-		final int newid = Order.getNewId();
 		try
 		{
-			Order.insert_stmnt.setInt(1, newid);
-			Order.insert_stmnt.setString(2, type);
-			Order.insert_stmnt.setInt(3, completed);
-			Order.insert_stmnt.setDate(4, OracleDateFormat.stringToDate(date));
-			int n = Order.insert_stmnt.executeUpdate();
-			if (n == 0)
+			final int newid = Order.insertRow(conn, type, completed, OracleDateFormat.stringToDate(date));
+			if (newid < 0)
 			{
 				return null;
 			}
@@ -700,9 +1010,11 @@ class Order
 	 * Delete the row corresponding to this instance in the ORDERS table. This
 	 * instance should not be referenced after deletion.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @return True if one row was deleted.
 	 */
-	public boolean delete()
+	public boolean delete(Connection conn)
 	{
 		if (was_deleted)
 		{
@@ -710,7 +1022,9 @@ class Order
 		}
 		try
 		{
-			Order.delete_stmnt.setInt(1, this.id);
+			SalesSummary.orderRemoved(conn, this.id);
+			PreparedStatement delete_stmnt = StatementCache.prepare(conn, delete_sql);
+			delete_stmnt.setInt(1, this.id);
 			int n = delete_stmnt.executeUpdate();
 			if (n > 0)
 			{
@@ -732,15 +1046,19 @@ class Order
 	/**
 	 * Delete a row from the ORDERS table.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @param orderid
 	 *            The id of the order to be deleted.
 	 * @return True if one row was deleted.
 	 */
-	public static boolean delete(int orderid)
+	public static boolean delete(Connection conn, int orderid)
 	{
 		int n = 0;
 		try
 		{
+			SalesSummary.orderRemoved(conn, orderid);
+			PreparedStatement delete_stmnt = StatementCache.prepare(conn, delete_sql);
 			delete_stmnt.setInt(1, orderid);
 			n = delete_stmnt.executeUpdate();
 		}
@@ -756,9 +1074,11 @@ class Order
 	 * then deletes the row of this order. References to this order are cascade
 	 * deleted.
 	 * 
+	 * @param conn
+	 *            An open database connection
 	 * @return True if successful else false
 	 */
-	public boolean cancelOrder()
+	public boolean cancelOrder(Connection conn)
 	{
 		if (was_deleted)
 		{
@@ -766,20 +1086,19 @@ class Order
 		}
 		if (this.products == null)
 		{
-			this.initProducts();
+			this.initProducts(conn);
 		}
-		for (Map.Entry<Integer, Integer> entry : this.products.entrySet())
+		for (int i = this.products.next(-1); i >= 0; i = this.products.next(i))
 		{
-			Product prod = Product.select(entry.getKey());
-			int quantity = entry.getValue();
-			if (!prod.updateStock(prod.getStock() + quantity))
+			int prodid = this.products.keyAt(i);
+			if (!Product.release(conn, prodid, this.products.valueAt(i)))
 			{
 				System.err.println(
-						"[ERROR] Failed to update stock of product " + prod.id + " while canceling order " + id);
+						"[ERROR] Failed to update stock of product " + prodid + " while canceling order " + id);
 				return false;
 			}
 		}
-		return this.delete();
+		return this.delete(conn);
 	}
 }
 
@@ -791,16 +1110,43 @@ class Product
 	 * @param 1
 	 *            ProductID: INTEGER
 	 */
-	private static PreparedStatement select_stmnt;
+	private static final String select_sql = "SELECT * FROM INVENTORY WHERE ProductID=?";
 	/**
 	 * Change the ProductStockAmount of a single product.
 	 * 
 	 * @param 1
+	 *            NewAmount: NUMBER(8,2)
+	 * @param 2
+	 *            ProductID: INTEGER
+	 */
+	private static final String update_sql = "UPDATE INVENTORY SET ProductStockAmount=? WHERE ProductID=?";
+	/**
+	 * Take an amount out of the stock of a product, only if enough is left.
+	 * Updates no rows on a shortfall.
+	 * 
+	 * @param 1
+	 *            Amount: INTEGER
+	 * @param 2
 	 *            ProductID: INTEGER
+	 * @param 3
+	 *            Amount: INTEGER
+	 */
+	//@formatter:off
+	static final String reserve_sql = "UPDATE INVENTORY SET ProductStockAmount = ProductStockAmount - ?"
+			+ " WHERE ProductID = ? AND ProductStockAmount >= ?";
+	//@formatter:on
+	/**
+	 * Put an amount back into the stock of a product.
+	 * 
+	 * @param 1
+	 *            Amount: INTEGER
 	 * @param 2
-	 *            NewAmount: NUMBER(8,2)
+	 *            ProductID: INTEGER
 	 */
-	private static PreparedStatement update_stmnt;
+	//@formatter:off
+	private static final String release_sql = "UPDATE INVENTORY SET ProductStockAmount = ProductStockAmount + ?"
+			+ " WHERE ProductID = ?";
+	//@formatter:on
 	/** ProductID INTEGER */
 	public final int id;
 	/** ProductDesc VARCHAR(30) */
@@ -823,6 +1169,14 @@ class Product
 		return stockamount;
 	}
 
+	/**
+	 * @return A copy of this product with a different stock.
+	 */
+	Product withStock(int stockamount)
+	{
+		return new Product(this.id, this.desc, this.price, stockamount);
+	}
+
 	private static Product fromResultSet(ResultSet r)
 	{
 		try
@@ -845,15 +1199,17 @@ class Product
 	 * null if it doesn't.
 	 * 
 	 * @param conn
+	 *            An open database connection
 	 * @param pid
 	 *            The product id that will search for in the database
 	 * @return A fully instantiated object if it exists in the database or a
 	 *         null value if it does not exist
 	 */
-	public static Product select(int pid)
+	public static Product select(Connection conn, int pid)
 	{
 		try
 		{
+			PreparedStatement select_stmnt = StatementCache.prepare(conn, select_sql);
 			select_stmnt.setInt(1, pid);
 			ResultSet r = select_stmnt.executeQuery();
 			if (r.next())
@@ -868,10 +1224,11 @@ class Product
 		return null;
 	}
 
-	public boolean updateStock(int newamount)
+	public boolean updateStock(Connection conn, int newamount)
 	{
 		try
 		{
+			PreparedStatement update_stmnt = StatementCache.prepare(conn, update_sql);
 			update_stmnt.setInt(1, newamount);
 			update_stmnt.setInt(2, this.id);
 			if (update_stmnt.executeUpdate() == 0)
@@ -880,6 +1237,7 @@ class Product
 				return false;
 			}
 			this.stockamount = newamount;
+			ProductCache.stockSet(conn, this.id, newamount);
 			return true;
 		}
 		catch (SQLException e)
@@ -889,34 +1247,6515 @@ class Product
 		}
 	}
 
-	public static void prepareStatements(Connection conn) throws SQLException
-	{
-		String sql = "SELECT * FROM INVENTORY WHERE ProductID=?";
-		Product.select_stmnt = conn.prepareStatement(sql);
-
-		sql = "UPDATE INVENTORY SET ProductStockAmount=? WHERE ProductID=?";
-		Product.update_stmnt = conn.prepareStatement(sql);
-	}
-}
-
-class StringOptionsNoCase implements VarConstraints<String>
-{
-	private HashSet<String> options = new HashSet<>();
-
-	public StringOptionsNoCase(String... options)
+	/**
+	 * Take an amount out of the stock of a product with a single guarded
+	 * UPDATE. The check and the decrement happen in the same statement so
+	 * concurrent orders cannot oversell.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param pid
+	 *            The product whose stock will be decreased.
+	 * @param amount
+	 *            The quantity to take out of stock.
+	 * @return True if the stock was decreased, false on a shortfall (or if
+	 *         the product does not exist).
+	 */
+	public static boolean reserve(Connection conn, int pid, int amount)
 	{
-		for (String o : options)
+		try
 		{
-			this.options.add(o.toLowerCase());
+			PreparedStatement reserve_stmnt = StatementCache.prepare(conn, reserve_sql);
+			reserve_stmnt.setInt(1, amount);
+			reserve_stmnt.setInt(2, pid);
+			reserve_stmnt.setInt(3, amount);
+			if (reserve_stmnt.executeUpdate() == 0)
+			{
+				return false;
+			}
+			ProductCache.stockChanged(conn, pid, -amount);
+			return true;
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return false;
 		}
 	}
 
-	@Override
-	public boolean verify(String t)
+	/**
+	 * Put an amount back into the stock of a product, e.g. when an order is
+	 * cancelled.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param pid
+	 *            The product whose stock will be increased.
+	 * @param amount
+	 *            The quantity to put back.
+	 * @return True if the stock was increased.
+	 */
+	public static boolean release(Connection conn, int pid, int amount)
 	{
-		return options.contains(t.toLowerCase());
-	}
-
+		try
+		{
+			PreparedStatement release_stmnt = StatementCache.prepare(conn, release_sql);
+			release_stmnt.setInt(1, amount);
+			release_stmnt.setInt(2, pid);
+			if (release_stmnt.executeUpdate() == 0)
+			{
+				System.err.println("[ERROR] Failed to update product (ID:" + pid + ")");
+				return false;
+			}
+			ProductCache.stockChanged(conn, pid, amount);
+			return true;
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
+
+/**
+ * Products of the INVENTORY table kept in memory, keyed by ProductID. Reads go
+ * through to the database on a miss and at most {@link #capacity} products are
+ * kept, evicting the least recently used one. Stock changes made by the
+ * application are written through to the cached product once they are
+ * committed; anything else that changes INVENTORY must call
+ * {@link #invalidate} or {@link #refresh}.
+ * <p>
+ * The cache serves descriptions, prices and stock pre-checks only. Stock is
+ * always decremented by the database ({@link Product#reserve}), so a stale
+ * entry can never cause an oversell.
+ */
+class ProductCache
+{
+	/** The maximum number of products kept in memory. */
+	private static final int capacity = Integer.getInteger("products.cache", 1024);
+
+	private static final Map<Integer, Product> products = new LinkedHashMap<Integer, Product>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Product> eldest)
+		{
+			return size() > capacity;
+		}
+	};
+
+	/**
+	 * Get a product from memory, selecting it from the database if it is not
+	 * cached.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param pid
+	 *            The id of the product.
+	 * @return The product or null if it does not exist.
+	 */
+	public static Product get(Connection conn, int pid)
+	{
+		synchronized (products)
+		{
+			Product p = products.get(pid);
+			if (p != null)
+			{
+				return p;
+			}
+		}
+		return refresh(conn, pid);
+	}
+
+	/**
+	 * Select a product from the database and replace the cached copy.
+	 * 
+	 * @return The product or null if it does not exist.
+	 */
+	public static Product refresh(Connection conn, int pid)
+	{
+		Product p = Product.select(conn, pid);
+		synchronized (products)
+		{
+			if (p == null)
+			{
+				products.remove(pid);
+			}
+			else
+			{
+				products.put(pid, p);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Forget a product so that it is read from the database next time.
+	 */
+	public static void invalidate(int pid)
+	{
+		synchronized (products)
+		{
+			products.remove(pid);
+		}
+	}
+
+	/**
+	 * Forget all products.
+	 */
+	public static void invalidateAll()
+	{
+		synchronized (products)
+		{
+			products.clear();
+		}
+	}
+
+	/**
+	 * Write through a change of stock made on conn. The change is applied if
+	 * conn commits automatically; otherwise the product is forgotten since the
+	 * change may still be rolled back.
+	 * 
+	 * @param delta
+	 *            The amount added to (or, if negative, taken out of) the stock.
+	 */
+	static void stockChanged(Connection conn, int pid, int delta)
+	{
+		synchronized (products)
+		{
+			Product p = products.get(pid);
+			if (p != null && autoCommits(conn))
+			{
+				products.put(pid, p.withStock(p.getStock() + delta));
+			}
+			else
+			{
+				products.remove(pid);
+			}
+		}
+	}
+
+	/**
+	 * Write through the new stock of a product set on conn. Like
+	 * {@link #stockChanged} the product is forgotten instead if conn is in the
+	 * middle of a transaction.
+	 */
+	static void stockSet(Connection conn, int pid, int stock)
+	{
+		if (autoCommits(conn))
+		{
+			stockCommitted(pid, stock);
+		}
+		else
+		{
+			invalidate(pid);
+		}
+	}
+
+	/**
+	 * Write through the stock of a product as it was read back after a
+	 * committed change.
+	 */
+	static void stockCommitted(int pid, int stock)
+	{
+		synchronized (products)
+		{
+			Product p = products.get(pid);
+			if (p != null)
+			{
+				products.put(pid, p.withStock(stock));
+			}
+		}
+	}
+
+	private static boolean autoCommits(Connection conn)
+	{
+		try
+		{
+			return conn.getAutoCommit();
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+}
+
+/**
+ * Places a whole order (the ORDERS row, its ORDER_PRODUCTS lines, the stock
+ * decrements, the COLLECTIONS/DELIVERIES record and the STAFF_ORDERS link) in a
+ * single transaction. Lines and stock updates are sent as JDBC batches so the
+ * number of round trips does not grow with the size of the basket. If any step
+ * fails the whole order is rolled back.
+ * <p>
+ * With -Dorders.procedure=true and the package order_api of placeorder.sql in
+ * the database, the order is instead placed by its procedure place_order in a
+ * single round trip. Without the package, or if it cannot be called, orders
+ * are placed from Java as above.
+ */
+class OrderPlacement
+{
+	/**
+	 * The outcome of a successfully placed order.
+	 */
+	static class PlacedOrder
+	{
+		public final int id;
+		public final int[] productIDs;
+		/** Stock left of each product in productIDs after the order. */
+		public final int[] stocks;
+
+		private PlacedOrder(int id, int[] productIDs, int[] stocks)
+		{
+			this.id = id;
+			this.productIDs = productIDs;
+			this.stocks = stocks;
+		}
+	}
+
+	/**
+	 * The extra row of an order that depends on its type: a COLLECTIONS row
+	 * (fname, lname and due) or a DELIVERIES row (all fields).
+	 */
+	static final class SideRecord
+	{
+		final String type;
+		final String fname, lname, house, street, city;
+		final Date due;
+
+		SideRecord(String type, String fname, String lname, String house, String street, String city, Date due)
+		{
+			this.type = type;
+			this.fname = fname;
+			this.lname = lname;
+			this.house = house;
+			this.street = street;
+			this.city = city;
+			this.due = due;
+		}
+
+		/**
+		 * Set the parameters of {@link Collection#insert_sql} or
+		 * {@link Delivery#insert_sql}, whichever this record is for.
+		 */
+		void bind(PreparedStatement stmnt, int ordid) throws SQLException
+		{
+			stmnt.setInt(1, ordid);
+			stmnt.setString(2, fname);
+			stmnt.setString(3, lname);
+			if (type.equals("Collection"))
+			{
+				stmnt.setDate(4, due);
+				return;
+			}
+			stmnt.setString(4, house);
+			stmnt.setString(5, street);
+			stmnt.setString(6, city);
+			stmnt.setDate(7, due);
+		}
+
+		String sql()
+		{
+			return type.equals("Collection") ? Collection.insert_sql : Delivery.insert_sql;
+		}
+
+		boolean insert(Connection conn, int ordid) throws SQLException
+		{
+			PreparedStatement stmnt = StatementCache.prepare(conn, sql());
+			bind(stmnt, ordid);
+			return stmnt.executeUpdate() > 0;
+		}
+	}
+
+	private static final OracleDateFormat oracle_date_check = new OracleDateFormat();
+	private static final IntRangeCheck completed_check = new IntRangeCheck(0, 2);
+	private static final StringOptions type_check = new StringOptions("InStore", "Collection", "Delivery");
+
+	/** Whether to use order_api.place_order when the database has it. */
+	private static final boolean procedure = Boolean.getBoolean("orders.procedure");
+
+	//@formatter:off
+	private static final String package_sql = "SELECT status FROM user_objects"
+			+ " WHERE object_name = 'ORDER_API' AND object_type = 'PACKAGE BODY'";
+	/**
+	 * @param 1
+	 *            OrderID: INTEGER IN OUT, null to take one from seq_ord
+	 * @param 2
+	 *            OrderType: VARCHAR(30)
+	 * @param 3
+	 *            OrderCompleted: INTEGER
+	 * @param 4
+	 *            OrderPlaced: DATE
+	 * @param 5
+	 *            The lines: ORDER_LINE_LIST of ORDER_LINE(ProductID, Quantity)
+	 * @param 6
+	 *            StaffID: INTEGER, null to leave the order unlinked
+	 * @param 7-12
+	 *            FName, LName, House, Street, City and the collection or
+	 *            delivery DATE of the {@link SideRecord}, nulls for none
+	 * @param 13
+	 *            The stock left of each line: STOCK_LIST OUT
+	 */
+	private static final String call_sql = "{call order_api.place_order(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)}";
+	//@formatter:on
+
+	/** Null until the database has been asked for order_api. */
+	private static volatile Boolean stored = null;
+	/** OracleConnection.createOracleArray, or null without the Oracle driver. */
+	private static final Method create_array = createArrayMethod();
+
+	public static PlacedOrder placeInStoreOrder(Connection conn, int[] productIDs, int[] quantities, String date,
+			int staffid)
+	{
+		return place(conn, "InStore", 1, productIDs, quantities, date, staffid, null);
+	}
+
+	public static PlacedOrder placeCollectionOrder(Connection conn, int[] productIDs, int[] quantities, String date,
+			int staffid, String fname, String lname, String collectionDate)
+	{
+		return place(conn, "Collection", 0, productIDs, quantities, date, staffid, new SideRecord("Collection",
+				fname, lname, null, null, null, OracleDateFormat.stringToDate(collectionDate)));
+	}
+
+	public static PlacedOrder placeDeliveryOrder(Connection conn, int[] productIDs, int[] quantities, String date,
+			int staffid, String fname, String lname, String house, String street, String city, String deliveryDate)
+	{
+		return place(conn, "Delivery", 0, productIDs, quantities, date, staffid, new SideRecord("Delivery", fname,
+				lname, house, street, city, OracleDateFormat.stringToDate(deliveryDate)));
+	}
+
+	/**
+	 * Parse the products of an order written as <code>ProductID:Quantity</code>
+	 * pairs.
+	 * 
+	 * @param separator
+	 *            The character between two pairs.
+	 * @return The product ids and the quantities.
+	 * @throws IllegalArgumentException
+	 *             With the reason if a pair is not two integers, a quantity is
+	 *             not positive or a product is given twice.
+	 */
+	static int[][] parseItems(String s, char separator)
+	{
+		String[] pairs = s.split(Pattern.quote(String.valueOf(separator)));
+		int[] productIDs = new int[pairs.length];
+		int[] quantities = new int[pairs.length];
+		IntIntMap seen = new IntIntMap(pairs.length);
+		for (int i = 0; i < pairs.length; ++i)
+		{
+			String[] pair = pairs[i].split(":");
+			try
+			{
+				if (pair.length != 2)
+				{
+					throw new IllegalArgumentException("invalid products");
+				}
+				productIDs[i] = Integer.parseInt(pair[0].trim());
+				quantities[i] = Integer.parseInt(pair[1].trim());
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("invalid products");
+			}
+			if (quantities[i] <= 0)
+			{
+				throw new IllegalArgumentException("product quantity must be a positive integer");
+			}
+			if (seen.containsKey(productIDs[i]))
+			{
+				throw new IllegalArgumentException("product " + productIDs[i] + " is given twice");
+			}
+			seen.put(productIDs[i], quantities[i]);
+		}
+		return new int[][] { productIDs, quantities };
+	}
+
+	/**
+	 * Place a new order in one transaction. If a {@link SideWriter} is
+	 * running, the side record and the STAFF_ORDERS link are journaled before
+	 * the order commits and written by the SideWriter afterwards.
+	 *
+	 * @param conn
+	 *            An open database connection
+	 * @param type
+	 *            The type of the order.
+	 * @param completed
+	 *            0 for incomplete order, 1 for completed.
+	 * @param productIDs
+	 *            The products of the order, no duplicates.
+	 * @param quantities
+	 *            The quantity of each product in productIDs.
+	 * @param date
+	 *            The date the order was placed on.
+	 * @param staffid
+	 *            The staff that sold the order.
+	 * @param side
+	 *            The record that accompanies the order or null if it has none.
+	 * @return The placed order or null if nothing was placed.
+	 */
+	private static PlacedOrder place(Connection conn, String type, int completed, int[] productIDs, int[] quantities,
+			String date, int staffid, SideRecord side)
+	{
+		if (!(type_check.verify(type) && oracle_date_check.verify(date) && completed_check.verify(completed)))
+		{
+			return null;
+		}
+		if (productIDs.length == 0 || productIDs.length != quantities.length)
+		{
+			System.err.println("[ERROR] An order needs one quantity for each of its products.");
+			return null;
+		}
+		for (int amount : quantities)
+		{
+			if (amount <= 0)
+			{
+				System.err.println("[ERROR] Product quantity must be a positive integer.");
+				return null;
+			}
+		}
+		final SideWriter writer = SideWriter.active();
+		try
+		{
+			// Both batched with one entry per line. An update count of 0 from
+			// the stock batch means a shortfall.
+			PreparedStatement items_stmnt = StatementCache.prepare(conn, OrderItems.insert_sql);
+			PreparedStatement stock_stmnt = StatementCache.prepare(conn, Product.reserve_sql);
+			boolean autocommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			try
+			{
+				for (int attempt = 0;; ++attempt)
+				{
+					try
+					{
+						return commitOrder(conn, writer, items_stmnt, stock_stmnt, type, completed, productIDs,
+								quantities, date, staffid, side);
+					}
+					catch (SQLException e)
+					{
+						conn.rollback();
+						items_stmnt.clearBatch();
+						stock_stmnt.clearBatch();
+						if (!StockLocks.retry(e, attempt))
+						{
+							throw e;
+						}
+					}
+				}
+			}
+			finally
+			{
+				items_stmnt.clearBatch();
+				stock_stmnt.clearBatch();
+				conn.setAutoCommit(autocommit);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Order was not placed, all changes were rolled back.");
+			return null;
+		}
+	}
+
+	/**
+	 * One attempt at placing an order, in the transaction of conn. Rolls back
+	 * and returns null if the order cannot be placed; a deadlock or lock
+	 * timeout is thrown so {@link #place} can try again.
+	 */
+	private static PlacedOrder commitOrder(Connection conn, SideWriter writer, PreparedStatement items_stmnt,
+			PreparedStatement stock_stmnt, String type, int completed, int[] productIDs, int[] quantities,
+			String date, int staffid, SideRecord side) throws SQLException
+	{
+		if (StockLocks.enabled && !StockLocks.lock(conn, productIDs, quantities))
+		{
+			conn.rollback();
+			return null;
+		}
+		PlacedOrder placed = stored(conn)
+				? placeWithProcedure(conn, items_stmnt, stock_stmnt, type, completed, productIDs, quantities,
+						date, staffid, writer == null ? side : null, writer == null)
+				: placeInTransaction(conn, items_stmnt, stock_stmnt, type, completed, productIDs, quantities,
+						date, staffid, writer == null ? side : null, writer == null);
+		if (placed == null)
+		{
+			conn.rollback();
+			return null;
+		}
+		SideWriter.Entry entry = null;
+		if (writer != null)
+		{
+			try
+			{
+				entry = writer.journal(placed.id, staffid, side);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("[ERROR] Could not journal the side records, order was not placed.");
+				conn.rollback();
+				return null;
+			}
+		}
+		try
+		{
+			conn.commit();
+		}
+		catch (SQLException e)
+		{
+			if (entry != null)
+			{
+				writer.abandon(entry);
+			}
+			throw e;
+		}
+		if (entry != null)
+		{
+			writer.enqueue(entry);
+		}
+		for (int i = 0; i < placed.productIDs.length; ++i)
+		{
+			ProductCache.stockCommitted(placed.productIDs[i], placed.stocks[i]);
+		}
+		return placed;
+	}
+
+	private static PlacedOrder placeInTransaction(Connection conn, PreparedStatement items_stmnt,
+			PreparedStatement stock_stmnt, String type, int completed, int[] productIDs, int[] quantities,
+			String date, int staffid, SideRecord side, boolean link) throws SQLException
+	{
+		final int ordid = Order.insertRow(conn, type, completed, OracleDateFormat.stringToDate(date));
+		if (ordid < 0)
+		{
+			System.err.println("[ERROR] Failed to insert new order");
+			return null;
+		}
+
+		for (int i = 0; i < productIDs.length; ++i)
+		{
+			items_stmnt.setInt(1, ordid);
+			items_stmnt.setInt(2, productIDs[i]);
+			items_stmnt.setInt(3, quantities[i]);
+			items_stmnt.addBatch();
+
+			stock_stmnt.setInt(1, quantities[i]);
+			stock_stmnt.setInt(2, productIDs[i]);
+			stock_stmnt.setInt(3, quantities[i]);
+			stock_stmnt.addBatch();
+		}
+		items_stmnt.executeBatch();
+		int[] counts = stock_stmnt.executeBatch();
+		for (int i = 0; i < counts.length; ++i)
+		{
+			if (counts[i] == 0)
+			{
+				System.err.printf("[ERROR] Not enough stock of product %d to add quantity %d to order %d\n",
+						productIDs[i], quantities[i], ordid);
+				return null;
+			}
+		}
+
+		if (side != null && !side.insert(conn, ordid))
+		{
+			System.err.println("[ERROR] Failed to add the " + type.toLowerCase() + " record of order " + ordid);
+			return null;
+		}
+
+		if (link && !StaffOrders.linkNew(conn, staffid, ordid))
+		{
+			System.err.println("[ERROR] Failed to link order " + ordid + " with staff " + staffid);
+			return null;
+		}
+		SalesSummary.orderAdded(conn, ordid);
+
+		return new PlacedOrder(ordid, productIDs, selectStocks(conn, productIDs));
+	}
+
+	/**
+	 * @return Whether orders are placed with order_api.place_order.
+	 */
+	private static boolean stored(Connection conn)
+	{
+		Boolean s = stored;
+		if (s == null)
+		{
+			s = procedure && hasPackage(conn);
+			stored = s;
+		}
+		return s;
+	}
+
+	private static boolean hasPackage(Connection conn)
+	{
+		try (PreparedStatement stmnt = Metrics.instrument(conn.prepareStatement(package_sql), package_sql))
+		{
+			ResultSet r = stmnt.executeQuery();
+			return r.next();
+		}
+		catch (SQLException e)
+		{
+			// Not an Oracle database.
+			return false;
+		}
+	}
+
+	/**
+	 * Same as {@link #placeInTransaction} with a single call of
+	 * order_api.place_order. Falls back to placeInTransaction, for this order
+	 * and the next ones, if the procedure cannot be called.
+	 */
+	private static PlacedOrder placeWithProcedure(Connection conn, PreparedStatement items_stmnt,
+			PreparedStatement stock_stmnt, String type, int completed, int[] productIDs, int[] quantities,
+			String date, int staffid, SideRecord side, boolean link) throws SQLException
+	{
+		try
+		{
+			return callPlaceOrder(conn, type, completed, productIDs, quantities, date, staffid, side, link);
+		}
+		catch (SQLException e)
+		{
+			switch (e.getErrorCode())
+			{
+			case 20001: // order_api.not_enough_stock
+				System.err.println("[ERROR] " + e.getMessage().split("\n")[0]);
+				return null;
+			case 4063: // package body has errors
+			case 6508: // could not find program unit
+			case 6550: // PLS-00201 identifier must be declared
+				System.err.println("[WARN] Could not call order_api.place_order, placing orders from Java: "
+						+ e.getMessage().split("\n")[0]);
+				stored = false;
+				return placeInTransaction(conn, items_stmnt, stock_stmnt, type, completed, productIDs, quantities,
+						date, staffid, side, link);
+			default:
+				throw e;
+			}
+		}
+	}
+
+	private static PlacedOrder callPlaceOrder(Connection conn, String type, int completed, int[] productIDs,
+			int[] quantities, String date, int staffid, SideRecord side, boolean link) throws SQLException
+	{
+		CallableStatement call = StatementCache.prepareCall(conn, call_sql);
+		if (OrderIdAllocator.returning)
+		{
+			call.setNull(1, Types.INTEGER);
+		}
+		else
+		{
+			call.setInt(1, OrderIdAllocator.next(conn));
+		}
+		call.registerOutParameter(1, Types.INTEGER);
+		call.setString(2, type);
+		call.setInt(3, completed);
+		call.setDate(4, OracleDateFormat.stringToDate(date));
+		call.setArray(5, lines(conn, productIDs, quantities));
+		if (link)
+		{
+			call.setInt(6, staffid);
+		}
+		else
+		{
+			call.setNull(6, Types.INTEGER);
+		}
+		call.setString(7, side == null ? null : side.fname);
+		call.setString(8, side == null ? null : side.lname);
+		call.setString(9, side == null ? null : side.house);
+		call.setString(10, side == null ? null : side.street);
+		call.setString(11, side == null ? null : side.city);
+		call.setDate(12, side == null ? null : side.due);
+		call.registerOutParameter(13, Types.ARRAY, "STOCK_LIST");
+		call.execute();
+
+		Object[] left = (Object[]) call.getArray(13).getArray();
+		int[] stocks = new int[left.length];
+		for (int i = 0; i < left.length; ++i)
+		{
+			stocks[i] = ((Number) left[i]).intValue();
+		}
+		return new PlacedOrder(call.getInt(1), productIDs, stocks);
+	}
+
+	/**
+	 * @return The products and quantities as an ORDER_LINE_LIST.
+	 */
+	private static Array lines(Connection conn, int[] productIDs, int[] quantities) throws SQLException
+	{
+		Object[] lines = new Object[productIDs.length];
+		for (int i = 0; i < productIDs.length; ++i)
+		{
+			lines[i] = conn.createStruct("ORDER_LINE", new Object[] { productIDs[i], quantities[i] });
+		}
+		if (create_array == null)
+		{
+			return conn.createArrayOf("ORDER_LINE_LIST", lines);
+		}
+		try
+		{
+			return (Array) create_array.invoke(conn.unwrap(create_array.getDeclaringClass()), "ORDER_LINE_LIST",
+					lines);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * The Oracle driver does not support {@link Connection#createArrayOf}; its
+	 * own method is looked up by reflection since the driver is only on the
+	 * runtime classpath.
+	 */
+	private static Method createArrayMethod()
+	{
+		try
+		{
+			return Class.forName("oracle.jdbc.OracleConnection").getMethod("createOracleArray", String.class,
+					Object.class);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Read back the stock of several products in a single query. The statement
+	 * depends on the number of products so it is not kept in the
+	 * {@link StatementCache}.
+	 *
+	 * @return The stock of each product, in the same order as productIDs.
+	 */
+	private static int[] selectStocks(Connection conn, int[] productIDs) throws SQLException
+	{
+		StringBuilder sql = new StringBuilder("SELECT ProductID, ProductStockAmount FROM INVENTORY WHERE ProductID IN (");
+		for (int i = 0; i < productIDs.length; ++i)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(')');
+		IntIntMap stock = new IntIntMap(productIDs.length);
+		try (PreparedStatement stmnt = Metrics.instrument(conn.prepareStatement(sql.toString()), sql.toString()))
+		{
+			for (int i = 0; i < productIDs.length; ++i)
+			{
+				stmnt.setInt(i + 1, productIDs[i]);
+			}
+			ResultSet r = stmnt.executeQuery();
+			while (r.next())
+			{
+				stock.put(r.getInt(1), r.getInt(2));
+			}
+		}
+		int[] tbr = new int[productIDs.length];
+		for (int i = 0; i < productIDs.length; ++i)
+		{
+			tbr[i] = stock.get(productIDs[i], 0);
+		}
+		return tbr;
+	}
+}
+
+/**
+ * Locks the stock of an order before it is taken, with -Dorders.lock. Without
+ * it, {@link OrderPlacement} takes the stock of each line with an UPDATE in
+ * the order of the basket, so two orders sharing products can lock their rows
+ * in opposite orders and deadlock (ORA-00060), or queue behind each other line
+ * by line. With it, the rows of all products of an order are first locked by
+ * one SELECT ... FOR UPDATE, in ascending ProductID order, and the stock of the
+ * whole basket is checked at once; the UPDATEs that follow never wait.
+ * <ul>
+ * <li>wait: FOR UPDATE WAIT -Dorders.lock.wait=5 seconds, then ORA-30006.</li>
+ * <li>nowait: FOR UPDATE NOWAIT, ORA-00054 at once if a row is locked.</li>
+ * <li>skip: FOR UPDATE SKIP LOCKED, the order is busy if a row is left out.</li>
+ * </ul>
+ * Whatever the mode, an order that fails on a deadlock or a lock is rolled back
+ * and placed again up to -Dorders.retries=3 times, after a random pause of up
+ * to -Dorders.backoff=20 milliseconds doubled with every attempt, so orders
+ * that collided do not collide again. The time spent locking and the retries
+ * are the metrics "lock stock" and "order retry".
+ */
+class StockLocks
+{
+	private static final String mode = mode(System.getProperty("orders.lock", "none"));
+
+	/** Whether orders lock their stock first. */
+	static final boolean enabled = !mode.equals("none");
+
+	private static final int wait = Integer.getInteger("orders.lock.wait", 5);
+	private static final int retries = Integer.getInteger("orders.retries", 3);
+	private static final int backoff = Integer.getInteger("orders.backoff", 20);
+
+	private static String mode(String name)
+	{
+		String mode = name.toLowerCase();
+		if (mode.equals("none") || mode.equals("wait") || mode.equals("nowait") || mode.equals("skip"))
+		{
+			return mode;
+		}
+		System.err.println("[WARN] Unknown lock mode " + name + ", not locking stock first.");
+		return "none";
+	}
+
+	/**
+	 * Lock n products. The products are bound in ascending order, which is
+	 * the order Oracle visits them in through the primary key; one statement
+	 * per basket size is kept in the {@link StatementCache}.
+	 * 
+	 * @param 1..n
+	 *            ProductID: INTEGER
+	 */
+	private static String lock_sql(int n)
+	{
+		StringBuilder sql = new StringBuilder("SELECT ProductID, ProductStockAmount FROM INVENTORY WHERE ProductID IN (");
+		for (int i = 0; i < n; ++i)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(") ORDER BY ProductID FOR UPDATE");
+		switch (mode)
+		{
+		case "wait":
+			return sql.append(" WAIT ").append(wait).toString();
+		case "nowait":
+			return sql.append(" NOWAIT").toString();
+		default:
+			return sql.append(" SKIP LOCKED").toString();
+		}
+	}
+
+	/**
+	 * Which of n products exist, without locking them. Tells the products
+	 * skipped as locked from those that do not exist.
+	 * 
+	 * @param 1..n
+	 *            ProductID: INTEGER
+	 */
+	private static String exists_sql(int n)
+	{
+		StringBuilder sql = new StringBuilder("SELECT ProductID FROM INVENTORY WHERE ProductID IN (");
+		for (int i = 0; i < n; ++i)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		return sql.append(')').toString();
+	}
+
+	/**
+	 * Lock the stock of every product of an order and check that there is
+	 * enough of each.
+	 * 
+	 * @param conn
+	 *            An open database connection, not in auto-commit mode.
+	 * @param productIDs
+	 *            The products of the order, no duplicates.
+	 * @param quantities
+	 *            The quantity of each product in productIDs.
+	 * @return Whether every product has enough stock; the shortfalls are
+	 *         printed.
+	 * @throws SQLException
+	 *             If a row is locked by another transaction: ORA-00054 or
+	 *             ORA-30006, or an {@link SQLTransientException} when the row
+	 *             of a product that exists was skipped.
+	 */
+	static boolean lock(Connection conn, int[] productIDs, int[] quantities) throws SQLException
+	{
+		int[] sorted = productIDs.clone();
+		Arrays.sort(sorted);
+		IntIntMap stock = new IntIntMap(sorted.length);
+		final long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			PreparedStatement stmnt = StatementCache.prepare(conn, lock_sql(sorted.length));
+			for (int i = 0; i < sorted.length; ++i)
+			{
+				stmnt.setInt(i + 1, sorted[i]);
+			}
+			int rows = 0;
+			try (ResultSet r = stmnt.executeQuery())
+			{
+				for (; r.next(); ++rows)
+				{
+					stock.put(r.getInt(1), r.getInt(2));
+				}
+			}
+			// Rows skipped or of products that do not exist.
+			failed = rows < sorted.length;
+		}
+		finally
+		{
+			Metrics.event("lock stock", start, failed);
+		}
+
+		IntIntMap existing = failed && mode.equals("skip") ? existing(conn, sorted, stock) : null;
+		boolean enough = true;
+		int locked = -1;
+		for (int i = 0; i < productIDs.length; ++i)
+		{
+			int left = stock.get(productIDs[i], -1);
+			if (left < 0 && existing != null && existing.get(productIDs[i], -1) >= 0)
+			{
+				locked = productIDs[i];
+			}
+			else if (left < 0)
+			{
+				System.err.printf("[ERROR] There is no product %d\n", productIDs[i]);
+				enough = false;
+			}
+			else if (left < quantities[i])
+			{
+				System.err.printf("[ERROR] Not enough stock of product %d to add quantity %d (%d left)\n",
+						productIDs[i], quantities[i], left);
+				enough = false;
+			}
+		}
+		// Placing the order again only helps if it failed on a lock alone.
+		if (enough && locked >= 0)
+		{
+			throw new SQLTransientException("Product " + locked + " is locked by another order");
+		}
+		return enough;
+	}
+
+	/**
+	 * @param sorted
+	 *            The products of the order in ascending order.
+	 * @param stock
+	 *            The stock of the products that were locked.
+	 * @return The products left out by SKIP LOCKED that exist.
+	 */
+	private static IntIntMap existing(Connection conn, int[] sorted, IntIntMap stock) throws SQLException
+	{
+		IntList skipped = new IntList(sorted.length);
+		for (int id : sorted)
+		{
+			if (stock.get(id, -1) < 0)
+			{
+				skipped.add(id);
+			}
+		}
+		IntIntMap existing = new IntIntMap(skipped.size());
+		PreparedStatement stmnt = StatementCache.prepare(conn, exists_sql(skipped.size()));
+		for (int i = 0; i < skipped.size(); ++i)
+		{
+			stmnt.setInt(i + 1, skipped.get(i));
+		}
+		try (ResultSet r = stmnt.executeQuery())
+		{
+			while (r.next())
+			{
+				existing.put(r.getInt(1), 0);
+			}
+		}
+		return existing;
+	}
+
+	/**
+	 * Decide whether to place an order again after it failed and was rolled
+	 * back, and pause before doing so.
+	 * 
+	 * @param e
+	 *            Why the order failed.
+	 * @param attempt
+	 *            The number of retries so far.
+	 * @return Whether the order should be placed again.
+	 */
+	static boolean retry(SQLException e, int attempt)
+	{
+		if (!retryable(e))
+		{
+			return false;
+		}
+		final long start = System.nanoTime();
+		if (attempt >= retries)
+		{
+			Metrics.event("order retry", start, true);
+			return false;
+		}
+		try
+		{
+			long cap = (long) backoff << attempt;
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		Metrics.event("order retry", start, false);
+		return true;
+	}
+
+	/**
+	 * @return Whether a failure is a deadlock or a lock that another
+	 *         transaction held, i.e. may not happen again.
+	 */
+	static boolean retryable(SQLException e)
+	{
+		switch (e.getErrorCode())
+		{
+		case 60: // ORA-00060: deadlock detected while waiting for resource
+		case 54: // ORA-00054: resource busy and acquire with NOWAIT specified
+		case 30006: // ORA-30006: resource busy; acquire with WAIT timeout expired
+			return true;
+		default:
+			// Lock timeouts and deadlocks of other databases.
+			return e instanceof SQLTransientException || "40001".equals(e.getSQLState());
+		}
+	}
+}
+
+/**
+ * Write-behind of the rows that accompany an order: its COLLECTIONS or
+ * DELIVERIES record and its STAFF_ORDERS link. While a SideWriter is running,
+ * {@link OrderPlacement} commits only the order, its lines and the stock, and
+ * hands the other rows to the writer, which inserts those of many orders at
+ * once with JDBC batches on its own connection.
+ * <p>
+ * The rows of an order are appended to a journal file (and forced to disk
+ * unless -Dside.sync=false) before the order commits, so they survive a crash.
+ * After each batch the writer records in the checkpoint file the offset of the
+ * journal before which every entry has been written, and empties the journal
+ * when nothing is left to write. On start the entries after the checkpoint are
+ * written first. An entry may be written twice (if the process stopped before
+ * the checkpoint) or belong to an order that never committed; the primary and
+ * foreign keys reject such rows and the entry is skipped.
+ * <p>
+ * Until the writer has caught up, an order may be missing from the reports
+ * by staff and from option 5.
+ */
+class SideWriter implements AutoCloseable
+{
+	/** The maximum number of orders waiting to be written. */
+	private static final int capacity = Integer.getInteger("side.queue", 1024);
+	/** The maximum number of orders written in one transaction. */
+	private static final int batch = Integer.getInteger("side.batch", 100);
+	/** Whether every journal entry is forced to disk. */
+	private static final boolean sync = !"false".equals(System.getProperty("side.sync"));
+
+	private static volatile SideWriter active;
+
+	/**
+	 * The side rows of one order.
+	 */
+	static final class Entry
+	{
+		/** Where the entry starts in the journal. */
+		final long offset;
+		final int ordid, staffid;
+		/** null for an InStore order. */
+		final OrderPlacement.SideRecord side;
+
+		Entry(long offset, int ordid, int staffid, OrderPlacement.SideRecord side)
+		{
+			this.offset = offset;
+			this.ordid = ordid;
+			this.staffid = staffid;
+			this.side = side;
+		}
+	}
+
+	private final Callable<Connection> factory;
+	private final Path journal, checkpoint;
+	private final FileChannel out;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(capacity);
+	/** Offsets of the entries journaled but not yet written, under lock. */
+	private final TreeSet<Long> pending = new TreeSet<>();
+	private final Object lock = new Object();
+	private final Thread thread;
+	private Connection conn;
+	private volatile boolean running = true;
+
+	/**
+	 * The running writer, or null if order placement writes the side rows
+	 * itself.
+	 */
+	static SideWriter active()
+	{
+		return active;
+	}
+
+	/**
+	 * Write the entries left in the journal by a previous run and start the
+	 * writer.
+	 *
+	 * @param path
+	 *            The journal file, created if missing.
+	 * @param factory
+	 *            Opens the connection of the writer.
+	 */
+	static SideWriter start(String path, Callable<Connection> factory) throws IOException, SQLException
+	{
+		SideWriter writer = new SideWriter(Paths.get(path), factory);
+		active = writer;
+		return writer;
+	}
+
+	private SideWriter(Path journal, Callable<Connection> factory) throws IOException, SQLException
+	{
+		this.factory = factory;
+		this.journal = journal;
+		this.checkpoint = Paths.get(journal + ".checkpoint");
+		this.conn = connect();
+		this.out = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.READ);
+		replay();
+		this.thread = new Thread(this::run, "side-writer");
+		thread.start();
+	}
+
+	private Connection connect() throws SQLException
+	{
+		try
+		{
+			Connection c = factory.call();
+			c.setAutoCommit(false);
+			return c;
+		}
+		catch (SQLException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new SQLException(e);
+		}
+	}
+
+	/**
+	 * Append the side rows of an order to the journal. Called before the order
+	 * commits; the entry must then be given to {@link #enqueue} if the order
+	 * committed or to {@link #abandon} if it did not.
+	 */
+	Entry journal(int ordid, int staffid, OrderPlacement.SideRecord side) throws IOException
+	{
+		ByteBuffer line = ByteBuffer.wrap(format(ordid, staffid, side).getBytes(StandardCharsets.UTF_8));
+		synchronized (lock)
+		{
+			long offset = out.size();
+			out.position(offset);
+			while (line.hasRemaining())
+			{
+				out.write(line);
+			}
+			if (sync)
+			{
+				out.force(false);
+			}
+			pending.add(offset);
+			return new Entry(offset, ordid, staffid, side);
+		}
+	}
+
+	/**
+	 * Queue the entry of a committed order, waiting while the queue is full.
+	 * If interrupted the entry stays in the journal and is written on the next
+	 * start.
+	 */
+	void enqueue(Entry entry)
+	{
+		try
+		{
+			queue.put(entry);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Forget the entry of an order that did not commit.
+	 */
+	void abandon(Entry entry)
+	{
+		synchronized (lock)
+		{
+			pending.remove(entry.offset);
+		}
+	}
+
+	private void run()
+	{
+		List<Entry> entries = new ArrayList<>(batch);
+		while (running || !queue.isEmpty())
+		{
+			try
+			{
+				Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+				{
+					continue;
+				}
+				entries.add(first);
+				queue.drainTo(entries, batch - 1);
+				if (!write(entries))
+				{
+					// Left in the journal for the next start.
+					break;
+				}
+				synchronized (lock)
+				{
+					for (Entry e : entries)
+					{
+						pending.remove(e.offset);
+					}
+				}
+				entries.clear();
+				checkpoint();
+			}
+			catch (InterruptedException e)
+			{
+				// close() stops the loop once the queue is empty.
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				System.err.println("[WARN] Could not write the checkpoint of " + journal);
+			}
+		}
+	}
+
+	/**
+	 * Write the entries in one transaction, or one at a time if the batch is
+	 * rejected. Retries every second while the database cannot be reached,
+	 * until the writer is closed.
+	 * 
+	 * @return Whether the entries were written.
+	 */
+	private boolean write(List<Entry> entries) throws InterruptedException
+	{
+		for (;;)
+		{
+			try
+			{
+				try
+				{
+					writeBatch(entries);
+				}
+				catch (BatchUpdateException e)
+				{
+					conn.rollback();
+					for (Entry entry : entries)
+					{
+						writeOne(entry);
+					}
+				}
+				return true;
+			}
+			catch (SQLException e)
+			{
+				e.printStackTrace();
+				if (!running)
+				{
+					System.err.println("[WARN] Could not write the side records, they are kept in " + journal);
+					return false;
+				}
+				System.err.println("[WARN] Could not write the side records, retrying.");
+				Thread.sleep(1000);
+				reconnect();
+			}
+		}
+	}
+
+	private void writeBatch(List<Entry> entries) throws SQLException
+	{
+		PreparedStatement link_stmnt = StatementCache.prepare(conn, StaffOrders.insert_sql);
+		PreparedStatement collection_stmnt = StatementCache.prepare(conn, Collection.insert_sql);
+		PreparedStatement delivery_stmnt = StatementCache.prepare(conn, Delivery.insert_sql);
+		try
+		{
+			for (Entry e : entries)
+			{
+				if (e.side != null)
+				{
+					PreparedStatement stmnt = e.side.type.equals("Collection") ? collection_stmnt : delivery_stmnt;
+					e.side.bind(stmnt, e.ordid);
+					stmnt.addBatch();
+				}
+				link_stmnt.setInt(1, e.staffid);
+				link_stmnt.setInt(2, e.ordid);
+				link_stmnt.addBatch();
+			}
+			collection_stmnt.executeBatch();
+			delivery_stmnt.executeBatch();
+			link_stmnt.executeBatch();
+			for (Entry e : entries)
+			{
+				SalesSummary.addLinkBatch(conn, e.staffid, e.ordid);
+			}
+			SalesSummary.executeLinkBatch(conn);
+			conn.commit();
+		}
+		finally
+		{
+			collection_stmnt.clearBatch();
+			delivery_stmnt.clearBatch();
+			link_stmnt.clearBatch();
+			SalesSummary.clearLinkBatch(conn);
+		}
+	}
+
+	/**
+	 * Write the rows of one order in their own transaction, skipping them if a
+	 * key rejects them.
+	 */
+	private void writeOne(Entry e) throws SQLException
+	{
+		try
+		{
+			if (e.side != null)
+			{
+				e.side.insert(conn, e.ordid);
+			}
+			if (StaffOrders.linkNew(conn, e.staffid, e.ordid))
+			{
+				SalesSummary.linkAdded(conn, e.staffid, e.ordid);
+			}
+			conn.commit();
+		}
+		catch (SQLIntegrityConstraintViolationException ex)
+		{
+			conn.rollback();
+			// ORA-00001 or SQLSTATE 23505: the rows were already written.
+			if (ex.getErrorCode() != 1 && !"23505".equals(ex.getSQLState()))
+			{
+				System.err.println("[WARN] Skipped the side records of order " + e.ordid + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	private void reconnect()
+	{
+		try
+		{
+			if (conn.isValid(5))
+			{
+				conn.rollback();
+				return;
+			}
+			StatementCache.close(conn);
+			conn.close();
+		}
+		catch (SQLException e)
+		{
+			// Replaced below
+		}
+		try
+		{
+			conn = connect();
+		}
+		catch (SQLException e)
+		{
+			System.err.println("[WARN] Could not reconnect the side writer: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Record how far the journal has been written, and empty it if every
+	 * entry has been. The checkpoint 0 is on disk before the journal is
+	 * emptied, and nothing is appended in between, so a crash never leaves a
+	 * checkpoint past the start of entries journaled after the truncation; at
+	 * worst the old entries are written again.
+	 */
+	private void checkpoint() throws IOException
+	{
+		long written;
+		synchronized (lock)
+		{
+			if (pending.isEmpty() && queue.isEmpty())
+			{
+				writeCheckpoint(0);
+				out.truncate(0);
+				return;
+			}
+			written = pending.isEmpty() ? out.size() : pending.first();
+		}
+		writeCheckpoint(written);
+	}
+
+	private void writeCheckpoint(long written) throws IOException
+	{
+		Path tmp = Paths.get(checkpoint + ".tmp");
+		Files.write(tmp, Long.toString(written).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write the entries of the journal after the checkpoint.
+	 */
+	private void replay() throws IOException, SQLException
+	{
+		long from = 0;
+		if (Files.exists(checkpoint))
+		{
+			from = Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim());
+		}
+		List<Entry> entries = new ArrayList<>();
+		int replayed = 0;
+		try (InputStream bytes = Files.newInputStream(journal))
+		{
+			// The checkpoint is an offset in bytes, so skip before decoding.
+			for (long left = from; left > 0;)
+			{
+				long skipped = bytes.skip(left);
+				if (skipped <= 0)
+				{
+					break;
+				}
+				left -= skipped;
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(bytes, StandardCharsets.UTF_8));
+			for (String line; (line = in.readLine()) != null;)
+			{
+				Entry e = parse(line);
+				if (e == null)
+				{
+					System.err.println("[WARN] Skipped a damaged line of " + journal + ": " + line);
+					continue;
+				}
+				entries.add(e);
+				if (entries.size() == batch)
+				{
+					replayed += replay(entries);
+				}
+			}
+		}
+		replayed += replay(entries);
+		// Nothing is queued yet, so this empties the journal.
+		checkpoint();
+		if (replayed > 0)
+		{
+			System.out.println("[INFO] Replayed " + replayed + " entries left in " + journal);
+		}
+	}
+
+	private int replay(List<Entry> entries) throws SQLException
+	{
+		for (Entry e : entries)
+		{
+			writeOne(e);
+		}
+		int n = entries.size();
+		entries.clear();
+		return n;
+	}
+
+	/**
+	 * A journal line: OrderID|StaffID|type|due|fname|lname|house|street|city
+	 * with '\', '|' and line breaks escaped by a '\'.
+	 */
+	private static String format(int ordid, int staffid, OrderPlacement.SideRecord side)
+	{
+		StringBuilder sb = new StringBuilder().append(ordid).append('|').append(staffid);
+		if (side == null)
+		{
+			return sb.append("|InStore\n").toString();
+		}
+		sb.append('|').append(side.type).append('|').append(side.due);
+		for (String f : new String[] { side.fname, side.lname, side.house, side.street, side.city })
+		{
+			sb.append('|');
+			if (f == null)
+			{
+				continue;
+			}
+			for (int i = 0; i < f.length(); ++i)
+			{
+				char c = f.charAt(i);
+				if (c == '\\' || c == '|')
+				{
+					sb.append('\\').append(c);
+				}
+				else if (c == '\n' || c == '\r')
+				{
+					sb.append('\\').append(c == '\n' ? 'n' : 'r');
+				}
+				else
+				{
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('\n').toString();
+	}
+
+	/**
+	 * @return The entry of a journal line, with an offset of 0, or null if the
+	 *         line is damaged.
+	 */
+	private static Entry parse(String line)
+	{
+		List<String> f = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		for (int i = 0; i < line.length(); ++i)
+		{
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length())
+			{
+				char n = line.charAt(++i);
+				field.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			}
+			else if (c == '|')
+			{
+				f.add(field.toString());
+				field.setLength(0);
+			}
+			else
+			{
+				field.append(c);
+			}
+		}
+		f.add(field.toString());
+		try
+		{
+			int ordid = Integer.parseInt(f.get(0)), staffid = Integer.parseInt(f.get(1));
+			if (f.size() == 3 && f.get(2).equals("InStore"))
+			{
+				return new Entry(0, ordid, staffid, null);
+			}
+			if (f.size() != 9 || !f.get(2).equals("Collection") && !f.get(2).equals("Delivery"))
+			{
+				return null;
+			}
+			boolean collection = f.get(2).equals("Collection");
+			return new Entry(0, ordid, staffid, new OrderPlacement.SideRecord(f.get(2), f.get(4), f.get(5),
+					collection ? null : f.get(6), collection ? null : f.get(7), collection ? null : f.get(8),
+					Date.valueOf(f.get(3))));
+		}
+		catch (IllegalArgumentException | IndexOutOfBoundsException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Write everything queued, then stop. Entries that cannot be written stay
+	 * in the journal for the next start.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		active = null;
+		running = false;
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		checkpoint();
+		synchronized (lock)
+		{
+			out.close();
+		}
+		StatementCache.close(conn);
+		try
+		{
+			conn.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
+
+/**
+ * Hands out OrderIDs from memory. seq_ord is incremented by more than one (see
+ * schema.sql), so every value it returns is the first of a block of ids that no
+ * other session will be given. A block is reserved with a single
+ * <code>seq_ord.nextval</code> and its ids are then handed out by an atomic
+ * counter, so inserting an order normally costs no round trip for its id and
+ * threads sharing the allocator only synchronize when a block runs out.
+ * <p>
+ * Running with <code>-Dorders.ids=returning</code> bypasses the allocator: the
+ * INSERT takes the id from seq_ord itself and returns it as a generated key.
+ */
+class OrderIdAllocator
+{
+	/** Whether OrderIDs are generated by the INSERT instead of allocated. */
+	static final boolean returning = "returning".equalsIgnoreCase(System.getProperty("orders.ids"));
+
+	/** The size of a block, i.e. the increment of seq_ord. */
+	//@formatter:off
+	private static final String blocksize_sql = "SELECT increment_by FROM user_sequences"
+			+ " WHERE sequence_name = 'SEQ_ORD'";
+	//@formatter:on
+
+	/**
+	 * The ids [next, end) of a reserved block.
+	 */
+	private static class Block
+	{
+		final AtomicLong next;
+		final long end;
+
+		Block(long first, long end)
+		{
+			this.next = new AtomicLong(first);
+			this.end = end;
+		}
+	}
+
+	private static final Object lock = new Object();
+	private static volatile Block block = new Block(0, 0);
+	/** Read from the database with the first block. */
+	private static int blocksize = 0;
+
+	/**
+	 * Get a new unique OrderID.
+	 * 
+	 * @param conn
+	 *            An open database connection, only used when a new block has
+	 *            to be reserved.
+	 * @return An OrderID that has not been handed out before.
+	 */
+	public static int next(Connection conn) throws SQLException
+	{
+		for (;;)
+		{
+			Block b = block;
+			long id = b.next.getAndIncrement();
+			if (id < b.end)
+			{
+				return (int) id;
+			}
+			synchronized (lock)
+			{
+				if (block == b)
+				{
+					block = reserve(conn);
+				}
+			}
+		}
+	}
+
+	private static Block reserve(Connection conn) throws SQLException
+	{
+		if (blocksize == 0)
+		{
+			blocksize = readBlockSize(conn);
+		}
+		ResultSet r = StatementCache.prepare(conn, Order.getnewid_sql).executeQuery();
+		r.next();
+		long first = r.getLong(1);
+		return new Block(first, first + blocksize);
+	}
+
+	/**
+	 * The increment of seq_ord. Ids are handed out one at a time if it cannot
+	 * be read since a larger block could overlap the next value of the
+	 * sequence.
+	 */
+	private static int readBlockSize(Connection conn)
+	{
+		try (PreparedStatement stmnt = Metrics.instrument(conn.prepareStatement(blocksize_sql), blocksize_sql))
+		{
+			ResultSet r = stmnt.executeQuery();
+			if (r.next())
+			{
+				return Math.max(1, r.getInt(1));
+			}
+		}
+		catch (SQLException e)
+		{
+			System.err.println("[WARN] Could not read the increment of seq_ord, allocating one OrderID at a time.");
+		}
+		return 1;
+	}
+}
+
+/**
+ * The summary tables SUM_PRODUCT_SALES and SUM_STAFF_PRODUCT_SALES hold the
+ * units sold of every product, overall and per member of staff, so the sales
+ * reports (options 4, 6 and 7) read one row per product or per staff and
+ * product instead of aggregating all of ORDER_PRODUCTS. They hold units rather
+ * than revenue so a change of price needs no maintenance.
+ * <p>
+ * Every change to ORDER_PRODUCTS or STAFF_ORDERS made by the application is
+ * followed (for rows added) or preceded (for rows removed) by one of the
+ * methods below on the same connection, so the summaries change in the same
+ * transaction as the orders. Rows written by other means, e.g. the SQL scripts,
+ * are picked up by {@link #rebuild(Connection)}; {@link #verify(Connection)}
+ * reports any drift between the summaries and the orders.
+ */
+class SalesSummary
+{
+	/**
+	 * Add (sign '+') or subtract (sign '-') the lines of ORDER_PRODUCTS op
+	 * matching a condition to SUM_PRODUCT_SALES.
+	 */
+	static String productDelta(String filter, char sign)
+	{
+		//@formatter:off
+		return "MERGE INTO SUM_PRODUCT_SALES s"
+				+ " USING (SELECT op.ProductID, SUM(op.ProductQuantity) AS Units"
+					+ " FROM ORDER_PRODUCTS op"
+					+ " WHERE " + filter
+					+ " GROUP BY op.ProductID) d"
+				+ " ON (s.ProductID = d.ProductID)"
+				+ " WHEN MATCHED THEN UPDATE SET s.UnitsSold = s.UnitsSold " + sign + " d.Units"
+				+ " WHEN NOT MATCHED THEN INSERT (ProductID, UnitsSold) VALUES (d.ProductID, " + sign + "d.Units)";
+		//@formatter:on
+	}
+
+	/**
+	 * Add (sign '+') or subtract (sign '-') the lines of ORDER_PRODUCTS op
+	 * matching a condition to SUM_STAFF_PRODUCT_SALES, once for every member
+	 * of staff (STAFF_ORDERS so) linked to their order.
+	 */
+	static String staffDelta(String filter, char sign)
+	{
+		//@formatter:off
+		return "MERGE INTO SUM_STAFF_PRODUCT_SALES s"
+				+ " USING (SELECT so.StaffID, op.ProductID, SUM(op.ProductQuantity) AS Units"
+					+ " FROM ORDER_PRODUCTS op INNER JOIN STAFF_ORDERS so ON so.OrderID = op.OrderID"
+					+ " WHERE " + filter
+					+ " GROUP BY so.StaffID, op.ProductID) d"
+				+ " ON (s.StaffID = d.StaffID AND s.ProductID = d.ProductID)"
+				+ " WHEN MATCHED THEN UPDATE SET s.UnitsSold = s.UnitsSold " + sign + " d.Units"
+				+ " WHEN NOT MATCHED THEN INSERT (StaffID, ProductID, UnitsSold)"
+					+ " VALUES (d.StaffID, d.ProductID, " + sign + "d.Units)";
+		//@formatter:on
+	}
+
+	/**
+	 * @param 1
+	 *            OrderID: INTEGER
+	 */
+	private static final String order_filter = "op.OrderID = ?";
+	/**
+	 * @param 1
+	 *            OrderID: INTEGER
+	 * @param 2
+	 *            ProductID: INTEGER
+	 */
+	private static final String line_filter = "op.OrderID = ? AND op.ProductID = ?";
+	/**
+	 * @param 1
+	 *            OrderID: INTEGER
+	 * @param 2
+	 *            StaffID: INTEGER
+	 */
+	private static final String link_filter = "op.OrderID = ? AND so.StaffID = ?";
+
+	private static final String add_order_products_sql = productDelta(order_filter, '+');
+	private static final String add_order_staff_sql = staffDelta(order_filter, '+');
+	private static final String sub_order_products_sql = productDelta(order_filter, '-');
+	private static final String sub_order_staff_sql = staffDelta(order_filter, '-');
+	private static final String add_line_products_sql = productDelta(line_filter, '+');
+	private static final String add_line_staff_sql = staffDelta(line_filter, '+');
+	private static final String sub_line_products_sql = productDelta(line_filter, '-');
+	private static final String sub_line_staff_sql = staffDelta(line_filter, '-');
+	private static final String add_link_staff_sql = staffDelta(link_filter, '+');
+
+	//@formatter:off
+	private static final String clear_products_sql = "DELETE FROM SUM_PRODUCT_SALES";
+	private static final String clear_staff_sql = "DELETE FROM SUM_STAFF_PRODUCT_SALES";
+	private static final String rebuild_products_sql = "INSERT INTO SUM_PRODUCT_SALES (ProductID, UnitsSold)"
+			+ " SELECT ProductID, SUM(ProductQuantity)"
+			+ " FROM ORDER_PRODUCTS"
+			+ " GROUP BY ProductID";
+	private static final String rebuild_staff_sql = "INSERT INTO SUM_STAFF_PRODUCT_SALES (StaffID, ProductID, UnitsSold)"
+			+ " SELECT so.StaffID, op.ProductID, SUM(op.ProductQuantity)"
+			+ " FROM ORDER_PRODUCTS op INNER JOIN STAFF_ORDERS so ON so.OrderID = op.OrderID"
+			+ " GROUP BY so.StaffID, op.ProductID";
+	private static final String lock_sql = "LOCK TABLE SUM_PRODUCT_SALES, SUM_STAFF_PRODUCT_SALES IN EXCLUSIVE MODE";
+	/** Products whose summary does not match ORDER_PRODUCTS. */
+	private static final String verify_products_sql = "SELECT i.ProductID,"
+				+ " NVL(s.UnitsSold, 0) AS Summary, NVL(a.Units, 0) AS Actual"
+			+ " FROM INVENTORY i"
+				+ " LEFT JOIN SUM_PRODUCT_SALES s ON s.ProductID = i.ProductID"
+				+ " LEFT JOIN (SELECT ProductID, SUM(ProductQuantity) AS Units"
+					+ " FROM ORDER_PRODUCTS GROUP BY ProductID) a ON a.ProductID = i.ProductID"
+			+ " WHERE NVL(s.UnitsSold, 0) <> NVL(a.Units, 0)"
+			+ " ORDER BY i.ProductID";
+	/** Staff and products whose summary does not match the orders. */
+	private static final String verify_staff_sql = "SELECT k.StaffID, k.ProductID,"
+				+ " NVL(s.UnitsSold, 0) AS Summary, NVL(a.Units, 0) AS Actual"
+			+ " FROM (SELECT StaffID, ProductID FROM SUM_STAFF_PRODUCT_SALES"
+					+ " UNION SELECT so.StaffID, op.ProductID"
+					+ " FROM ORDER_PRODUCTS op INNER JOIN STAFF_ORDERS so ON so.OrderID = op.OrderID) k"
+				+ " LEFT JOIN SUM_STAFF_PRODUCT_SALES s ON s.StaffID = k.StaffID AND s.ProductID = k.ProductID"
+				+ " LEFT JOIN (SELECT so.StaffID, op.ProductID, SUM(op.ProductQuantity) AS Units"
+					+ " FROM ORDER_PRODUCTS op INNER JOIN STAFF_ORDERS so ON so.OrderID = op.OrderID"
+					+ " GROUP BY so.StaffID, op.ProductID) a"
+					+ " ON a.StaffID = k.StaffID AND a.ProductID = k.ProductID"
+			+ " WHERE NVL(s.UnitsSold, 0) <> NVL(a.Units, 0)"
+			+ " ORDER BY k.StaffID, k.ProductID";
+	//@formatter:on
+
+	/**
+	 * Count an order whose lines and staff links have just been inserted.
+	 */
+	public static void orderAdded(Connection conn, int ordid) throws SQLException
+	{
+		update(conn, add_order_products_sql, ordid);
+		update(conn, add_order_staff_sql, ordid);
+	}
+
+	/**
+	 * Queue {@link #orderAdded(Connection, int)} in the JDBC batches of the
+	 * connection, to be run by {@link #executeBatch(Connection)}.
+	 */
+	public static void addBatch(Connection conn, int ordid) throws SQLException
+	{
+		PreparedStatement products_stmnt = StatementCache.prepare(conn, add_order_products_sql);
+		products_stmnt.setInt(1, ordid);
+		products_stmnt.addBatch();
+		PreparedStatement staff_stmnt = StatementCache.prepare(conn, add_order_staff_sql);
+		staff_stmnt.setInt(1, ordid);
+		staff_stmnt.addBatch();
+	}
+
+	public static void executeBatch(Connection conn) throws SQLException
+	{
+		StatementCache.prepare(conn, add_order_products_sql).executeBatch();
+		StatementCache.prepare(conn, add_order_staff_sql).executeBatch();
+	}
+
+	public static void clearBatch(Connection conn) throws SQLException
+	{
+		StatementCache.prepare(conn, add_order_products_sql).clearBatch();
+		StatementCache.prepare(conn, add_order_staff_sql).clearBatch();
+	}
+
+	/**
+	 * Uncount an order that is about to be deleted.
+	 */
+	public static void orderRemoved(Connection conn, int ordid) throws SQLException
+	{
+		Analytics.invalidate();
+		update(conn, sub_order_products_sql, ordid);
+		update(conn, sub_order_staff_sql, ordid);
+	}
+
+	/**
+	 * Count a line that has just been added to an order.
+	 */
+	public static void lineAdded(Connection conn, int ordid, int prodid) throws SQLException
+	{
+		Analytics.invalidate();
+		update(conn, add_line_products_sql, ordid, prodid);
+		update(conn, add_line_staff_sql, ordid, prodid);
+	}
+
+	/**
+	 * Uncount a line that is about to be deleted.
+	 */
+	public static void lineRemoved(Connection conn, int ordid, int prodid) throws SQLException
+	{
+		Analytics.invalidate();
+		update(conn, sub_line_products_sql, ordid, prodid);
+		update(conn, sub_line_staff_sql, ordid, prodid);
+	}
+
+	/**
+	 * Count the lines of an order for a member of staff that has just been
+	 * linked to it.
+	 */
+	public static void linkAdded(Connection conn, int staffid, int ordid) throws SQLException
+	{
+		update(conn, add_link_staff_sql, ordid, staffid);
+	}
+
+	/**
+	 * Add {@link #linkAdded} to a JDBC batch, run by
+	 * {@link #executeLinkBatch(Connection)}.
+	 */
+	public static void addLinkBatch(Connection conn, int staffid, int ordid) throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn, add_link_staff_sql);
+		stmnt.setInt(1, ordid);
+		stmnt.setInt(2, staffid);
+		stmnt.addBatch();
+	}
+
+	public static void executeLinkBatch(Connection conn) throws SQLException
+	{
+		StatementCache.prepare(conn, add_link_staff_sql).executeBatch();
+	}
+
+	public static void clearLinkBatch(Connection conn) throws SQLException
+	{
+		StatementCache.prepare(conn, add_link_staff_sql).clearBatch();
+	}
+
+	private static void update(Connection conn, String sql, int... params) throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn, sql);
+		for (int i = 0; i < params.length; ++i)
+		{
+			stmnt.setInt(i + 1, params[i]);
+		}
+		stmnt.executeUpdate();
+	}
+
+	/**
+	 * Recompute both summary tables from the orders in one transaction. The
+	 * summary tables are locked so orders placed meanwhile wait for the
+	 * rebuild and are then counted on top of it.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @return True if the summaries were rebuilt.
+	 */
+	public static boolean rebuild(Connection conn)
+	{
+		try
+		{
+			boolean autocommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			try (Statement stmnt = conn.createStatement())
+			{
+				lock(stmnt);
+				stmnt.executeUpdate(clear_staff_sql);
+				stmnt.executeUpdate(clear_products_sql);
+				int products = stmnt.executeUpdate(rebuild_products_sql);
+				int staff = stmnt.executeUpdate(rebuild_staff_sql);
+				conn.commit();
+				System.out.println("[INFO] Rebuilt " + products + " product and " + staff + " staff summaries.");
+				return true;
+			}
+			catch (SQLException e)
+			{
+				conn.rollback();
+				throw e;
+			}
+			finally
+			{
+				conn.setAutoCommit(autocommit);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Summaries were not rebuilt.");
+			return false;
+		}
+	}
+
+	/**
+	 * LOCK TABLE is specific to Oracle; without it the rebuild still runs but
+	 * orders placed meanwhile may be counted twice or not at all.
+	 */
+	private static void lock(Statement stmnt)
+	{
+		try
+		{
+			stmnt.execute(lock_sql);
+		}
+		catch (SQLException e)
+		{
+			System.err.println("[WARN] Could not lock the summary tables, run verify after the rebuild.");
+		}
+	}
+
+	/**
+	 * Compare the summary tables with the orders and report every row that
+	 * differs.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @return The number of rows that differ, or -1 if they could not be
+	 *         compared.
+	 */
+	public static int verify(Connection conn)
+	{
+		int drift = 0;
+		try (Statement stmnt = conn.createStatement())
+		{
+			ResultSet r = stmnt.executeQuery(verify_products_sql);
+			while (r.next())
+			{
+				++drift;
+				System.out.printf("[WARN] Product %d: summary %d, orders %d\n", r.getInt("ProductID"),
+						r.getInt("Summary"), r.getInt("Actual"));
+			}
+			r = stmnt.executeQuery(verify_staff_sql);
+			while (r.next())
+			{
+				++drift;
+				System.out.printf("[WARN] Staff %d product %d: summary %d, orders %d\n", r.getInt("StaffID"),
+						r.getInt("ProductID"), r.getInt("Summary"), r.getInt("Actual"));
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+		System.out.println("[INFO] " + (drift == 0 ? "Summaries match the orders." : drift + " summaries differ."));
+		return drift;
+	}
+}
+
+/**
+ * Cancellation of collection orders that were never picked up. All of them are
+ * cancelled in a single transaction with a few statements no matter how many
+ * there are: one SELECT ... FOR UPDATE that lists and locks them, then for
+ * every {@link #chunk} of the locked orders one MERGE that puts the quantities
+ * of their lines back into INVENTORY, one MERGE per sales summary and one
+ * DELETE that removes them (ORDER_PRODUCTS, COLLECTIONS and STAFF_ORDERS rows
+ * go with them by cascade). The transaction stays at READ COMMITTED: the
+ * statements after the SELECT name the locked OrderIDs, so an order completed
+ * or placed meanwhile is neither restocked nor deleted. A deadlock with an
+ * order being placed rolls the cancellation back and it is run again, as
+ * {@link StockLocks#retry} decides.
+ * <p>
+ * Running with <code>-Dcollections.cancel=each</code> cancels the orders one
+ * by one through {@link Order#cancelOrder(Connection)} instead.
+ */
+class StaleCollections
+{
+	/** Whether stale collections are cancelled one order at a time. */
+	static final boolean each = "each".equalsIgnoreCase(System.getProperty("collections.cancel"));
+
+	/** The days after its collection date that a collection becomes stale. */
+	static final int grace = Integer.getInteger("collections.grace", 8);
+
+	/**
+	 * The uncompleted collections due on or before a date, with their
+	 * collection dates. The CASE expression is that of the index
+	 * ORDERS_PENDING_COLLECTION_IX, which only holds the uncompleted
+	 * collections, and the date is compared with the column as it is so
+	 * COLLECTIONS_DATE_IX can be used as well.
+	 * 
+	 * @param 1
+	 *            DATE The cutoff, {@link #grace} days before the date
+	 *            relative to which all orders will be checked, see
+	 *            {@link #cutoff}.
+	 */
+	//@formatter:off
+	static final String select_sql = "SELECT o.OrderID, c.CollectionDate"
+			+ " FROM ORDERS o INNER JOIN COLLECTIONS c ON c.OrderID = o.OrderID"
+			+ " WHERE CASE WHEN o.OrderType = 'Collection' AND o.OrderCompleted = 0 THEN 1 END = 1"
+				+ " AND c.CollectionDate <= ?"
+			+ " ORDER BY o.OrderID";
+	//@formatter:on
+	/**
+	 * Same as {@link #select_sql}, locking the ORDERS rows until the
+	 * cancellation commits.
+	 * 
+	 * @param 1
+	 *            DATE The cutoff, see {@link #cutoff}.
+	 */
+	private static final String lock_sql = select_sql + " FOR UPDATE OF o.OrderCompleted";
+
+	/** The most OrderIDs bound to one statement, Oracle's limit for IN lists. */
+	private static final int chunk = 1000;
+
+	/**
+	 * @return An IN list of n bind parameters.
+	 */
+	private static String ids(int n)
+	{
+		StringBuilder sql = new StringBuilder("(");
+		for (int i = 0; i < n; ++i)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		return sql.append(')').toString();
+	}
+
+	/**
+	 * Give back the stock held by n orders.
+	 * 
+	 * @param 1..n
+	 *            OrderID: INTEGER
+	 */
+	//@formatter:off
+	private static String restock_sql(int n)
+	{
+		return "MERGE INTO INVENTORY inv"
+				+ " USING (SELECT ProductID, SUM(ProductQuantity) AS Quantity"
+					+ " FROM ORDER_PRODUCTS"
+					+ " WHERE OrderID IN " + ids(n)
+					+ " GROUP BY ProductID) held"
+				+ " ON (inv.ProductID = held.ProductID)"
+				+ " WHEN MATCHED THEN UPDATE SET inv.ProductStockAmount = inv.ProductStockAmount + held.Quantity";
+	}
+	//@formatter:on
+
+	/**
+	 * Uncount the lines of n orders from the sales summaries.
+	 * 
+	 * @param 1..n
+	 *            OrderID: INTEGER
+	 */
+	private static String[] summary_sql(int n)
+	{
+		return new String[] { SalesSummary.productDelta("op.OrderID IN " + ids(n), '-'),
+				SalesSummary.staffDelta("op.OrderID IN " + ids(n), '-') };
+	}
+
+	/**
+	 * @param 1..n
+	 *            OrderID: INTEGER
+	 */
+	private static String delete_sql(int n)
+	{
+		return "DELETE FROM ORDERS WHERE OrderID IN " + ids(n);
+	}
+
+	/**
+	 * The orders removed by {@link StaleCollections#cancel(Connection, Date)}.
+	 */
+	static class Cancelled
+	{
+		final int[] orderIDs;
+		final Date[] collectionDates;
+
+		Cancelled(int[] orderIDs, Date[] collectionDates)
+		{
+			this.orderIDs = orderIDs;
+			this.collectionDates = collectionDates;
+		}
+	}
+
+	/**
+	 * @return The last collection date of a collection that is stale on a
+	 *         date, {@link #grace} days before it.
+	 */
+	static Date cutoff(Date date)
+	{
+		return Date.valueOf(date.toLocalDate().minusDays(grace));
+	}
+
+	/**
+	 * Cancel every uncompleted collection at least {@link #grace} days older
+	 * than a date and give its stock back.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param date
+	 *            The date relative to which all orders will be checked
+	 * @return The cancelled orders (possibly none) or null if nothing was
+	 *         cancelled because of an error.
+	 */
+	public static Cancelled cancel(Connection conn, Date date)
+	{
+		try
+		{
+			boolean autocommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			try
+			{
+				for (int attempt = 0;; ++attempt)
+				{
+					try
+					{
+						Cancelled cancelled = cancelInTransaction(conn, cutoff(date));
+						conn.commit();
+						if (cancelled.orderIDs.length > 0)
+						{
+							// The restocked products are not known here.
+							ProductCache.invalidateAll();
+						}
+						return cancelled;
+					}
+					catch (SQLException e)
+					{
+						conn.rollback();
+						if (!StockLocks.retry(e, attempt))
+						{
+							throw e;
+						}
+					}
+				}
+			}
+			finally
+			{
+				conn.setAutoCommit(autocommit);
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] No orders were cancelled, all changes were rolled back.");
+			return null;
+		}
+	}
+
+	private static Cancelled cancelInTransaction(Connection conn, Date cutoff) throws SQLException
+	{
+		IntList ids = new IntList(16);
+		List<Date> dates = new ArrayList<>();
+		PreparedStatement lock_stmnt = StatementCache.prepare(conn, lock_sql);
+		lock_stmnt.setDate(1, cutoff);
+		try (ResultSet r = lock_stmnt.executeQuery())
+		{
+			while (r.next())
+			{
+				ids.add(r.getInt("OrderID"));
+				dates.add(r.getDate("CollectionDate"));
+			}
+		}
+		if (ids.isEmpty())
+		{
+			return new Cancelled(new int[0], new Date[0]);
+		}
+
+		Analytics.invalidate();
+		int[] locked = ids.toArray();
+		for (int from = 0; from < locked.length; from += chunk)
+		{
+			int n = Math.min(chunk, locked.length - from);
+			// One statement per size, most are full chunks.
+			executeUpdate(conn, restock_sql(n), locked, from, n);
+			for (String sql : summary_sql(n))
+			{
+				executeUpdate(conn, sql, locked, from, n);
+			}
+			int deleted = executeUpdate(conn, delete_sql(n), locked, from, n);
+			if (deleted != n)
+			{
+				throw new SQLException("Expected to cancel " + n + " orders but deleted " + deleted);
+			}
+		}
+		return new Cancelled(locked, dates.toArray(new Date[0]));
+	}
+
+	/**
+	 * Run a statement with n of the locked OrderIDs bound to it.
+	 * 
+	 * @return The update count.
+	 */
+	private static int executeUpdate(Connection conn, String sql, int[] ids, int from, int n) throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn, sql);
+		for (int i = 0; i < n; ++i)
+		{
+			stmnt.setInt(i + 1, ids[from + i]);
+		}
+		return stmnt.executeUpdate();
+	}
+}
+
+/**
+ * Bulk import of orders from a file, one order per line, as either CSV or JSON
+ * lines (a file ending in <code>.json</code> or <code>.jsonl</code>). A CSV line
+ * holds the columns
+ * 
+ * <pre>
+ * type,date,staff,items,due,fname,lname,house,street,city
+ * </pre>
+ * 
+ * and a JSON line is a flat object with the same keys. <code>type</code> is
+ * one of InStore, Collection or Delivery, <code>items</code> is a list of
+ * <code>ProductID:Quantity</code> pairs separated by semicolons and
+ * <code>due</code> is the collection or delivery date. The columns after
+ * <code>items</code> are left out or empty where the type of the order has no
+ * use for them. A CSV file may start with a header line.
+ * <p>
+ * A reader thread parses and validates the lines and hands them to the writer
+ * through a bounded queue, so memory use does not depend on the size of the
+ * file. The writer places <code>import.batch</code> orders (default 100) at a
+ * time with one JDBC batch per table and commits every
+ * <code>import.commit</code> orders (default 1000). If a batch fails, e.g.
+ * because a product runs out of stock, it is rolled back to a savepoint and its
+ * orders are placed again one by one so only the failing ones are rejected.
+ * Lines that are rejected are written to the rejects file together with their
+ * line number and the reason.
+ */
+class OrderImport
+{
+	static final int batch = Math.max(1, Integer.getInteger("import.batch", 100));
+	static final int commit = Math.max(batch, Integer.getInteger("import.commit", 1000));
+
+	private static final StringOptions type_check = new StringOptions("InStore", "Collection", "Delivery");
+	private static final OracleDateFormat oracle_date_check = new OracleDateFormat();
+	private static final LengthCheck name_check = new LengthCheck(1, 31);
+	private static final String[] columns = { "type", "date", "staff", "items", "due", "fname", "lname", "house",
+			"street", "city" };
+
+	/**
+	 * A validated order read from the file.
+	 */
+	static class Record
+	{
+		final String type;
+		final Date date;
+		final int staffid;
+		final int[] productIDs;
+		final int[] quantities;
+		/** The collection or delivery date, null for InStore orders. */
+		final Date due;
+		final String fname, lname, house, street, city;
+
+		Record(String type, Date date, int staffid, int[] productIDs, int[] quantities, Date due, String fname,
+				String lname, String house, String street, String city)
+		{
+			this.type = type;
+			this.date = date;
+			this.staffid = staffid;
+			this.productIDs = productIDs;
+			this.quantities = quantities;
+			this.due = due;
+			this.fname = fname;
+			this.lname = lname;
+			this.house = house;
+			this.street = street;
+			this.city = city;
+		}
+	}
+
+	/**
+	 * A line of the file on its way to the writer: either a valid order or the
+	 * reason it was rejected.
+	 */
+	private static class Row
+	{
+		final long line;
+		final String text;
+		final Record order;
+		final String error;
+
+		Row(long line, String text, Record order, String error)
+		{
+			this.line = line;
+			this.text = text;
+			this.order = order;
+			this.error = error;
+		}
+	}
+
+	/** Marks the end of the file. */
+	private static final Row end = new Row(-1, null, null, null);
+
+	private final Connection conn;
+	private final PrintWriter rejects;
+	private final List<Row> pending = new ArrayList<>(batch);
+	private long imported = 0, rejected = 0;
+	private int uncommitted = 0;
+
+	private OrderImport(Connection conn, PrintWriter rejects)
+	{
+		this.conn = conn;
+		this.rejects = rejects;
+	}
+
+	/**
+	 * Import every order of a file.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param path
+	 *            The file to import.
+	 * @param rejectsPath
+	 *            Where the rejected lines are written to.
+	 * @return True if the whole file was read; orders committed before an
+	 *         error stay in the database.
+	 */
+	public static boolean run(Connection conn, String path, String rejectsPath)
+	{
+		final boolean json = path.endsWith(".json") || path.endsWith(".jsonl");
+		final BlockingQueue<Row> queue = new ArrayBlockingQueue<>(4 * batch);
+		final IOException[] failure = new IOException[1];
+		Thread reader = new Thread(() -> read(path, json, queue, failure), "import-reader");
+		reader.setDaemon(true);
+
+		try (PrintWriter rejects = new PrintWriter(Files.newBufferedWriter(Paths.get(rejectsPath))))
+		{
+			OrderImport writer = new OrderImport(conn, rejects);
+			boolean autocommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			reader.start();
+			try
+			{
+				writer.write(queue);
+			}
+			catch (SQLException e)
+			{
+				conn.rollback();
+				throw e;
+			}
+			finally
+			{
+				reader.interrupt();
+				conn.setAutoCommit(autocommit);
+				ProductCache.invalidateAll();
+			}
+			System.out.println("[INFO] Imported " + writer.imported + " orders, rejected " + writer.rejected
+					+ " (see " + rejectsPath + ")");
+		}
+		catch (IOException | SQLException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Import stopped, orders after the last commit were rolled back.");
+			return false;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (failure[0] != null)
+		{
+			failure[0].printStackTrace();
+			System.err.println("[ERROR] Could not read all of " + path);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The reader stage: parse and validate every line and queue it.
+	 */
+	private static void read(String path, boolean json, BlockingQueue<Row> queue, IOException[] failure)
+	{
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8))
+		{
+			String text;
+			long line = 0;
+			while ((text = in.readLine()) != null)
+			{
+				++line;
+				if (text.trim().isEmpty() || line == 1 && !json && text.trim().startsWith("type,"))
+				{
+					continue;
+				}
+				Row row;
+				try
+				{
+					row = new Row(line, text, parse(json ? splitJson(text) : splitCsv(text)), null);
+				}
+				catch (IllegalArgumentException | DateTimeException e)
+				{
+					row = new Row(line, text, null, e.getMessage());
+				}
+				queue.put(row);
+			}
+		}
+		catch (IOException e)
+		{
+			failure[0] = e;
+		}
+		catch (InterruptedException e)
+		{
+			return;
+		}
+		try
+		{
+			queue.put(end);
+		}
+		catch (InterruptedException e)
+		{
+			// The writer has given up already.
+		}
+	}
+
+	/**
+	 * The writer stage: place the queued orders batch by batch.
+	 */
+	private void write(BlockingQueue<Row> queue) throws SQLException, InterruptedException
+	{
+		for (Row row = queue.take(); row != end; row = queue.take())
+		{
+			if (row.error != null)
+			{
+				reject(row, row.error);
+				continue;
+			}
+			pending.add(row);
+			if (pending.size() == batch)
+			{
+				flush();
+			}
+		}
+		flush();
+		commit();
+	}
+
+	private void commit() throws SQLException
+	{
+		conn.commit();
+		uncommitted = 0;
+		ProductCache.invalidateAll();
+	}
+
+	private void flush() throws SQLException
+	{
+		if (pending.isEmpty())
+		{
+			return;
+		}
+		Savepoint savepoint = conn.setSavepoint();
+		String error;
+		try
+		{
+			error = insert(pending);
+		}
+		catch (SQLException e)
+		{
+			error = e.getMessage();
+		}
+		if (error == null)
+		{
+			imported += pending.size();
+		}
+		else
+		{
+			conn.rollback(savepoint);
+			replay();
+		}
+		uncommitted += pending.size();
+		pending.clear();
+		if (uncommitted >= commit)
+		{
+			commit();
+		}
+	}
+
+	/**
+	 * Place the orders of a failed batch one at a time.
+	 */
+	private void replay() throws SQLException
+	{
+		for (Row row : pending)
+		{
+			Savepoint savepoint = conn.setSavepoint();
+			String error;
+			try
+			{
+				error = insert(Arrays.asList(row));
+			}
+			catch (SQLException e)
+			{
+				error = e.getMessage();
+			}
+			if (error == null)
+			{
+				++imported;
+			}
+			else
+			{
+				conn.rollback(savepoint);
+				reject(row, error);
+			}
+		}
+	}
+
+	/**
+	 * Insert the rows of a batch of orders with one JDBC batch per table.
+	 * 
+	 * @return null if every order was placed or why the batch failed.
+	 */
+	private String insert(List<Row> rows) throws SQLException
+	{
+		PreparedStatement orders_stmnt = StatementCache.prepare(conn, Order.insert_sql);
+		PreparedStatement items_stmnt = StatementCache.prepare(conn, OrderItems.insert_sql);
+		PreparedStatement stock_stmnt = StatementCache.prepare(conn, Product.reserve_sql);
+		PreparedStatement collection_stmnt = StatementCache.prepare(conn, Collection.insert_sql);
+		PreparedStatement delivery_stmnt = StatementCache.prepare(conn, Delivery.insert_sql);
+		PreparedStatement link_stmnt = StatementCache.prepare(conn, StaffOrders.insert_sql);
+		try
+		{
+			IntList stockProducts = new IntList(rows.size() * 2);
+			boolean collections = false, deliveries = false;
+			for (Row row : rows)
+			{
+				Record o = row.order;
+				int ordid = OrderIdAllocator.next(conn);
+				orders_stmnt.setInt(1, ordid);
+				orders_stmnt.setString(2, o.type);
+				orders_stmnt.setInt(3, o.type.equals("InStore") ? 1 : 0);
+				orders_stmnt.setDate(4, o.date);
+				orders_stmnt.addBatch();
+				for (int i = 0; i < o.productIDs.length; ++i)
+				{
+					items_stmnt.setInt(1, ordid);
+					items_stmnt.setInt(2, o.productIDs[i]);
+					items_stmnt.setInt(3, o.quantities[i]);
+					items_stmnt.addBatch();
+
+					stock_stmnt.setInt(1, o.quantities[i]);
+					stock_stmnt.setInt(2, o.productIDs[i]);
+					stock_stmnt.setInt(3, o.quantities[i]);
+					stock_stmnt.addBatch();
+					stockProducts.add(o.productIDs[i]);
+				}
+				if (o.type.equals("Collection"))
+				{
+					collection_stmnt.setInt(1, ordid);
+					collection_stmnt.setString(2, o.fname);
+					collection_stmnt.setString(3, o.lname);
+					collection_stmnt.setDate(4, o.due);
+					collection_stmnt.addBatch();
+					collections = true;
+				}
+				else if (o.type.equals("Delivery"))
+				{
+					delivery_stmnt.setInt(1, ordid);
+					delivery_stmnt.setString(2, o.fname);
+					delivery_stmnt.setString(3, o.lname);
+					delivery_stmnt.setString(4, o.house);
+					delivery_stmnt.setString(5, o.street);
+					delivery_stmnt.setString(6, o.city);
+					delivery_stmnt.setDate(7, o.due);
+					delivery_stmnt.addBatch();
+					deliveries = true;
+				}
+				link_stmnt.setInt(1, o.staffid);
+				link_stmnt.setInt(2, ordid);
+				link_stmnt.addBatch();
+				SalesSummary.addBatch(conn, ordid);
+			}
+			orders_stmnt.executeBatch();
+			items_stmnt.executeBatch();
+			int[] counts = stock_stmnt.executeBatch();
+			for (int i = 0; i < counts.length; ++i)
+			{
+				if (counts[i] == 0)
+				{
+					return "not enough stock of product " + stockProducts.get(i);
+				}
+			}
+			if (collections)
+			{
+				collection_stmnt.executeBatch();
+			}
+			if (deliveries)
+			{
+				delivery_stmnt.executeBatch();
+			}
+			link_stmnt.executeBatch();
+			SalesSummary.executeBatch(conn);
+			return null;
+		}
+		finally
+		{
+			orders_stmnt.clearBatch();
+			items_stmnt.clearBatch();
+			stock_stmnt.clearBatch();
+			collection_stmnt.clearBatch();
+			delivery_stmnt.clearBatch();
+			link_stmnt.clearBatch();
+			SalesSummary.clearBatch(conn);
+		}
+	}
+
+	private void reject(Row row, String reason)
+	{
+		++rejected;
+		rejects.println(row.line + "\t" + reason.replace('\n', ' ') + "\t" + row.text);
+	}
+
+	/**
+	 * Validate the fields of one line.
+	 * 
+	 * @param f
+	 *            The fields in the order of {@link #columns}, missing ones
+	 *            empty.
+	 * @throws IllegalArgumentException
+	 *             Why the line is not a valid order.
+	 */
+	static Record parse(String[] f)
+	{
+		String type = f[0];
+		if (!type_check.verify(type))
+		{
+			throw new IllegalArgumentException("unknown order type");
+		}
+		if (!oracle_date_check.verify(f[1]) || !type.equals("InStore") && !oracle_date_check.verify(f[4]))
+		{
+			throw new IllegalArgumentException("invalid date, format: D-Mon-YY");
+		}
+		int staffid;
+		try
+		{
+			staffid = Integer.parseInt(f[2]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("invalid staff id");
+		}
+		int[][] items = OrderPlacement.parseItems(f[3], ';');
+
+		int names = type.equals("InStore") ? 0 : type.equals("Collection") ? 2 : 5;
+		for (int i = 5; i < 5 + names; ++i)
+		{
+			if (!name_check.verify(f[i]))
+			{
+				throw new IllegalArgumentException(columns[i] + " must be between 1 and 30 characters");
+			}
+		}
+		Date date = OracleDateFormat.stringToDate(f[1]);
+		Date due = names == 0 ? null : OracleDateFormat.stringToDate(f[4]);
+		return new Record(type, date, staffid, items[0], items[1], due, f[5], f[6], f[7], f[8], f[9]);
+	}
+
+	/**
+	 * Split a CSV line into {@link #columns}. Fields may be quoted with double
+	 * quotes, a quote inside a quoted field is written twice.
+	 */
+	static String[] splitCsv(String line)
+	{
+		String[] f = new String[columns.length];
+		Arrays.fill(f, "");
+		StringBuilder field = new StringBuilder();
+		int n = 0;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i)
+		{
+			char c = line.charAt(i);
+			if (quoted)
+			{
+				if (c != '"')
+				{
+					field.append(c);
+				}
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+				{
+					field.append(c);
+					++i;
+				}
+				else
+				{
+					quoted = false;
+				}
+			}
+			else if (c == '"')
+			{
+				quoted = true;
+			}
+			else if (c == ',')
+			{
+				n = store(f, n, field);
+			}
+			else
+			{
+				field.append(c);
+			}
+		}
+		if (quoted)
+		{
+			throw new IllegalArgumentException("unterminated quote");
+		}
+		store(f, n, field);
+		return f;
+	}
+
+	private static int store(String[] f, int n, StringBuilder field)
+	{
+		if (n == f.length)
+		{
+			throw new IllegalArgumentException("too many columns");
+		}
+		f[n] = field.toString().trim();
+		field.setLength(0);
+		return n + 1;
+	}
+
+	/**
+	 * Read the fields of a flat JSON object into {@link #columns}. Values are
+	 * strings or numbers; unknown keys are not allowed.
+	 */
+	static String[] splitJson(String line)
+	{
+		String[] f = new String[columns.length];
+		Arrays.fill(f, "");
+		int[] pos = { skipSpace(line, 0) };
+		expect(line, pos, '{');
+		if (peek(line, pos) == '}')
+		{
+			++pos[0];
+		}
+		else
+		{
+			for (;;)
+			{
+				String key = jsonString(line, pos);
+				expect(line, pos, ':');
+				int column = Arrays.asList(columns).indexOf(key);
+				if (column < 0)
+				{
+					throw new IllegalArgumentException("unknown key " + key);
+				}
+				if (peek(line, pos) == '"')
+				{
+					f[column] = jsonString(line, pos).trim();
+				}
+				else
+				{
+					int start = pos[0];
+					while (pos[0] < line.length() && "-+.0123456789eE".indexOf(line.charAt(pos[0])) >= 0)
+					{
+						++pos[0];
+					}
+					if (start == pos[0])
+					{
+						throw new IllegalArgumentException("value of " + key + " must be a string or a number");
+					}
+					f[column] = line.substring(start, pos[0]);
+				}
+				char c = peek(line, pos);
+				++pos[0];
+				if (c == '}')
+				{
+					break;
+				}
+				if (c != ',')
+				{
+					throw new IllegalArgumentException("malformed JSON");
+				}
+			}
+		}
+		if (skipSpace(line, pos[0]) != line.length())
+		{
+			throw new IllegalArgumentException("malformed JSON");
+		}
+		return f;
+	}
+
+	private static String jsonString(String s, int[] pos)
+	{
+		expect(s, pos, '"');
+		StringBuilder sb = new StringBuilder();
+		for (int i = pos[0]; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+			if (c == '"')
+			{
+				pos[0] = i + 1;
+				return sb.toString();
+			}
+			if (c == '\\' && ++i < s.length())
+			{
+				c = s.charAt(i);
+				switch (c)
+				{
+				case 'n':
+					c = '\n';
+					break;
+				case 't':
+					c = '\t';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				case 'b':
+					c = '\b';
+					break;
+				case 'f':
+					c = '\f';
+					break;
+				case 'u':
+					if (i + 4 >= s.length())
+					{
+						throw new IllegalArgumentException("malformed JSON");
+					}
+					c = (char) Integer.parseInt(s.substring(i + 1, i + 5), 16);
+					i += 4;
+					break;
+				default:
+					// '"', '\\' and '/' stand for themselves.
+				}
+			}
+			sb.append(c);
+		}
+		throw new IllegalArgumentException("unterminated string");
+	}
+
+	private static void expect(String s, int[] pos, char c)
+	{
+		if (peek(s, pos) != c)
+		{
+			throw new IllegalArgumentException("malformed JSON, expected " + c);
+		}
+		pos[0] = skipSpace(s, pos[0] + 1);
+	}
+
+	/** The next character that is not white space, or 0 at the end. */
+	private static char peek(String s, int[] pos)
+	{
+		pos[0] = skipSpace(s, pos[0]);
+		return pos[0] < s.length() ? s.charAt(pos[0]) : 0;
+	}
+
+	private static int skipSpace(String s, int i)
+	{
+		while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+		{
+			++i;
+		}
+		return i;
+	}
+}
+
+/**
+ * Random data for every table, a Java version of makeranddata.py that scales
+ * to millions of orders. A scale of 1 gives the volumes of the script (10
+ * staff, 100 products and 300 orders split evenly between InStore, Collection
+ * and Delivery); the type mix, the range of order dates, the number of units
+ * per order and how unevenly orders are spread over the staff can be changed
+ * with the methods below.
+ * <p>
+ * Orders are made in chunks of {@link #chunk} orders and every chunk draws
+ * from its own random numbers, so the same seed gives the same data whatever
+ * the number of threads. The rows go either straight into the database with
+ * JDBC batches ({@link #load}) or into CSV files with SQL*Loader control files
+ * ({@link #write}).
+ */
+class DataGenerator
+{
+	private static final String[] types = { "InStore", "Collection", "Delivery" };
+	/** Orders per chunk, which is also the size of the JDBC batches. */
+	private static final int chunk = 1000;
+	/** The tables in the order they must be loaded. */
+	private static final String[] tables = { "STAFF", "INVENTORY", "ORDERS", "COLLECTIONS", "DELIVERIES",
+			"STAFF_ORDERS", "ORDER_PRODUCTS" };
+
+	private final int staff, products, orders;
+	private final long seed;
+	/** The running totals of the weights of the order types. */
+	private int[] mix = { 1, 2, 3 };
+	private long firstDay = LocalDate.of(2001, 1, 1).toEpochDay(), days = 20 * 365;
+	private int minUnits = 1;
+	private Skew units = new Skew(10, 0), staffSkew;
+	private double pending = 0.5;
+
+	/**
+	 * @param scale
+	 *            Multiplies the volumes of makeranddata.py.
+	 * @param seed
+	 *            Seed of the random numbers so the same data can be made again.
+	 */
+	DataGenerator(int scale, long seed)
+	{
+		this(10 * scale, 100 * scale, 300 * scale, seed);
+	}
+
+	DataGenerator(int staff, int products, int orders, long seed)
+	{
+		if (staff < 1 || products < 1 || orders < 0)
+		{
+			throw new IllegalArgumentException("There must be at least one member of staff and one product.");
+		}
+		this.staff = staff;
+		this.products = products;
+		this.orders = orders;
+		this.seed = seed;
+		this.staffSkew = new Skew(staff, 0);
+	}
+
+	/**
+	 * A generator configured by the system properties generate.mix,
+	 * generate.dates, generate.units, generate.units.skew, generate.staff.skew,
+	 * generate.pending and generate.seed (see the README).
+	 */
+	static DataGenerator fromProperties(int staff, int products, int orders)
+	{
+		DataGenerator data = new DataGenerator(staff, products, orders, Long.getLong("generate.seed", 258));
+		int[] mix = ints(System.getProperty("generate.mix", "1,1,1"), 3);
+		String[] dates = System.getProperty("generate.dates", "2001-01-01,2020-12-31").split(",");
+		int[] units = ints(System.getProperty("generate.units", "1,10"), 2);
+		data.mix(mix[0], mix[1], mix[2]);
+		try
+		{
+			data.dates(LocalDate.parse(dates[0].trim()), LocalDate.parse(dates[dates.length - 1].trim()));
+		}
+		catch (DateTimeException e)
+		{
+			throw new IllegalArgumentException("generate.dates must be two dates as yyyy-mm-dd.");
+		}
+		data.units(units[0], units[1], Double.parseDouble(System.getProperty("generate.units.skew", "0")));
+		data.staffSkew(Double.parseDouble(System.getProperty("generate.staff.skew", "0")));
+		data.pending(Double.parseDouble(System.getProperty("generate.pending", "0.5")));
+		return data;
+	}
+
+	private static int[] ints(String s, int n)
+	{
+		String[] f = s.split(",");
+		if (f.length != n)
+		{
+			throw new IllegalArgumentException(s + " must be " + n + " numbers separated by commas.");
+		}
+		int[] values = new int[n];
+		for (int i = 0; i < n; ++i)
+		{
+			values[i] = Integer.parseInt(f[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Relative weights of the order types, e.g. 8, 1, 1 for mostly InStore
+	 * orders.
+	 */
+	DataGenerator mix(int instore, int collection, int delivery)
+	{
+		if (instore < 0 || collection < 0 || delivery < 0 || instore + collection + delivery == 0)
+		{
+			throw new IllegalArgumentException("The weights of the order types must be non-negative.");
+		}
+		this.mix = new int[] { instore, instore + collection, instore + collection + delivery };
+		return this;
+	}
+
+	/**
+	 * Orders are placed on a day between from and to, inclusive. Collections
+	 * and deliveries are due up to 14 days after the order.
+	 */
+	DataGenerator dates(LocalDate from, LocalDate to)
+	{
+		if (to.isBefore(from))
+		{
+			throw new IllegalArgumentException("The last day is before the first.");
+		}
+		this.firstDay = from.toEpochDay();
+		this.days = to.toEpochDay() - firstDay + 1;
+		return this;
+	}
+
+	/**
+	 * Every order has between min and max units, inclusive, split into lines of
+	 * distinct products.
+	 *
+	 * @param skew
+	 *            0 for every size being equally likely, larger values make
+	 *            small orders more common (Zipf exponent).
+	 */
+	DataGenerator units(int min, int max, double skew)
+	{
+		if (min < 1 || max < min)
+		{
+			throw new IllegalArgumentException("An order must have at least one unit.");
+		}
+		this.minUnits = min;
+		this.units = new Skew(max - min + 1, skew);
+		return this;
+	}
+
+	/**
+	 * @param skew
+	 *            0 for orders spread evenly over the staff, larger values give
+	 *            most orders to the first few members of staff (Zipf exponent).
+	 */
+	DataGenerator staffSkew(double skew)
+	{
+		this.staffSkew = new Skew(staff, skew);
+		return this;
+	}
+
+	/**
+	 * @param pending
+	 *            The share of Collection and Delivery orders that are not
+	 *            completed.
+	 */
+	DataGenerator pending(double pending)
+	{
+		if (pending < 0 || pending > 1)
+		{
+			throw new IllegalArgumentException("The share of pending orders must be between 0 and 1.");
+		}
+		this.pending = pending;
+		return this;
+	}
+
+	public int orders()
+	{
+		return orders;
+	}
+
+	public int products()
+	{
+		return products;
+	}
+
+	public int staff()
+	{
+		return staff;
+	}
+
+	/**
+	 * Insert the data into empty tables on one connection.
+	 *
+	 * @param conn
+	 *            An open database connection
+	 */
+	public void load(Connection conn) throws SQLException
+	{
+		boolean autocommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (JdbcRows out = new JdbcRows(conn))
+		{
+			fixed(out);
+			for (int c = 0; c * chunk < orders; ++c)
+			{
+				chunk(c, out);
+			}
+		}
+		catch (SQLException e)
+		{
+			conn.rollback();
+			throw e;
+		}
+		catch (IOException e)
+		{
+			// Not thrown by JdbcRows
+			throw new SQLException(e);
+		}
+		finally
+		{
+			conn.setAutoCommit(autocommit);
+		}
+		finish(conn);
+	}
+
+	/**
+	 * Insert the data into empty tables with one thread per connection. The
+	 * threads take chunks of orders in turn and write all the rows of a chunk
+	 * (the orders first, then the rows that refer to them) in one transaction.
+	 *
+	 * @param pool
+	 *            Gives each thread its connection
+	 * @param threads
+	 *            The number of threads, at most the size of the pool.
+	 */
+	public void load(ConnectionPool pool, int threads) throws SQLException, InterruptedException
+	{
+		Connection first = pool.borrow();
+		try
+		{
+			boolean autocommit = first.getAutoCommit();
+			first.setAutoCommit(false);
+			try (JdbcRows out = new JdbcRows(first))
+			{
+				fixed(out);
+			}
+			catch (IOException e)
+			{
+				// Not thrown by JdbcRows
+				throw new SQLException(e);
+			}
+			finally
+			{
+				first.setAutoCommit(autocommit);
+			}
+		}
+		finally
+		{
+			pool.release(first);
+		}
+		try
+		{
+			inParallel(threads, w -> rows(pool));
+		}
+		catch (IOException e)
+		{
+			// Not thrown by JdbcRows
+			throw new SQLException(e);
+		}
+		Connection conn = pool.borrow();
+		try
+		{
+			finish(conn);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * Rows written on a connection of the pool, which is given back when they
+	 * are closed.
+	 */
+	private static JdbcRows rows(ConnectionPool pool) throws SQLException, InterruptedException
+	{
+		final Connection conn = pool.borrow();
+		final boolean autocommit = conn.getAutoCommit();
+		try
+		{
+			conn.setAutoCommit(false);
+			return new JdbcRows(conn)
+			{
+				@Override
+				public void close() throws SQLException
+				{
+					try
+					{
+						super.close();
+					}
+					finally
+					{
+						conn.setAutoCommit(autocommit);
+						pool.release(conn);
+					}
+				}
+			};
+		}
+		catch (SQLException e)
+		{
+			conn.setAutoCommit(autocommit);
+			pool.release(conn);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the data as CSV files into a directory, one file per table and
+	 * thread, with a SQL*Loader control file per table that loads them on the
+	 * direct path. finish.sql then restarts seq_ord and rebuilds the sales
+	 * summaries.
+	 */
+	public void write(String directory, int threads) throws IOException, InterruptedException
+	{
+		final Path dir = Paths.get(directory);
+		Files.createDirectories(dir);
+		try (CsvRows out = new CsvRows(dir, "0"))
+		{
+			fixed(out);
+		}
+		catch (SQLException e)
+		{
+			// CsvRows only throws IOException.
+			throw new IOException(e);
+		}
+		try
+		{
+			inParallel(threads, w -> new CsvRows(dir, Integer.toString(w + 1)));
+		}
+		catch (SQLException e)
+		{
+			throw new IOException(e);
+		}
+		for (String table : tables)
+		{
+			List<String> lines = new ArrayList<>();
+			lines.add("OPTIONS (DIRECT=TRUE)");
+			lines.add("LOAD DATA");
+			for (int w = 0; w <= threads; ++w)
+			{
+				// A thread writes no file for a table it had no rows for.
+				if (Files.exists(dir.resolve(table + "_" + w + ".csv")))
+				{
+					lines.add("INFILE '" + table + "_" + w + ".csv'");
+				}
+			}
+			if (lines.size() == 2)
+			{
+				continue;
+			}
+			lines.add("APPEND INTO TABLE " + table);
+			lines.add("REENABLE DISABLED_CONSTRAINTS");
+			lines.add("FIELDS TERMINATED BY ','");
+			lines.add("(" + CsvRows.columns(table) + ")");
+			Files.write(dir.resolve(table + ".ctl"), lines, StandardCharsets.UTF_8);
+		}
+		Files.write(dir.resolve("finish.sql"),
+				Arrays.asList("-- Run from the directory of rebuildsummary.sql after loading "
+								+ String.join(", ", tables) + " in this order.",
+						"ALTER SEQUENCE seq_ord RESTART START WITH " + orders + ";", "START rebuildsummary;"),
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Opens the output of one thread.
+	 */
+	private interface RowsFactory
+	{
+		Rows open(int thread) throws SQLException, IOException, InterruptedException;
+	}
+
+	/**
+	 * Run threads that take the chunks of orders in turn.
+	 */
+	private void inParallel(int threads, RowsFactory factory)
+			throws SQLException, IOException, InterruptedException
+	{
+		final AtomicInteger next = new AtomicInteger();
+		final int chunks = (orders + chunk - 1) / chunk;
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<Void>> done = new ArrayList<>();
+			for (int w = 0; w < threads; ++w)
+			{
+				final int thread = w;
+				done.add(workers.submit(() -> {
+					try (Rows out = factory.open(thread))
+					{
+						for (int c = next.getAndIncrement(); c < chunks; c = next.getAndIncrement())
+						{
+							chunk(c, out);
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> f : done)
+			{
+				try
+				{
+					f.get();
+				}
+				catch (ExecutionException e)
+				{
+					// Stop the other threads at their next chunk.
+					next.set(chunks);
+					if (e.getCause() instanceof SQLException)
+					{
+						throw (SQLException) e.getCause();
+					}
+					if (e.getCause() instanceof IOException)
+					{
+						throw (IOException) e.getCause();
+					}
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Restart seq_ord after the generated OrderIDs and rebuild the sales
+	 * summaries.
+	 */
+	private void finish(Connection conn) throws SQLException
+	{
+		try (Statement stmnt = conn.createStatement())
+		{
+			try
+			{
+				stmnt.execute("ALTER SEQUENCE seq_ord RESTART START WITH " + orders);
+			}
+			catch (SQLException e)
+			{
+				// The syntax of H2 and of Oracle before 18c, which may
+				// not support either.
+				stmnt.execute("ALTER SEQUENCE seq_ord RESTART WITH " + orders);
+			}
+		}
+		catch (SQLException e)
+		{
+			System.err.println("[WARN] Could not restart seq_ord, new orders may reuse the generated OrderIDs.");
+		}
+		StaffDirectory.invalidate();
+		SalesSummary.rebuild(conn);
+	}
+
+	/**
+	 * The staff and the products.
+	 */
+	private void fixed(Rows out) throws SQLException, IOException
+	{
+		SplittableRandom random = new SplittableRandom(seed);
+		for (int i = 0; i < staff; ++i)
+		{
+			out.staff(i, name(random, 10), name(random, 10));
+		}
+		for (int i = 0; i < products; ++i)
+		{
+			out.product(i, name(random, 15), 5 + random.nextInt(4996), 200 + random.nextInt(301));
+		}
+		out.endChunk();
+	}
+
+	/**
+	 * The orders of one chunk and everything that refers to them.
+	 */
+	private void chunk(int c, Rows out) throws SQLException, IOException
+	{
+		// The seed of a chunk goes through one step of SplittableRandom so
+		// that chunks do not draw from overlapping sequences.
+		SplittableRandom random = new SplittableRandom(new SplittableRandom(seed + 1 + c).nextLong());
+		int end = Math.min(orders, (c + 1) * chunk);
+		for (int i = c * chunk; i < end; ++i)
+		{
+			int t = random.nextInt(mix[2]);
+			String type = types[t < mix[0] ? 0 : t < mix[1] ? 1 : 2];
+			LocalDate placed = LocalDate.ofEpochDay(firstDay + random.nextLong(days));
+			Date due = Date.valueOf(placed.plusDays(random.nextInt(15)));
+			out.order(i, type, type.equals("InStore") || random.nextDouble() >= pending ? 1 : 0,
+					Date.valueOf(placed));
+			if (type.equals("Collection"))
+			{
+				out.collection(i, name(random, 10), name(random, 10), due);
+			}
+			else if (type.equals("Delivery"))
+			{
+				out.delivery(i, name(random, 10), name(random, 10), name(random, 5) + " House",
+						name(random, 5) + " St", name(random, 5) + " City", due);
+			}
+			out.link(staffSkew.next(random), i);
+
+			// Distinct products, split into lines of random quantities.
+			int units = minUnits + this.units.next(random);
+			int[] basket = sample(random, units);
+			for (int j = 0; units > 0; ++j)
+			{
+				int quantity = j == basket.length - 1 ? units : 1 + random.nextInt(units);
+				out.line(i, basket[j], quantity);
+				units -= quantity;
+			}
+		}
+		out.endChunk();
+	}
+
+	/**
+	 * @return k distinct ProductIDs.
+	 */
+	private int[] sample(SplittableRandom random, int k)
+	{
+		int[] basket = new int[Math.min(k, products)];
+		IntIntMap taken = new IntIntMap(basket.length);
+		for (int i = 0; i < basket.length;)
+		{
+			int prodid = random.nextInt(products);
+			if (!taken.containsKey(prodid))
+			{
+				taken.put(prodid, i);
+				basket[i++] = prodid;
+			}
+		}
+		return basket;
+	}
+
+	private static String name(SplittableRandom random, int n)
+	{
+		char[] name = new char[n];
+		name[0] = (char) ('A' + random.nextInt(26));
+		for (int i = 1; i < n; ++i)
+		{
+			name[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(name);
+	}
+
+	/**
+	 * Picks one of n values, 0 being the most likely when the exponent is
+	 * positive: value k has a weight of 1 / (k + 1)^exponent.
+	 */
+	private static final class Skew
+	{
+		private final int n;
+		/** Cumulative weights, null when every value is equally likely. */
+		private final double[] cdf;
+
+		Skew(int n, double exponent)
+		{
+			if (exponent < 0)
+			{
+				throw new IllegalArgumentException("A skew must be non-negative.");
+			}
+			this.n = n;
+			if (exponent == 0)
+			{
+				this.cdf = null;
+				return;
+			}
+			this.cdf = new double[n];
+			double total = 0;
+			for (int k = 0; k < n; ++k)
+			{
+				total += 1 / Math.pow(k + 1, exponent);
+				cdf[k] = total;
+			}
+			for (int k = 0; k < n; ++k)
+			{
+				cdf[k] /= total;
+			}
+		}
+
+		int next(SplittableRandom random)
+		{
+			if (cdf == null)
+			{
+				return random.nextInt(n);
+			}
+			int k = Arrays.binarySearch(cdf, random.nextDouble());
+			return Math.min(n - 1, k < 0 ? -k - 1 : k);
+		}
+	}
+
+	/**
+	 * Where the generated rows go.
+	 */
+	private interface Rows extends AutoCloseable
+	{
+		void staff(int id, String fname, String lname) throws SQLException, IOException;
+
+		void product(int id, String desc, int price, int stock) throws SQLException, IOException;
+
+		void order(int id, String type, int completed, Date placed) throws SQLException, IOException;
+
+		void collection(int id, String fname, String lname, Date date) throws SQLException, IOException;
+
+		void delivery(int id, String fname, String lname, String house, String street, String city, Date date)
+				throws SQLException, IOException;
+
+		void link(int staffid, int orderid) throws SQLException, IOException;
+
+		void line(int orderid, int prodid, int quantity) throws SQLException, IOException;
+
+		/**
+		 * Write out the rows given since the last call.
+		 */
+		void endChunk() throws SQLException, IOException;
+
+		@Override
+		void close() throws SQLException, IOException;
+	}
+
+	/**
+	 * Adds the rows to JDBC batches, one per table, which are executed in the
+	 * order of the foreign keys and committed at the end of every chunk.
+	 */
+	private static class JdbcRows implements Rows
+	{
+		private final Connection conn;
+		private final PreparedStatement[] stmnts;
+		private final int[] pending;
+
+		JdbcRows(Connection conn) throws SQLException
+		{
+			this.conn = conn;
+			String[] sql = { "INSERT INTO STAFF VALUES (?, ?, ?)", "INSERT INTO INVENTORY VALUES (?, ?, ?, ?)",
+					Order.insert_sql, Collection.insert_sql, Delivery.insert_sql, StaffOrders.insert_sql,
+					OrderItems.insert_sql };
+			this.stmnts = new PreparedStatement[sql.length];
+			this.pending = new int[sql.length];
+			try
+			{
+				for (int i = 0; i < sql.length; ++i)
+				{
+					stmnts[i] = conn.prepareStatement(sql[i]);
+				}
+			}
+			catch (SQLException e)
+			{
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Add the current parameters of a statement to its batch. Batches of
+		 * the parent tables are executed when they are full; those of the other
+		 * tables wait for the end of the chunk so that their orders exist.
+		 */
+		private void add(int table) throws SQLException
+		{
+			stmnts[table].addBatch();
+			if (++pending[table] == chunk && table < 2)
+			{
+				stmnts[table].executeBatch();
+				pending[table] = 0;
+			}
+		}
+
+		@Override
+		public void staff(int id, String fname, String lname) throws SQLException
+		{
+			PreparedStatement stmnt = stmnts[0];
+			stmnt.setInt(1, id);
+			stmnt.setString(2, fname);
+			stmnt.setString(3, lname);
+			add(0);
+		}
+
+		@Override
+		public void product(int id, String desc, int price, int stock) throws SQLException
+		{
+			PreparedStatement stmnt = stmnts[1];
+			stmnt.setInt(1, id);
+			stmnt.setString(2, desc);
+			stmnt.setInt(3, price);
+			stmnt.setInt(4, stock);
+			add(1);
+		}
+
+		@Override
+		public void order(int id, String type, int completed, Date placed) throws SQLException
+		{
+			PreparedStatement stmnt = stmnts[2];
+			stmnt.setInt(1, id);
+			stmnt.setString(2, type);
+			stmnt.setInt(3, completed);
+			stmnt.setDate(4, placed);
+			add(2);
+		}
+
+		@Override
+		public void collection(int id, String fname, String lname, Date date) throws SQLException
+		{
+			PreparedStatement stmnt = stmnts[3];
+			stmnt.setInt(1, id);
+			stmnt.setString(2, fname);
+			stmnt.setString(3, lname);
+			stmnt.setDate(4, date);
+			add(3);
+		}
+
+		@Override
+		public void delivery(int id, String fname, String lname, String house, String street, String city,
+				Date date) throws SQLException
+		{
+			PreparedStatement stmnt = stmnts[4];
+			stmnt.setInt(1, id);
+			stmnt.setString(2, fname);
+			stmnt.setString(3, lname);
+			stmnt.setString(4, house);
+			stmnt.setString(5, street);
+			stmnt.setString(6, city);
+			stmnt.setDate(7, date);
+			add(4);
+		}
+
+		@Override
+		public void link(int staffid, int orderid) throws SQLException
+		{
+			stmnts[5].setInt(1, staffid);
+			stmnts[5].setInt(2, orderid);
+			add(5);
+		}
+
+		@Override
+		public void line(int orderid, int prodid, int quantity) throws SQLException
+		{
+			PreparedStatement stmnt = stmnts[6];
+			stmnt.setInt(1, orderid);
+			stmnt.setInt(2, prodid);
+			stmnt.setInt(3, quantity);
+			add(6);
+		}
+
+		@Override
+		public void endChunk() throws SQLException
+		{
+			for (int i = 0; i < stmnts.length; ++i)
+			{
+				if (pending[i] > 0)
+				{
+					stmnts[i].executeBatch();
+					pending[i] = 0;
+				}
+			}
+			conn.commit();
+		}
+
+		@Override
+		public void close() throws SQLException
+		{
+			for (PreparedStatement stmnt : stmnts)
+			{
+				if (stmnt != null)
+				{
+					stmnt.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows of every table to its own CSV file. Dates are written as
+	 * yyyy-mm-dd, which the control files of {@link DataGenerator#write} expect.
+	 */
+	private static class CsvRows implements Rows
+	{
+		private final Path dir;
+		private final String suffix;
+		private final Map<String, PrintWriter> files = new HashMap<>();
+
+		CsvRows(Path dir, String suffix)
+		{
+			this.dir = dir;
+			this.suffix = suffix;
+		}
+
+		/**
+		 * The columns of a table for a control file.
+		 */
+		static String columns(String table)
+		{
+			switch (table)
+			{
+			case "STAFF":
+				return "StaffID, FName, LName";
+			case "INVENTORY":
+				return "ProductID, ProductDesc, ProductPrice, ProductStockAmount";
+			case "ORDERS":
+				return "OrderID, OrderType, OrderCompleted, OrderPlaced DATE 'YYYY-MM-DD'";
+			case "COLLECTIONS":
+				return "OrderID, FName, LName, CollectionDate DATE 'YYYY-MM-DD'";
+			case "DELIVERIES":
+				return "OrderID, FName, LName, House, Street, City, DeliveryDate DATE 'YYYY-MM-DD'";
+			case "STAFF_ORDERS":
+				return "StaffID, OrderID";
+			default:
+				return "OrderID, ProductID, ProductQuantity";
+			}
+		}
+
+		private PrintWriter file(String table) throws IOException
+		{
+			PrintWriter out = files.get(table);
+			if (out == null)
+			{
+				out = new PrintWriter(Files.newBufferedWriter(dir.resolve(table + "_" + suffix + ".csv")));
+				files.put(table, out);
+			}
+			return out;
+		}
+
+		private void row(String table, Object... values) throws IOException
+		{
+			PrintWriter out = file(table);
+			for (int i = 0; i < values.length; ++i)
+			{
+				if (i > 0)
+				{
+					out.print(',');
+				}
+				out.print(values[i]);
+			}
+			out.print('\n');
+		}
+
+		@Override
+		public void staff(int id, String fname, String lname) throws IOException
+		{
+			row("STAFF", id, fname, lname);
+		}
+
+		@Override
+		public void product(int id, String desc, int price, int stock) throws IOException
+		{
+			row("INVENTORY", id, desc, price, stock);
+		}
+
+		@Override
+		public void order(int id, String type, int completed, Date placed) throws IOException
+		{
+			row("ORDERS", id, type, completed, placed);
+		}
+
+		@Override
+		public void collection(int id, String fname, String lname, Date date) throws IOException
+		{
+			row("COLLECTIONS", id, fname, lname, date);
+		}
+
+		@Override
+		public void delivery(int id, String fname, String lname, String house, String street, String city,
+				Date date) throws IOException
+		{
+			row("DELIVERIES", id, fname, lname, house, street, city, date);
+		}
+
+		@Override
+		public void link(int staffid, int orderid) throws IOException
+		{
+			row("STAFF_ORDERS", staffid, orderid);
+		}
+
+		@Override
+		public void line(int orderid, int prodid, int quantity) throws IOException
+		{
+			row("ORDER_PRODUCTS", orderid, prodid, quantity);
+		}
+
+		@Override
+		public void endChunk() throws IOException
+		{
+			for (PrintWriter out : files.values())
+			{
+				if (out.checkError())
+				{
+					throw new IOException("Could not write to " + dir);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			boolean failed = false;
+			for (PrintWriter out : files.values())
+			{
+				out.close();
+				failed |= out.checkError();
+			}
+			if (failed)
+			{
+				throw new IOException("Could not write to " + dir);
+			}
+		}
+	}
+}
+
+/**
+ * Prepared statements of every open connection, keyed by (connection, SQL).
+ * Statements are prepared the first time they are asked for and kept open for
+ * reuse; each connection keeps at most {@link #capacity} statements and the
+ * least recently used one is closed to make room for a new one. Statements are
+ * never shared between connections so a connection that is used by one thread
+ * at a time (e.g. one borrowed from a {@link ConnectionPool}) can use its
+ * statements without further locking.
+ */
+class StatementCache
+{
+	/** The maximum number of statements kept open per connection. */
+	private static final int capacity = Integer.getInteger("statements.cache", 64);
+
+	private static final Map<Connection, Map<String, PreparedStatement>> caches = new ConcurrentHashMap<>();
+
+	/**
+	 * The statements of one connection, in least recently used order.
+	 */
+	private static class Lru extends LinkedHashMap<String, PreparedStatement>
+	{
+		private static final long serialVersionUID = 1L;
+
+		Lru()
+		{
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+		{
+			if (size() <= capacity)
+			{
+				return false;
+			}
+			closeQuietly(eldest.getValue());
+			return true;
+		}
+	}
+
+	/**
+	 * Get the statement of a connection for some SQL, preparing it if it is
+	 * not already open.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param sql
+	 *            The SQL of the statement.
+	 * @return An open statement of conn.
+	 */
+	public static PreparedStatement prepare(Connection conn, String sql) throws SQLException
+	{
+		return prepare(conn, sql, (String[]) null);
+	}
+
+	/**
+	 * Get the statement of a connection for some SQL whose execution returns
+	 * generated keys, preparing it if it is not already open. A given SQL must
+	 * always be asked for with the same key columns.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param sql
+	 *            The SQL of the statement.
+	 * @param keycolumns
+	 *            The columns returned by {@link PreparedStatement#getGeneratedKeys}
+	 *            or null for none.
+	 * @return An open statement of conn.
+	 */
+	public static PreparedStatement prepare(Connection conn, String sql, String... keycolumns) throws SQLException
+	{
+		Map<String, PreparedStatement> cache = caches.computeIfAbsent(conn, c -> new Lru());
+		synchronized (cache)
+		{
+			PreparedStatement stmnt = cache.get(sql);
+			if (stmnt == null || stmnt.isClosed())
+			{
+				stmnt = Metrics.instrument(
+						keycolumns == null ? conn.prepareStatement(sql) : conn.prepareStatement(sql, keycolumns), sql);
+				cache.put(sql, stmnt);
+			}
+			return stmnt;
+		}
+	}
+
+	/**
+	 * Get the callable statement of a connection for some SQL, preparing it if
+	 * it is not already open.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param sql
+	 *            The call escape of the statement, e.g. {call p(?)}.
+	 * @return An open statement of conn.
+	 */
+	public static CallableStatement prepareCall(Connection conn, String sql) throws SQLException
+	{
+		Map<String, PreparedStatement> cache = caches.computeIfAbsent(conn, c -> new Lru());
+		synchronized (cache)
+		{
+			PreparedStatement stmnt = cache.get(sql);
+			if (stmnt == null || stmnt.isClosed())
+			{
+				stmnt = Metrics.instrument(conn.prepareCall(sql), sql);
+				cache.put(sql, stmnt);
+			}
+			return (CallableStatement) stmnt;
+		}
+	}
+
+	/**
+	 * Close hook: close and forget all statements of a connection. Must be
+	 * called before the connection itself is closed.
+	 * 
+	 * @param conn
+	 *            The connection whose statements will be closed.
+	 */
+	public static void close(Connection conn)
+	{
+		Map<String, PreparedStatement> cache = caches.remove(conn);
+		if (cache == null)
+		{
+			return;
+		}
+		synchronized (cache)
+		{
+			for (PreparedStatement stmnt : cache.values())
+			{
+				closeQuietly(stmnt);
+			}
+			cache.clear();
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement stmnt)
+	{
+		try
+		{
+			stmnt.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
+
+/**
+ * Query-level metrics: the number of executions, the rows affected or
+ * returned, the errors and the latency of every statement of the
+ * {@link StatementCache}, and the end-to-end time of every menu option.
+ * <p>
+ * Metrics are only kept when the program runs with -Dmetrics=true (or
+ * -Dmetrics.dump). Statements are then wrapped in a {@link Proxy} that times
+ * each execute call and counts the rows its result set returns; otherwise
+ * {@link #instrument} hands back the statement itself and nothing is measured.
+ * The metrics can be read over JMX as the attributes of wcs:type=Metrics, and
+ * are written every -Dmetrics.dump seconds and when the program exits, to
+ * -Dmetrics.file (appended) or stderr, in the report format
+ * -Dmetrics.format=console|csv|json.
+ */
+class Metrics
+{
+	static final boolean enabled = Boolean.getBoolean("metrics") || System.getProperty("metrics.dump") != null;
+
+	private static final int dump = Integer.getInteger("metrics.dump", 0);
+
+	private static final String file = System.getProperty("metrics.file");
+
+	private static final Map<String, Stat> stats = new ConcurrentHashMap<>();
+
+	/** The end-to-end time of options 1-8, by option number. */
+	private static final Histogram[] options = new Histogram[9];
+
+	/** Durations that are not of a statement, e.g. lock waits, by name. */
+	private static final Map<String, Stat> events = new ConcurrentHashMap<>();
+
+	private static boolean started = false;
+
+	static
+	{
+		if (enabled)
+		{
+			for (int i = 1; i < options.length; ++i)
+			{
+				options[i] = new Histogram();
+			}
+		}
+	}
+
+	/**
+	 * The metrics of one statement.
+	 */
+	static final class Stat
+	{
+		final String sql;
+		final Histogram latency = new Histogram();
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		Stat(String sql)
+		{
+			this.sql = sql;
+		}
+	}
+
+	/**
+	 * A histogram of durations in the manner of HdrHistogram: durations of
+	 * less than 128ns have a bucket each and longer ones fall in one of 64
+	 * buckets per power of two, so every percentile is exact to within 1/64
+	 * (1.6%) at a fixed cost of 2304 counters. Durations of more than 2^41ns
+	 * (about 36 minutes) are counted in the last bucket.
+	 */
+	static final class Histogram
+	{
+		private static final int linear = 128, sub = 64, maxexp = 40;
+
+		private final AtomicLongArray counts = new AtomicLongArray(linear + (maxexp - 6) * sub);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		static int bucket(long nanos)
+		{
+			if (nanos < linear)
+			{
+				return (int) Math.max(0, nanos);
+			}
+			int exp = 63 - Long.numberOfLeadingZeros(nanos);
+			if (exp > maxexp)
+			{
+				return linear + (maxexp - 6) * sub - 1;
+			}
+			return linear + (exp - 7) * sub + (int) (nanos >>> (exp - 6)) - sub;
+		}
+
+		/**
+		 * @return The largest duration counted in a bucket.
+		 */
+		static long highest(int bucket)
+		{
+			if (bucket < linear)
+			{
+				return bucket;
+			}
+			int exp = (bucket - linear) / sub + 7;
+			long top = sub + (bucket - linear) % sub;
+			return ((top + 1) << (exp - 6)) - 1;
+		}
+
+		void record(long nanos)
+		{
+			counts.incrementAndGet(bucket(nanos));
+			count.increment();
+			total.add(nanos);
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		long count()
+		{
+			return count.sum();
+		}
+
+		long total()
+		{
+			return total.sum();
+		}
+
+		long max()
+		{
+			return max.get();
+		}
+
+		/**
+		 * @param p
+		 *            A fraction between 0 and 1.
+		 * @return The duration that a fraction p of the durations do not
+		 *         exceed, or 0 if none was recorded.
+		 */
+		long percentile(double p)
+		{
+			long n = count();
+			if (n == 0)
+			{
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(p * n)), seen = 0;
+			for (int i = 0; i < counts.length(); ++i)
+			{
+				seen += counts.get(i);
+				if (seen >= rank)
+				{
+					return Math.min(highest(i), max());
+				}
+			}
+			return max();
+		}
+
+		void reset()
+		{
+			for (int i = 0; i < counts.length(); ++i)
+			{
+				counts.set(i, 0);
+			}
+			count.reset();
+			total.reset();
+			max.set(0);
+		}
+	}
+
+	/**
+	 * Measure the executions of a statement if metrics are enabled.
+	 * 
+	 * @param stmnt
+	 *            A newly prepared statement.
+	 * @param sql
+	 *            The SQL stmnt was prepared with.
+	 * @return stmnt, or a statement of the same interface (PreparedStatement
+	 *         or CallableStatement) that measures and forwards every call to
+	 *         stmnt.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends PreparedStatement> T instrument(T stmnt, String sql)
+	{
+		if (!enabled)
+		{
+			return stmnt;
+		}
+		Stat stat = stats.computeIfAbsent(sql, Stat::new);
+		Class<?> type = stmnt instanceof CallableStatement ? CallableStatement.class : PreparedStatement.class;
+		return (T) Proxy.newProxyInstance(Metrics.class.getClassLoader(), new Class<?>[] { type },
+				new Timed(stmnt, stat));
+	}
+
+	/**
+	 * Forwards the calls to a statement, timing the execute calls.
+	 */
+	private static final class Timed implements InvocationHandler
+	{
+		private final PreparedStatement stmnt;
+		private final Stat stat;
+
+		Timed(PreparedStatement stmnt, Stat stat)
+		{
+			this.stmnt = stmnt;
+			this.stat = stat;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			if (!method.getName().startsWith("execute"))
+			{
+				Object result = forward(stmnt, method, args);
+				return result instanceof ResultSet ? counted((ResultSet) result, stat) : result;
+			}
+			final long start = System.nanoTime();
+			Object result;
+			try
+			{
+				result = method.invoke(stmnt, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				stat.latency.record(System.nanoTime() - start);
+				stat.errors.increment();
+				throw e.getCause();
+			}
+			stat.latency.record(System.nanoTime() - start);
+			if (result instanceof ResultSet)
+			{
+				return counted((ResultSet) result, stat);
+			}
+			if (result instanceof Integer || result instanceof Long)
+			{
+				stat.rows.add(Math.max(0, ((Number) result).longValue()));
+			}
+			else if (result instanceof int[])
+			{
+				for (int n : (int[]) result)
+				{
+					stat.rows.add(Math.max(0, n));
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @return A result set that forwards every call to r and counts the rows
+	 *         it returns in the metrics of a statement.
+	 */
+	private static ResultSet counted(ResultSet r, Stat stat)
+	{
+		return (ResultSet) Proxy.newProxyInstance(Metrics.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				(proxy, method, args) -> {
+					Object result = forward(r, method, args);
+					if (Boolean.TRUE.equals(result) && method.getName().equals("next"))
+					{
+						stat.rows.increment();
+					}
+					return result;
+				});
+	}
+
+	private static Object forward(Object target, Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Record the end-to-end time of a menu option.
+	 * 
+	 * @param option
+	 *            The option number, 1-8.
+	 * @param start
+	 *            The {@link System#nanoTime} the option started at.
+	 */
+	public static void option(int option, long start)
+	{
+		if (enabled && option > 0 && option < options.length)
+		{
+			options[option].record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Record the duration of something other than a statement or an option.
+	 * 
+	 * @param name
+	 *            What was measured, e.g. "lock stock".
+	 * @param start
+	 *            The {@link System#nanoTime} it started at.
+	 * @param failed
+	 *            Whether it ended in an error, counted as one.
+	 */
+	public static void event(String name, long start, boolean failed)
+	{
+		if (!enabled)
+		{
+			return;
+		}
+		Stat stat = events.computeIfAbsent(name, Stat::new);
+		stat.latency.record(System.nanoTime() - start);
+		if (failed)
+		{
+			stat.errors.increment();
+		}
+	}
+
+	/**
+	 * Register the JMX bean and start the periodic dump, once. Does nothing
+	 * unless metrics are enabled.
+	 */
+	public static synchronized void start()
+	{
+		if (!enabled || started)
+		{
+			return;
+		}
+		started = true;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+					new ObjectName("wcs:type=Metrics"));
+		}
+		catch (JMException e)
+		{
+			e.printStackTrace();
+			System.err.println("[WARN] Metrics are not available over JMX");
+		}
+		if (dump > 0)
+		{
+			Thread dumper = new Thread(() -> {
+				try
+				{
+					for (;;)
+					{
+						Thread.sleep(dump * 1000L);
+						dump();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}, "metrics-dump");
+			dumper.setDaemon(true);
+			dumper.start();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(Metrics::dump, "metrics-exit"));
+	}
+
+	/**
+	 * Write all metrics to -Dmetrics.file or stderr, unless nothing was
+	 * measured yet.
+	 */
+	static void dump()
+	{
+		if (calls() == 0 && events.isEmpty() && Arrays.stream(options, 1, options.length).allMatch(h -> h.count() == 0))
+		{
+			return;
+		}
+		ReportFormat format = ReportFormat.named(System.getProperty("metrics.format", "console"));
+		if (file == null)
+		{
+			print(System.err, format);
+			return;
+		}
+		try (PrintStream out = new PrintStream(new FileOutputStream(file, true), false, "UTF-8"))
+		{
+			print(out, format);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Could not write the metrics to " + file);
+		}
+	}
+
+	private static synchronized void print(PrintStream out, ReportFormat format)
+	{
+		if (format == ReportFormat.CONSOLE)
+		{
+			out.println("[INFO] Metrics at " + LocalDateTime.now().withNano(0));
+		}
+		report(format).print(out);
+	}
+
+	/**
+	 * @return The metrics of every option, of every event by name and then of
+	 *         every statement, the statements that took longest in total
+	 *         first. Durations are in microseconds except the total.
+	 */
+	static Report report(ReportFormat format)
+	{
+		final String[] columns = { "Statement", "Calls", "Rows", "Errors", "TotalMs", "MeanUs", "P50Us", "P90Us",
+				"P99Us", "MaxUs" };
+		final int[] widths = { -60, 9, 10, 7, 9, 8, 8, 8, 8, 9 };
+		Report report = new Report(format, columns, widths);
+		for (int i = 1; i < options.length; ++i)
+		{
+			if (options[i].count() > 0)
+			{
+				row(report, format, "option " + i, options[i], 0, 0);
+			}
+		}
+		for (Stat event : new TreeMap<>(events).values())
+		{
+			row(report, format, event.sql, event.latency, 0, event.errors.sum());
+		}
+		List<Stat> sorted = new ArrayList<>(stats.values());
+		sorted.sort((a, b) -> Long.compare(b.latency.total(), a.latency.total()));
+		for (Stat stat : sorted)
+		{
+			row(report, format, stat.sql, stat.latency, stat.rows.sum(), stat.errors.sum());
+		}
+		return report;
+	}
+
+	private static void row(Report report, ReportFormat format, String name, Histogram h, long rows, long errors)
+	{
+		long n = h.count();
+		name = name.trim().replaceAll("\\s+", " ");
+		if (format == ReportFormat.CONSOLE && name.length() > 59)
+		{
+			name = name.substring(0, 56) + "...";
+		}
+		report.cell(name).cell(n).cell(rows).cell(errors).cell(h.total() / 1000000);
+		report.cell(n == 0 ? 0 : h.total() / n / 1000).cell(h.percentile(0.5) / 1000);
+		report.cell(h.percentile(0.9) / 1000).cell(h.percentile(0.99) / 1000).cell(h.max() / 1000);
+	}
+
+	/**
+	 * @return The executions of all statements.
+	 */
+	static long calls()
+	{
+		long calls = 0;
+		for (Stat stat : stats.values())
+		{
+			calls += stat.latency.count();
+		}
+		return calls;
+	}
+
+	/**
+	 * Forget everything measured so far.
+	 */
+	static synchronized void reset()
+	{
+		for (Stat stat : stats.values())
+		{
+			stat.latency.reset();
+			stat.rows.reset();
+			stat.errors.reset();
+		}
+		events.clear();
+		for (int i = 1; i < options.length; ++i)
+		{
+			options[i].reset();
+		}
+	}
+
+	/**
+	 * The metrics as the read-only attributes Text, Json, Statements and Calls
+	 * and the operation reset of a JMX bean.
+	 */
+	private static final class Bean implements DynamicMBean
+	{
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			switch (attribute)
+			{
+			case "Text":
+				return text(ReportFormat.CONSOLE);
+			case "Json":
+				return text(ReportFormat.JSON);
+			case "Statements":
+				return stats.size();
+			case "Calls":
+				return calls();
+			default:
+				throw new AttributeNotFoundException(attribute);
+			}
+		}
+
+		private static String text(ReportFormat format)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			report(format).print(new PrintStream(bytes, true));
+			return bytes.toString();
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes)
+			{
+				try
+				{
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				}
+				catch (AttributeNotFoundException e)
+				{
+					// left out, as the interface asks
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException
+		{
+			if (!action.equals("reset"))
+			{
+				throw new ReflectionException(new NoSuchMethodException(action));
+			}
+			reset();
+			return null;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			MBeanAttributeInfo[] attributes = {
+					new MBeanAttributeInfo("Text", "java.lang.String", "All metrics as a table", true, false, false),
+					new MBeanAttributeInfo("Json", "java.lang.String", "All metrics as JSON", true, false, false),
+					new MBeanAttributeInfo("Statements", "int", "Statements measured", true, false, false),
+					new MBeanAttributeInfo("Calls", "long", "Executions of all statements", true, false, false) };
+			MBeanOperationInfo[] operations = { new MBeanOperationInfo("reset", "Forget all metrics",
+					new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION) };
+			return new MBeanInfo(Metrics.class.getName(), "Query-level metrics", attributes, null, operations,
+					null);
+		}
+	}
+}
+
+/**
+ * A bounded pool of database connections. Connections are opened lazily up to
+ * the maximum size and handed to one borrower at a time, so a borrower can use
+ * the connection (and any statements prepared on it) without sharing it with
+ * other threads.
+ * <p>
+ * A borrower first takes one of maxsize permits of a fair {@link Semaphore}
+ * and then an idle connection, or opens one if none is idle. Waiting borrowers
+ * are served in order and, being parked on the semaphore, cost nothing while
+ * they wait, which suits many virtual threads sharing few connections.
+ */
+class ConnectionPool implements AutoCloseable
+{
+	private final Callable<Connection> factory;
+	private final BlockingQueue<Connection> idle;
+	private final Semaphore permits;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param factory
+	 *            Opens a new connection, e.g. {@link Assignment#getConnection2}
+	 * @param maxsize
+	 *            The maximum number of connections that will be open at once.
+	 */
+	public ConnectionPool(Callable<Connection> factory, int maxsize)
+	{
+		if (maxsize < 1)
+		{
+			throw new IllegalArgumentException("Pool size must be positive.");
+		}
+		this.factory = factory;
+		this.idle = new ArrayBlockingQueue<>(maxsize);
+		this.permits = new Semaphore(maxsize, true);
+	}
+
+	/**
+	 * Take a connection out of the pool, opening a new one if none is idle and
+	 * the pool is not full. Blocks until a connection is released otherwise.
+	 * 
+	 * @return A connection that must be given back with {@link #release}.
+	 */
+	public Connection borrow() throws SQLException, InterruptedException
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("Pool is closed.");
+		}
+		permits.acquire();
+		Connection conn = idle.poll();
+		if (conn != null)
+		{
+			return conn;
+		}
+		try
+		{
+			return factory.call();
+		}
+		catch (Exception e)
+		{
+			permits.release();
+			throw e instanceof SQLException ? (SQLException) e : new SQLException("Failed to open connection", e);
+		}
+	}
+
+	/**
+	 * Give a borrowed connection back. Connections that were closed or left in
+	 * the middle of a transaction are discarded.
+	 * 
+	 * @param conn
+	 *            A connection returned by {@link #borrow}.
+	 */
+	public void release(Connection conn)
+	{
+		try
+		{
+			if (!closed && !conn.isClosed() && conn.getAutoCommit() && idle.offer(conn))
+			{
+				return;
+			}
+			discard(conn);
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			discard(conn);
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private void discard(Connection conn)
+	{
+		StatementCache.close(conn);
+		try
+		{
+			conn.close();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		closed = true;
+		Connection conn;
+		while ((conn = idle.poll()) != null)
+		{
+			discard(conn);
+		}
+	}
+}
+
+/**
+ * Runs tasks on virtual threads when the JVM has them (Java 21 or later) and
+ * on platform threads otherwise. The program is compiled for older Java
+ * versions too, so virtual threads are looked up by reflection.
+ */
+class VirtualThreads
+{
+	private static final Method per_task = lookup();
+
+	private static Method lookup()
+	{
+		try
+		{
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	public static boolean available()
+	{
+		return per_task != null;
+	}
+
+	/**
+	 * @return An executor that starts a new virtual thread for every task, or
+	 *         a cached pool of platform threads if there are none.
+	 */
+	public static ExecutorService perTask()
+	{
+		if (per_task != null)
+		{
+			try
+			{
+				return (ExecutorService) per_task.invoke(null);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+}
+
+/**
+ * Accepts orders from many clients at once over a line-oriented TCP protocol.
+ * Every client (e.g. a till) has a session on its own thread, a virtual
+ * thread if the JVM has them (see {@link VirtualThreads}), so idle sessions
+ * cost little. A session borrows a connection from a {@link ConnectionPool}
+ * only for the time it takes to place an order, so orders are placed over as
+ * many database sessions as the pool allows however many clients there are.
+ * Each connection keeps its own statements in the {@link StatementCache}.
+ * <p>
+ * Each request is one line of fields separated by <code>|</code>, the first
+ * field being the menu option. Products are given as
+ * <code>ProductID:Quantity</code> pairs separated by commas.
+ * 
+ * <pre>
+ * 1|OrderDate|StaffID|Products
+ * 2|OrderDate|StaffID|Products|CollectionDate|FName|LName
+ * 3|OrderDate|StaffID|Products|DeliveryDate|FName|LName|House|Street|City
+ * 0
+ * </pre>
+ * 
+ * Every request is answered with one line, either
+ * <code>OK OrderID ProductID:Stock,...</code> or <code>ERR reason</code>.
+ * Option 0 closes the connection.
+ */
+class OrderServer implements AutoCloseable
+{
+	private static final LengthCheck name_check = new LengthCheck(1, 31);
+
+	private final ServerSocket server;
+	private final ConnectionPool pool;
+	private final ExecutorService sessions = VirtualThreads.perTask();
+	/** Limits the number of open sessions. */
+	private final Semaphore open_sessions;
+
+	/**
+	 * @param port
+	 *            The port to listen on.
+	 * @param pool
+	 *            The connections that orders will be placed over.
+	 * @param sessions
+	 *            The number of clients that are served at once; others wait to
+	 *            be accepted.
+	 */
+	public OrderServer(int port, ConnectionPool pool, int sessions) throws IOException
+	{
+		this.server = new ServerSocket(port);
+		this.pool = pool;
+		this.open_sessions = new Semaphore(sessions);
+	}
+
+	/**
+	 * Accept clients until the server is closed.
+	 */
+	public void run()
+	{
+		System.out.println("[INFO] Accepting orders on port " + server.getLocalPort() + " with "
+				+ (VirtualThreads.available() ? "virtual" : "platform") + " threads");
+		while (!server.isClosed())
+		{
+			try
+			{
+				open_sessions.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try
+			{
+				Socket client = server.accept();
+				sessions.execute(() -> {
+					try
+					{
+						serve(client);
+					}
+					finally
+					{
+						open_sessions.release();
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				open_sessions.release();
+				if (!server.isClosed())
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void serve(Socket client)
+	{
+		try (Socket c = client;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(c.getOutputStream(), StandardCharsets.UTF_8),
+						true))
+		{
+			String line;
+			while ((line = in.readLine()) != null && !line.trim().equals("0"))
+			{
+				out.println(handle(line));
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Place the order of a single request line.
+	 * 
+	 * @return The response line.
+	 */
+	String handle(String line)
+	{
+		String[] f = line.split("\\|", -1);
+		int option;
+		int staffid;
+		int[][] items;
+		try
+		{
+			option = Integer.parseInt(f[0].trim());
+			if (!(option == 1 && f.length == 4 || option == 2 && f.length == 7 || option == 3 && f.length == 10))
+			{
+				return "ERR unknown option or wrong number of fields";
+			}
+			staffid = Integer.parseInt(f[2].trim());
+			items = OrderPlacement.parseItems(f[3], ',');
+		}
+		catch (NumberFormatException e)
+		{
+			return "ERR invalid number";
+		}
+		catch (IllegalArgumentException e)
+		{
+			return "ERR " + e.getMessage();
+		}
+		if (!OracleDateFormat.isValid(f[1]) || option > 1 && !OracleDateFormat.isValid(f[4]))
+		{
+			return "ERR invalid date, format: D-Mon-YY";
+		}
+		for (int i = 5; i < f.length; ++i)
+		{
+			if (!name_check.verify(f[i]))
+			{
+				return "ERR fields must be between 1 and 30 characters";
+			}
+		}
+
+		Connection conn;
+		try
+		{
+			conn = pool.borrow();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return "ERR no database connection";
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return "ERR interrupted";
+		}
+		try
+		{
+			if (!Staff.exists(conn, staffid))
+			{
+				return "ERR unknown staff";
+			}
+			final long start = System.nanoTime();
+			OrderPlacement.PlacedOrder placed;
+			switch (option)
+			{
+			case 1:
+				placed = OrderPlacement.placeInStoreOrder(conn, items[0], items[1], f[1], staffid);
+				break;
+			case 2:
+				placed = OrderPlacement.placeCollectionOrder(conn, items[0], items[1], f[1], staffid, f[5], f[6],
+						f[4]);
+				break;
+			default:
+				placed = OrderPlacement.placeDeliveryOrder(conn, items[0], items[1], f[1], staffid, f[5], f[6], f[7],
+						f[8], f[9], f[4]);
+			}
+			Metrics.option(option, start);
+			if (placed == null)
+			{
+				return "ERR order was not placed";
+			}
+			StringBuilder sb = new StringBuilder("OK ").append(placed.id);
+			for (int i = 0; i < placed.productIDs.length; ++i)
+			{
+				sb.append(i == 0 ? ' ' : ',').append(placed.productIDs[i]).append(':').append(placed.stocks[i]);
+			}
+			return sb.toString();
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		server.close();
+		sessions.shutdown();
+	}
+}
+
+/**
+ * Simulates tills placing orders on an {@link OrderServer}. Every till is a
+ * client on its own thread (virtual if available) that places orders of
+ * random type (options 1 to 3), products and staff one after the other,
+ * optionally pausing between them like an operator would. At the end the
+ * throughput and the distribution of response times are printed.
+ */
+class LoadTest
+{
+	/** Products are chosen among ProductIDs 0 to loadtest.products - 1. */
+	private static final int products = Integer.getInteger("loadtest.products", 100);
+	/** Staff are chosen among StaffIDs 0 to loadtest.staff - 1. */
+	private static final int staff = Integer.getInteger("loadtest.staff", 10);
+
+	private final String host;
+	private final int port, tills, orders, think;
+	private final AtomicInteger ok = new AtomicInteger(), failed = new AtomicInteger();
+	/** Response times in microseconds of every till, each written by one till. */
+	private final int[][] latencies;
+
+	/**
+	 * @param tills
+	 *            The number of clients.
+	 * @param orders
+	 *            The number of orders each till places.
+	 * @param think
+	 *            The pause in milliseconds between two orders of a till.
+	 */
+	LoadTest(String host, int port, int tills, int orders, int think)
+	{
+		this.host = host;
+		this.port = port;
+		this.tills = tills;
+		this.orders = orders;
+		this.think = think;
+		this.latencies = new int[tills][orders];
+	}
+
+	public void run() throws InterruptedException
+	{
+		ExecutorService threads = VirtualThreads.perTask();
+		long start = System.nanoTime();
+		for (int i = 0; i < tills; ++i)
+		{
+			final int till = i;
+			threads.execute(() -> till(till));
+		}
+		threads.shutdown();
+		threads.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		report(System.nanoTime() - start);
+	}
+
+	private void till(int till)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try (Socket s = new Socket(host, port);
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8),
+						true))
+		{
+			for (int i = 0; i < orders; ++i)
+			{
+				String request = request(random);
+				long t = System.nanoTime();
+				out.println(request);
+				String response = in.readLine();
+				latencies[till][i] = (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - t) / 1000);
+				if (response != null && response.startsWith("OK"))
+				{
+					ok.incrementAndGet();
+				}
+				else
+				{
+					failed.incrementAndGet();
+					if (response == null)
+					{
+						return;
+					}
+				}
+				if (think > 0)
+				{
+					Thread.sleep(think);
+				}
+			}
+			out.println("0");
+		}
+		catch (IOException e)
+		{
+			System.err.println("[ERROR] Till " + till + ": " + e.getMessage());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A request line of {@link OrderServer} for a random order of one to five
+	 * distinct products.
+	 */
+	private static String request(ThreadLocalRandom random)
+	{
+		int option = 1 + random.nextInt(3);
+		StringBuilder sb = new StringBuilder().append(option).append("|1-Dec-19|").append(random.nextInt(staff))
+				.append('|');
+		int lines = Math.min(products, 1 + random.nextInt(5));
+		int first = random.nextInt(products);
+		for (int i = 0; i < lines; ++i)
+		{
+			// Consecutive ids, wrapping around, are distinct.
+			sb.append(i == 0 ? "" : ",").append((first + i) % products).append(':').append(1 + random.nextInt(3));
+		}
+		if (option == 2)
+		{
+			sb.append("|8-Dec-19|Load|Test");
+		}
+		else if (option == 3)
+		{
+			sb.append("|8-Dec-19|Load|Test|1 House|Street|City");
+		}
+		return sb.toString();
+	}
+
+	private void report(long nanos)
+	{
+		int n = 0;
+		int[] all = new int[tills * orders];
+		for (int[] till : latencies)
+		{
+			for (int latency : till)
+			{
+				if (latency > 0)
+				{
+					all[n++] = latency;
+				}
+			}
+		}
+		Arrays.sort(all, 0, n);
+		System.out.printf("[INFO] %d tills, %d orders placed, %d failed in %d ms (%.1f orders/s)%n", tills, ok.get(),
+				failed.get(), nanos / 1000000, (ok.get() + failed.get()) * 1e9 / nanos);
+		if (n > 0)
+		{
+			System.out.printf("[INFO] Response time in ms: median %.2f, 90%% %.2f, 99%% %.2f, max %.2f%n",
+					all[(n - 1) / 2] / 1000.0, all[(int) ((n - 1) * 0.9)] / 1000.0, all[(int) ((n - 1) * 0.99)] / 1000.0,
+					all[n - 1] / 1000.0);
+		}
+	}
+}
+
+/**
+ * A map of int keys to int values that stores both in plain arrays, using open
+ * addressing with linear probing. Unlike a {@link HashMap} of
+ * {@link Integer}s no object is allocated per entry and a lookup does not box
+ * its key. Entries cannot be removed.
+ * <p>
+ * Entries are iterated over with a cursor:
+ * 
+ * <pre>
+ * for (int i = map.next(-1); i >= 0; i = map.next(i))
+ * {
+ * 	int key = map.keyAt(i), value = map.valueAt(i);
+ * }
+ * </pre>
+ */
+class IntIntMap
+{
+	private int[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size = 0;
+	/** Grow once size reaches this. */
+	private int threshold;
+
+	public IntIntMap()
+	{
+		this(8);
+	}
+
+	/**
+	 * @param expected
+	 *            The number of entries that can be put before the map grows.
+	 */
+	public IntIntMap(int expected)
+	{
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		threshold = capacity / 2;
+	}
+
+	private int slot(int key)
+	{
+		int mask = keys.length - 1;
+		int i = (key * 0x9E3779B9 >>> 16 ^ key) & mask;
+		while (used[i] && keys[i] != key)
+		{
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public boolean containsKey(int key)
+	{
+		return used[slot(key)];
+	}
+
+	/**
+	 * @return The value of key or missing if key is not in the map.
+	 */
+	public int get(int key, int missing)
+	{
+		int i = slot(key);
+		return used[i] ? values[i] : missing;
+	}
+
+	/**
+	 * Map key to value, replacing its previous value if any.
+	 */
+	public void put(int key, int value)
+	{
+		int i = slot(key);
+		if (!used[i])
+		{
+			if (size >= threshold)
+			{
+				grow();
+				i = slot(key);
+			}
+			used[i] = true;
+			keys[i] = key;
+			++size;
+		}
+		values[i] = value;
+	}
+
+	private void grow()
+	{
+		int[] oldkeys = keys, oldvalues = values;
+		boolean[] oldused = used;
+		allocate(keys.length * 2);
+		for (int j = 0; j < oldkeys.length; ++j)
+		{
+			if (oldused[j])
+			{
+				int i = slot(oldkeys[j]);
+				used[i] = true;
+				keys[i] = oldkeys[j];
+				values[i] = oldvalues[j];
+			}
+		}
+	}
+
+	/**
+	 * @param cursor
+	 *            -1 to start, otherwise a value returned by a previous call.
+	 * @return The cursor of the next entry or -1 if there are no more.
+	 */
+	public int next(int cursor)
+	{
+		for (int i = cursor + 1; i < used.length; ++i)
+		{
+			if (used[i])
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int keyAt(int cursor)
+	{
+		return keys[cursor];
+	}
+
+	public int valueAt(int cursor)
+	{
+		return values[cursor];
+	}
+}
+
+/**
+ * A growable list of ints backed by a plain array.
+ */
+class IntList
+{
+	private int[] elements;
+	private int size = 0;
+
+	public IntList()
+	{
+		this(8);
+	}
+
+	public IntList(int capacity)
+	{
+		elements = new int[Math.max(1, capacity)];
+	}
+
+	public void add(int x)
+	{
+		if (size == elements.length)
+		{
+			elements = Arrays.copyOf(elements, size * 2);
+		}
+		elements[size++] = x;
+	}
+
+	public int get(int i)
+	{
+		if (i >= size)
+		{
+			throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + size);
+		}
+		return elements[i];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * @return A new array of the elements in the list.
+	 */
+	public int[] toArray()
+	{
+		return Arrays.copyOf(elements, size);
+	}
+}
+
+/**
+ * A pivot table of int values built from (row key, column key, value) triples
+ * that arrive in any order. Rows and columns are kept in the order their keys
+ * are first seen and are found through {@link IntIntMap}s, so adding a cell
+ * costs the same however large the table is. The cells are gathered in
+ * {@link IntList}s and only laid out in a dense matrix once all of them are
+ * known.
+ */
+class Pivot
+{
+	private final IntIntMap rowIndex = new IntIntMap(), colIndex = new IntIntMap();
+	private final IntList rowKeys = new IntList(), colKeys = new IntList();
+	private final List<String> rowLabels = new ArrayList<>();
+	private final IntList cellRows = new IntList(), cellCols = new IntList(), cellValues = new IntList();
+	private int[] matrix = null;
+
+	/**
+	 * @return The position of the row with a key or -1 if it has not been
+	 *         added.
+	 */
+	public int rowOf(int key)
+	{
+		return rowIndex.get(key, -1);
+	}
+
+	/**
+	 * Add a new row after the existing ones.
+	 * 
+	 * @return The position of the row.
+	 */
+	public int addRow(int key, String label)
+	{
+		int row = rowKeys.size();
+		rowIndex.put(key, row);
+		rowKeys.add(key);
+		rowLabels.add(label);
+		return row;
+	}
+
+	/**
+	 * @return The position of the column with a key, which is added after the
+	 *         existing ones if it has not been seen.
+	 */
+	public int col(int key)
+	{
+		int col = colIndex.get(key, -1);
+		if (col < 0)
+		{
+			col = colKeys.size();
+			colIndex.put(key, col);
+			colKeys.add(key);
+		}
+		return col;
+	}
+
+	/**
+	 * Add a value to a cell. Cells that are never added to are 0.
+	 */
+	public void add(int row, int col, int value)
+	{
+		cellRows.add(row);
+		cellCols.add(col);
+		cellValues.add(value);
+		matrix = null;
+	}
+
+	public int rows()
+	{
+		return rowKeys.size();
+	}
+
+	public int cols()
+	{
+		return colKeys.size();
+	}
+
+	public int rowKey(int row)
+	{
+		return rowKeys.get(row);
+	}
+
+	public int colKey(int col)
+	{
+		return colKeys.get(col);
+	}
+
+	public String rowLabel(int row)
+	{
+		return rowLabels.get(row);
+	}
+
+	public int get(int row, int col)
+	{
+		if (matrix == null)
+		{
+			int cols = cols();
+			matrix = new int[rows() * cols];
+			for (int i = 0; i < cellValues.size(); ++i)
+			{
+				matrix[cellRows.get(i) * cols + cellCols.get(i)] += cellValues.get(i);
+			}
+		}
+		return matrix[row * cols() + col];
+	}
+}
+
+/**
+ * An in-memory copy of the sales, used by options 4 and 6-8 instead of the
+ * views when the program runs with -Danalytics=true.
+ * <p>
+ * The orders, their lines and their links to staff are held in primitive
+ * columns sorted by OrderID (with dates as epoch days and prices in pence) and
+ * the reports are computed by fork-join tasks that each add up a range of rows
+ * into an array indexed by product or member of staff, so no row is looked up
+ * by key while aggregating. Before every report the number of orders, lines
+ * and links to staff and the newest OrderID in the database are compared with
+ * the copy, in the same snapshot as anything read after them. If they differ
+ * the orders from the last -Danalytics.window=100 OrderIDs on are read again,
+ * which brings in the orders placed meanwhile by this program, and if they
+ * still differ (orders of another process's block of OrderIDs, links written
+ * behind by a {@link SideWriter}, orders cancelled elsewhere) everything is
+ * read again. Orders cancelled and lines changed by this program make it read
+ * everything again too. Only a quantity changed with SQL goes unnoticed, until
+ * the copy is -Danalytics.ttl=60 seconds old.
+ */
+class Analytics
+{
+	static final boolean enabled = Boolean.getBoolean("analytics");
+
+	/** Nanoseconds after which everything is loaded again. */
+	private static final long ttl = TimeUnit.SECONDS.toNanos(Long.getLong("analytics.ttl", 60));
+
+	/** How many OrderIDs below the newest one are read again on refresh. */
+	private static final int window = Math.max(1, Integer.getInteger("analytics.window", 100));
+
+	/** The number of rows each fork-join task adds up without splitting. */
+	private static final int grain = 1 << 15;
+
+	/** The rows of the copy as they are in the database. */
+	//@formatter:off
+	private static final String changes_sql = "SELECT (SELECT COUNT(*) FROM ORDERS),"
+			+ " (SELECT NVL(MAX(OrderID), 0) FROM ORDERS),"
+			+ " (SELECT COUNT(*) FROM ORDER_PRODUCTS),"
+			+ " (SELECT COUNT(*) FROM STAFF_ORDERS)"
+			+ " FROM DUAL";
+	//@formatter:on
+	private static final String products_sql = "SELECT ProductID, ProductDesc, ProductPrice FROM INVENTORY";
+	private static final String staff_sql = "SELECT StaffID, FName, LName FROM STAFF";
+	/**
+	 * @param 1
+	 *            INTEGER The first OrderID to read.
+	 */
+	private static final String orders_sql = "SELECT OrderID, OrderPlaced FROM ORDERS WHERE OrderID >= ? ORDER BY OrderID";
+	/**
+	 * @param 1
+	 *            INTEGER The first OrderID to read.
+	 */
+	//@formatter:off
+	private static final String lines_sql = "SELECT OrderID, ProductID, ProductQuantity FROM ORDER_PRODUCTS"
+			+ " WHERE OrderID >= ? ORDER BY OrderID";
+	//@formatter:on
+	/**
+	 * @param 1
+	 *            INTEGER The first OrderID to read.
+	 */
+	private static final String links_sql = "SELECT OrderID, StaffID FROM STAFF_ORDERS WHERE OrderID >= ? ORDER BY OrderID";
+
+	private static IntIntMap productIndex, staffIndex;
+	private static int[] productIds, staffIds;
+	private static String[] productDescs, staffNames;
+	private static long[] prices;
+
+	/** The orders: OrderID, OrderPlaced and the index of their first line. */
+	private static int[] orderIds = new int[0], orderDays = new int[0], orderStart = new int[1];
+	/** The lines: index of the order and of the product, and the quantity. */
+	private static int[] lineOrders = new int[0], lineProducts = new int[0], lineQuantities = new int[0];
+	/** The links: index of the order and of the member of staff. */
+	private static int[] linkOrders = new int[0], linkStaff = new int[0];
+	private static int orders = 0, lines = 0, links = 0;
+
+	/** Counts the calls to {@link #invalidate}. */
+	private static final AtomicInteger invalidations = new AtomicInteger();
+	/** The invalidations counted when the copy was loaded, -1 if it is not. */
+	private static int loadedAfter = -1;
+	private static long loaded;
+
+	/**
+	 * A list of products or staff with an amount of money each.
+	 */
+	static final class Ranked
+	{
+		final int[] ids;
+		final String[] labels;
+		/** In pence. */
+		final long[] amounts;
+
+		Ranked(int[] ids, String[] labels, long[] amounts)
+		{
+			this.ids = ids;
+			this.labels = labels;
+			this.amounts = amounts;
+		}
+	}
+
+	/**
+	 * Adds up a range [lo, hi) of rows into an array of sums.
+	 */
+	private interface Kernel
+	{
+		void add(long[] sums, int lo, int hi);
+	}
+
+	private static final class Aggregate extends RecursiveTask<long[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Kernel kernel;
+		private final int width, lo, hi;
+
+		Aggregate(Kernel kernel, int width, int lo, int hi)
+		{
+			this.kernel = kernel;
+			this.width = width;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected long[] compute()
+		{
+			if (hi - lo <= grain)
+			{
+				long[] sums = new long[width];
+				kernel.add(sums, lo, hi);
+				return sums;
+			}
+			int mid = (lo + hi) >>> 1;
+			Aggregate left = new Aggregate(kernel, width, lo, mid);
+			left.fork();
+			long[] sums = new Aggregate(kernel, width, mid, hi).compute();
+			long[] other = left.join();
+			for (int i = 0; i < width; ++i)
+			{
+				sums[i] += other[i];
+			}
+			return sums;
+		}
+	}
+
+	/**
+	 * @return The sums of rows [0, n) into an array of a given width.
+	 */
+	private static long[] aggregate(int n, int width, Kernel kernel)
+	{
+		return ForkJoinPool.commonPool().invoke(new Aggregate(kernel, width, 0, n));
+	}
+
+	/**
+	 * Forget the copy so that everything is loaded again before the next
+	 * report.
+	 */
+	public static void invalidate()
+	{
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Option 4: the revenue of every product, largest first.
+	 * 
+	 * @return The products, or null if the copy could not be brought up to
+	 *         date.
+	 */
+	public static synchronized Ranked productRevenue(Connection conn)
+	{
+		if (!refresh(conn))
+		{
+			return null;
+		}
+		long[] revenue = revenue(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		Integer[] order = ranked(revenue, productIds, productIds.length);
+		return ranked(order, productIds, productDescs, revenue);
+	}
+
+	/**
+	 * Option 6: the staff who sold at least 5000, most first.
+	 * 
+	 * @return The staff, or null if the copy could not be brought up to date.
+	 */
+	public static synchronized Ranked staffSales(Connection conn)
+	{
+		if (!refresh(conn))
+		{
+			return null;
+		}
+		final int[] best = new int[productIds.length];
+		Arrays.fill(best, -1);
+		long[] sums = staffSums(Integer.MIN_VALUE, Integer.MAX_VALUE, best, 0);
+		long[] sales = new long[staffIds.length];
+		int n = 0;
+		for (int s = 0; s < sales.length; ++s)
+		{
+			sales[s] = sums[s * 2];
+			if (sales[s] >= 500000)
+			{
+				++n;
+			}
+		}
+		Integer[] order = ranked(sales, staffIds, n);
+		return ranked(order, staffIds, staffNames, sales);
+	}
+
+	/**
+	 * Option 7: the units of every product that sold at least 20000 sold by
+	 * every member of staff who sold anything, in rows of staff by sales,
+	 * most first, and columns of products by ProductID.
+	 * 
+	 * @param pivot
+	 *            An empty table that is filled in.
+	 * @return False if the copy could not be brought up to date.
+	 */
+	public static synchronized boolean bestSellers(Connection conn, Pivot pivot)
+	{
+		if (!refresh(conn))
+		{
+			return false;
+		}
+		long[] revenue = revenue(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		int[] best = new int[productIds.length];
+		int nbest = bestSelling(revenue, best);
+		if (nbest == 0)
+		{
+			return true;
+		}
+		int[] columns = new int[nbest];
+		for (int p = 0; p < best.length; ++p)
+		{
+			if (best[p] >= 0)
+			{
+				columns[best[p]] = productIds[p];
+			}
+		}
+		Arrays.sort(columns);
+		for (int id : columns)
+		{
+			pivot.col(id);
+		}
+		final int width = nbest + 2;
+		long[] sums = staffSums(Integer.MIN_VALUE, Integer.MAX_VALUE, best, nbest);
+		long[] sales = new long[staffIds.length];
+		int n = 0;
+		for (int s = 0; s < sales.length; ++s)
+		{
+			// staff with no lines sort last and are left out
+			sales[s] = sums[s * width + 1] > 0 ? sums[s * width] : -1;
+			if (sales[s] >= 0)
+			{
+				++n;
+			}
+		}
+		for (int s : ranked(sales, staffIds, n))
+		{
+			int row = pivot.addRow(staffIds[s], staffNames[s]);
+			for (int p = 0; p < best.length; ++p)
+			{
+				if (best[p] >= 0)
+				{
+					pivot.add(row, pivot.col(productIds[p]), (int) sums[s * width + 2 + best[p]]);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Option 8: the staff who sold at least 30000 in a year and sold every
+	 * product that sold at least 20000 in that year.
+	 * 
+	 * @return The names of the staff, sorted, or null if the copy could not be
+	 *         brought up to date.
+	 */
+	public static synchronized List<String> promotedStaff(Connection conn, int year)
+	{
+		if (!refresh(conn))
+		{
+			return null;
+		}
+		final int from = (int) LocalDate.of(year, 1, 1).toEpochDay();
+		final int to = (int) LocalDate.of(year + 1, 1, 1).toEpochDay();
+		long[] revenue = revenue(from, to);
+		int[] best = new int[productIds.length];
+		int nbest = bestSelling(revenue, best);
+		final int width = nbest + 2;
+		long[] sums = staffSums(from, to, best, nbest);
+		List<String> names = new ArrayList<>();
+		for (int s = 0; s < staffIds.length; ++s)
+		{
+			if (sums[s * width + 1] == 0 || sums[s * width] < 3000000)
+			{
+				continue;
+			}
+			int sold = 0;
+			for (int b = 0; b < nbest; ++b)
+			{
+				if (sums[s * width + 2 + b] > 0)
+				{
+					++sold;
+				}
+			}
+			if (sold == nbest)
+			{
+				names.add(staffNames[s]);
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * @return The revenue in pence of every product from the orders placed
+	 *         on the epoch days [from, to).
+	 */
+	private static long[] revenue(final int from, final int to)
+	{
+		final int[] lineOrders = Analytics.lineOrders, lineProducts = Analytics.lineProducts,
+				lineQuantities = Analytics.lineQuantities, orderDays = Analytics.orderDays;
+		long[] units = aggregate(lines, productIds.length, (sums, lo, hi) -> {
+			for (int i = lo; i < hi; ++i)
+			{
+				int day = orderDays[lineOrders[i]];
+				if (day >= from && day < to)
+				{
+					sums[lineProducts[i]] += lineQuantities[i];
+				}
+			}
+		});
+		for (int p = 0; p < units.length; ++p)
+		{
+			units[p] *= prices[p];
+		}
+		return units;
+	}
+
+	/**
+	 * Mark the products that sold at least 20000.
+	 * 
+	 * @param best
+	 *            Set to the position of every best selling product among
+	 *            them, by ProductID, and to -1 for the others.
+	 * @return The number of best selling products.
+	 */
+	private static int bestSelling(long[] revenue, int[] best)
+	{
+		int n = 0;
+		for (int p = 0; p < revenue.length; ++p)
+		{
+			best[p] = revenue[p] >= 2000000 ? n++ : -1;
+		}
+		return n;
+	}
+
+	/**
+	 * Add up the lines of the orders placed on the epoch days [from, to) for
+	 * every member of staff linked to them.
+	 * 
+	 * @param best
+	 *            The position of every product whose units are counted, or -1.
+	 * @return For every member of staff s, from s * (nbest + 2): the value of
+	 *         their lines in pence, the number of their lines and the units of
+	 *         every counted product.
+	 */
+	private static long[] staffSums(final int from, final int to, final int[] best, final int nbest)
+	{
+		final int[] linkOrders = Analytics.linkOrders, linkStaff = Analytics.linkStaff,
+				orderStart = Analytics.orderStart, orderDays = Analytics.orderDays,
+				lineProducts = Analytics.lineProducts, lineQuantities = Analytics.lineQuantities;
+		final long[] prices = Analytics.prices;
+		final int width = nbest + 2;
+		return aggregate(links, staffIds.length * width, (sums, lo, hi) -> {
+			for (int k = lo; k < hi; ++k)
+			{
+				int o = linkOrders[k];
+				if (orderDays[o] < from || orderDays[o] >= to)
+				{
+					continue;
+				}
+				int at = linkStaff[k] * width;
+				for (int i = orderStart[o]; i < orderStart[o + 1]; ++i)
+				{
+					int p = lineProducts[i];
+					sums[at] += lineQuantities[i] * prices[p];
+					sums[at + 1] += 1;
+					if (best[p] >= 0)
+					{
+						sums[at + 2 + best[p]] += lineQuantities[i];
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The positions of the n largest amounts, largest first and ties
+	 *         by id.
+	 */
+	private static Integer[] ranked(long[] amounts, int[] ids, int n)
+	{
+		Integer[] order = new Integer[amounts.length];
+		for (int i = 0; i < order.length; ++i)
+		{
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> amounts[a] != amounts[b] ? Long.compare(amounts[b], amounts[a])
+				: Integer.compare(ids[a], ids[b]));
+		return Arrays.copyOf(order, n);
+	}
+
+	private static Ranked ranked(Integer[] order, int[] ids, String[] labels, long[] amounts)
+	{
+		Ranked r = new Ranked(new int[order.length], new String[order.length], new long[order.length]);
+		for (int i = 0; i < order.length; ++i)
+		{
+			r.ids[i] = ids[order[i]];
+			r.labels[i] = labels[order[i]];
+			r.amounts[i] = amounts[order[i]];
+		}
+		return r;
+	}
+
+	/**
+	 * Bring the copy up to date: load everything if it is missing, out of date
+	 * or invalidated, and otherwise, unless it matches the database, read
+	 * again the orders from the last {@link #window} OrderIDs on, and
+	 * everything if it still does not match. On a connection in auto-commit
+	 * mode all of it is read in one serializable (on Oracle, read-consistent)
+	 * transaction, so orders committed meanwhile are not taken for changes.
+	 * 
+	 * @return False if the copy could not be loaded.
+	 */
+	private static boolean refresh(Connection conn)
+	{
+		final int invalidated = invalidations.get();
+		try
+		{
+			final boolean snapshot = conn.getAutoCommit();
+			final int isolation = conn.getTransactionIsolation();
+			if (snapshot)
+			{
+				conn.setAutoCommit(false);
+				conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			}
+			try
+			{
+				if (loadedAfter == invalidated && System.nanoTime() - loaded < ttl)
+				{
+					long[] db = changes(conn);
+					if (matches(db) || append(conn, Math.max(0, newest() - window + 1)) && matches(db))
+					{
+						return true;
+					}
+				}
+				loadedAfter = -1;
+				loadProducts(conn);
+				loadStaff(conn);
+				orders = lines = links = 0;
+				if (!append(conn, Integer.MIN_VALUE))
+				{
+					System.err.println("[WARN] Some order lines changed while they were loaded and are left out.");
+				}
+				loaded = System.nanoTime();
+				loadedAfter = invalidated;
+				return true;
+			}
+			finally
+			{
+				if (snapshot)
+				{
+					conn.commit();
+					conn.setTransactionIsolation(isolation);
+					conn.setAutoCommit(true);
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			loadedAfter = -1;
+			e.printStackTrace();
+			System.err.println("[WARN] Could not load the sales into memory, asking the database.");
+			return false;
+		}
+	}
+
+	/**
+	 * @return The number of orders, the newest OrderID, the number of lines
+	 *         and the number of links to staff in the database.
+	 */
+	private static long[] changes(Connection conn) throws SQLException
+	{
+		ResultSet r = StatementCache.prepare(conn, changes_sql).executeQuery();
+		r.next();
+		return new long[] { r.getLong(1), r.getLong(2), r.getLong(3), r.getLong(4) };
+	}
+
+	/**
+	 * @return Whether the copy has the rows counted by {@link #changes}.
+	 */
+	private static boolean matches(long[] db)
+	{
+		return db[0] == orders && db[1] == newest() && db[2] == lines && db[3] == links;
+	}
+
+	private static int newest()
+	{
+		return orders == 0 ? 0 : orderIds[orders - 1];
+	}
+
+	private static void loadProducts(Connection conn) throws SQLException
+	{
+		IntList ids = new IntList();
+		List<String> descs = new ArrayList<>();
+		List<Long> pence = new ArrayList<>();
+		ResultSet r = ReportOutput.query(StatementCache.prepare(conn, products_sql));
+		while (r.next())
+		{
+			ids.add(r.getInt(1));
+			descs.add(r.getString(2));
+			pence.add(r.getBigDecimal(3).movePointRight(2).longValue());
+		}
+		productIds = ids.toArray();
+		productDescs = descs.toArray(new String[0]);
+		prices = new long[pence.size()];
+		productIndex = new IntIntMap(productIds.length);
+		for (int p = 0; p < productIds.length; ++p)
+		{
+			prices[p] = pence.get(p);
+			productIndex.put(productIds[p], p);
+		}
+	}
+
+	private static void loadStaff(Connection conn) throws SQLException
+	{
+		IntList ids = new IntList();
+		List<String> names = new ArrayList<>();
+		ResultSet r = ReportOutput.query(StatementCache.prepare(conn, staff_sql));
+		while (r.next())
+		{
+			ids.add(r.getInt(1));
+			names.add(r.getString(2) + ' ' + r.getString(3));
+		}
+		staffIds = ids.toArray();
+		staffNames = names.toArray(new String[0]);
+		staffIndex = new IntIntMap(staffIds.length);
+		for (int s = 0; s < staffIds.length; ++s)
+		{
+			staffIndex.put(staffIds[s], s);
+		}
+	}
+
+	/**
+	 * Replace the orders from an OrderID on with those in the database.
+	 * 
+	 * @return False if a line or link refers to a product or member of staff
+	 *         that is not loaded, in which case it is left out.
+	 */
+	private static boolean append(Connection conn, int firstid) throws SQLException
+	{
+		// forget the orders from firstid on
+		int first = lowerBound(orderIds, orders, firstid);
+		orders = first;
+		lines = orderStart[first];
+		links = lowerBound(linkOrders, links, first);
+
+		PreparedStatement stmnt = StatementCache.prepare(conn, orders_sql);
+		stmnt.setInt(1, firstid);
+		ResultSet r = ReportOutput.query(stmnt);
+		while (r.next())
+		{
+			if (orders == orderIds.length)
+			{
+				orderIds = Arrays.copyOf(orderIds, Math.max(1024, orders * 2));
+				orderDays = Arrays.copyOf(orderDays, orderIds.length);
+			}
+			orderIds[orders] = r.getInt(1);
+			orderDays[orders++] = (int) r.getDate(2).toLocalDate().toEpochDay();
+		}
+
+		boolean complete = true;
+		stmnt = StatementCache.prepare(conn, lines_sql);
+		stmnt.setInt(1, firstid);
+		r = ReportOutput.query(stmnt);
+		int o = first;
+		while (r.next())
+		{
+			int ordid = r.getInt(1), p = productIndex.get(r.getInt(2), -1);
+			while (o < orders && orderIds[o] < ordid)
+			{
+				++o;
+			}
+			if (o == orders || orderIds[o] != ordid || p < 0)
+			{
+				// placed or changed while loading, picked up next time
+				complete &= p >= 0;
+				continue;
+			}
+			if (lines == lineOrders.length)
+			{
+				lineOrders = Arrays.copyOf(lineOrders, Math.max(1024, lines * 2));
+				lineProducts = Arrays.copyOf(lineProducts, lineOrders.length);
+				lineQuantities = Arrays.copyOf(lineQuantities, lineOrders.length);
+			}
+			lineOrders[lines] = o;
+			lineProducts[lines] = p;
+			lineQuantities[lines++] = r.getInt(3);
+		}
+		if (orderStart.length < orders + 1)
+		{
+			orderStart = Arrays.copyOf(orderStart, orderIds.length + 1);
+		}
+		for (int i = orderStart[first], k = first; k < orders; ++k)
+		{
+			orderStart[k] = i;
+			while (i < lines && lineOrders[i] == k)
+			{
+				++i;
+			}
+		}
+		orderStart[orders] = lines;
+
+		stmnt = StatementCache.prepare(conn, links_sql);
+		stmnt.setInt(1, firstid);
+		r = ReportOutput.query(stmnt);
+		o = first;
+		while (r.next())
+		{
+			int ordid = r.getInt(1), s = staffIndex.get(r.getInt(2), -1);
+			while (o < orders && orderIds[o] < ordid)
+			{
+				++o;
+			}
+			if (o == orders || orderIds[o] != ordid || s < 0)
+			{
+				complete &= s >= 0;
+				continue;
+			}
+			if (links == linkOrders.length)
+			{
+				linkOrders = Arrays.copyOf(linkOrders, Math.max(1024, links * 2));
+				linkStaff = Arrays.copyOf(linkStaff, linkOrders.length);
+			}
+			linkOrders[links] = o;
+			linkStaff[links++] = s;
+		}
+		return complete;
+	}
+
+	/**
+	 * @return The first position among a[0..n) of a value of at least x; a is
+	 *         sorted.
+	 */
+	private static int lowerBound(int[] a, int n, int x)
+	{
+		int lo = 0, hi = n;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (a[mid] < x)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
+
+/**
+ * A table of results in one of the {@link ReportFormat}s. Cells are added row
+ * by row, left to right. The table is either built in memory and written out
+ * with a single write, or streamed to a writer a block of rows at a time so
+ * that reports of any size take little memory.
+ */
+class Report
+{
+	/** The number of characters a streamed report buffers between writes. */
+	private static final int block = 1 << 16;
+
+	private final ReportFormat format;
+	private final String[] columns;
+	private final int[] widths;
+	private final StringBuilder out = new StringBuilder();
+	private final PrintWriter sink;
+	private int column = 0, rows = 0;
+
+	/**
+	 * @param format
+	 *            How the table is written.
+	 * @param columns
+	 *            The names of the columns.
+	 * @param widths
+	 *            The width of each column on the console, negative for left
+	 *            aligned columns as with printf.
+	 */
+	Report(ReportFormat format, String[] columns, int[] widths)
+	{
+		this(format, columns, widths, null);
+	}
+
+	/**
+	 * A report that is streamed to a writer and finished with
+	 * {@link #finish}.
+	 * 
+	 * @param sink
+	 *            Where the rows are written to, or null to build the report in
+	 *            memory.
+	 */
+	Report(ReportFormat format, String[] columns, int[] widths, PrintWriter sink)
+	{
+		this.format = format;
+		this.columns = columns;
+		this.widths = widths;
+		this.sink = sink;
+		format.header(out, columns, widths);
+	}
+
+	public Report cell(String text)
+	{
+		return cell(text, false);
+	}
+
+	public Report cell(long x)
+	{
+		return cell(Long.toString(x), true);
+	}
+
+	/**
+	 * Add an amount of money: the GBP symbol and two fixed decimals on the
+	 * console, a number with two decimals otherwise.
+	 */
+	public Report money(double x)
+	{
+		return format == ReportFormat.CONSOLE ? cell("$" + String.format("%.2f", x))
+				: cell(String.format("%.2f", x), true);
+	}
+
+	private Report cell(String text, boolean number)
+	{
+		if (column == 0)
+		{
+			format.beginRow(out, rows);
+		}
+		format.cell(out, columns, widths, column, text, number);
+		if (++column == columns.length)
+		{
+			format.endRow(out);
+			column = 0;
+			++rows;
+			if (sink != null && out.length() >= block)
+			{
+				flush();
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Write the rows added so far to the writer of a streamed report.
+	 */
+	public void flush()
+	{
+		sink.append(out);
+		sink.flush();
+		out.setLength(0);
+	}
+
+	/**
+	 * Write the rest of a streamed report.
+	 * 
+	 * @return False if writing failed.
+	 */
+	public boolean finish()
+	{
+		format.footer(out, rows);
+		flush();
+		return !sink.checkError();
+	}
+
+	public int rows()
+	{
+		return rows;
+	}
+
+	/**
+	 * Write the whole table.
+	 */
+	public void print(PrintStream ps)
+	{
+		format.footer(out, rows);
+		ps.print(out);
+		ps.flush();
+	}
+}
+
+/**
+ * The ways a {@link Report} can be written. The format of the reports of the
+ * menu is chosen with <code>-Dreport.format=console|csv|json</code>.
+ */
+enum ReportFormat
+{
+	/** Columns padded to a fixed width and separated by commas. */
+	CONSOLE
+	{
+		@Override
+		void header(StringBuilder out, String[] columns, int[] widths)
+		{
+			for (int i = 0; i < columns.length; ++i)
+			{
+				cell(out, columns, widths, i, columns[i], false);
+			}
+			endRow(out);
+		}
+
+		@Override
+		void cell(StringBuilder out, String[] columns, int[] widths, int i, String text, boolean number)
+		{
+			if (i > 0)
+			{
+				out.append(' ');
+			}
+			int length = text.length() + (i < columns.length - 1 ? 1 : 0);
+			int padding = Math.abs(widths[i]) - length;
+			if (widths[i] > 0)
+			{
+				pad(out, padding);
+			}
+			out.append(text);
+			if (i < columns.length - 1)
+			{
+				out.append(',');
+			}
+			if (widths[i] < 0)
+			{
+				pad(out, padding);
+			}
+		}
+	},
+	/** Comma separated values with a header line. */
+	CSV
+	{
+		@Override
+		void header(StringBuilder out, String[] columns, int[] widths)
+		{
+			for (int i = 0; i < columns.length; ++i)
+			{
+				cell(out, columns, widths, i, columns[i], false);
+			}
+			endRow(out);
+		}
+
+		@Override
+		void cell(StringBuilder out, String[] columns, int[] widths, int i, String text, boolean number)
+		{
+			if (i > 0)
+			{
+				out.append(',');
+			}
+			if (number || text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0)
+			{
+				out.append(text);
+				return;
+			}
+			out.append('"').append(text.replace("\"", "\"\"")).append('"');
+		}
+	},
+	/** An array with one object per row, keyed by column name. */
+	JSON
+	{
+		@Override
+		void header(StringBuilder out, String[] columns, int[] widths)
+		{
+			out.append('[');
+		}
+
+		@Override
+		void beginRow(StringBuilder out, int row)
+		{
+			out.append(row == 0 ? "\n{" : ",\n{");
+		}
+
+		@Override
+		void cell(StringBuilder out, String[] columns, int[] widths, int i, String text, boolean number)
+		{
+			if (i > 0)
+			{
+				out.append(", ");
+			}
+			quote(out, columns[i]).append(": ");
+			if (number)
+			{
+				out.append(text);
+			}
+			else
+			{
+				quote(out, text);
+			}
+		}
+
+		@Override
+		void endRow(StringBuilder out)
+		{
+			out.append('}');
+		}
+
+		@Override
+		void footer(StringBuilder out, int rows)
+		{
+			out.append("\n]\n");
+		}
+	};
+
+	/** The format selected with the report.format property. */
+	static final ReportFormat selected = fromProperty();
+
+	private static ReportFormat fromProperty()
+	{
+		return named(System.getProperty("report.format", "console"));
+	}
+
+	/**
+	 * @return The format of a name, ignoring case, or CONSOLE if there is none.
+	 */
+	static ReportFormat named(String name)
+	{
+		try
+		{
+			return valueOf(name.toUpperCase());
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[WARN] Unknown report format " + name + ", using console.");
+			return CONSOLE;
+		}
+	}
+
+	abstract void header(StringBuilder out, String[] columns, int[] widths);
+
+	void beginRow(StringBuilder out, int row)
+	{
+	}
+
+	/**
+	 * Append the cell of column i of the current row.
+	 * 
+	 * @param number
+	 *            Whether the text is a number.
+	 */
+	abstract void cell(StringBuilder out, String[] columns, int[] widths, int i, String text, boolean number);
+
+	void endRow(StringBuilder out)
+	{
+		out.append('\n');
+	}
+
+	void footer(StringBuilder out, int rows)
+	{
+	}
+
+	private static void pad(StringBuilder out, int n)
+	{
+		for (int i = 0; i < n; ++i)
+		{
+			out.append(' ');
+		}
+	}
+
+	private static StringBuilder quote(StringBuilder out, String s)
+	{
+		out.append('"');
+		for (int i = 0; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				out.append('\\').append(c);
+			}
+			else if (c < ' ')
+			{
+				out.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				out.append(c);
+			}
+		}
+		return out.append('"');
+	}
+}
+
+/**
+ * Where the reports of options 4 and 6-8 go: the console, through a buffer, or
+ * with -Dreport.dir=directory a file per option in that directory, e.g.
+ * option4.csv with -Dreport.format=csv. Report queries fetch
+ * -Dreport.fetch=1000 rows per round trip, and option 4 shows
+ * -Dreport.page rows at a time on the console if given.
+ */
+class ReportOutput implements AutoCloseable
+{
+	static final String dir = System.getProperty("report.dir");
+
+	static final int fetch = Math.max(1, Integer.getInteger("report.fetch", 1000));
+
+	static final int page = Integer.getInteger("report.page", 0);
+
+	private final PrintWriter out;
+	private final Path path;
+
+	private ReportOutput(PrintWriter out, Path path)
+	{
+		this.out = out;
+		this.path = path;
+	}
+
+	/**
+	 * @param name
+	 *            The name of the report, used for its file name.
+	 */
+	static ReportOutput open(String name) throws IOException
+	{
+		if (dir == null)
+		{
+			return new ReportOutput(new PrintWriter(new OutputStreamWriter(System.out)), null);
+		}
+		String ext = ReportFormat.selected == ReportFormat.CONSOLE ? "txt"
+				: ReportFormat.selected.name().toLowerCase();
+		Path path = Paths.get(dir, name + '.' + ext);
+		return new ReportOutput(new PrintWriter(Files.newBufferedWriter(path)), path);
+	}
+
+	/**
+	 * @return Whether option 4 is shown a page at a time.
+	 */
+	static boolean paged()
+	{
+		return dir == null && page > 0;
+	}
+
+	/**
+	 * Execute a report query, fetching rows in blocks of
+	 * {@link #fetch}.
+	 */
+	static ResultSet query(PreparedStatement stmnt) throws SQLException
+	{
+		stmnt.setFetchSize(fetch);
+		return stmnt.executeQuery();
+	}
+
+	/**
+	 * @return A report streamed to this output in the selected format.
+	 */
+	Report report(String[] columns, int[] widths)
+	{
+		return new Report(ReportFormat.selected, columns, widths, out);
+	}
+
+	/**
+	 * Print a line that is not part of a report, e.g. that there is nothing
+	 * to report.
+	 */
+	void info(String line)
+	{
+		if (path == null)
+		{
+			out.println(line);
+		}
+		else
+		{
+			System.out.println(line);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		out.flush();
+		if (path == null)
+		{
+			return;
+		}
+		out.close();
+		if (out.checkError())
+		{
+			System.err.println("[ERROR] Could not write " + path);
+		}
+		else
+		{
+			System.out.println("[INFO] Wrote " + path);
+		}
+	}
+}
+
+class StringOptionsNoCase implements VarConstraints<String>
+{
+	private HashSet<String> options = new HashSet<>();
+
+	public StringOptionsNoCase(String... options)
+	{
+		for (String o : options)
+		{
+			this.options.add(o.toLowerCase());
+		}
+	}
+
+	@Override
+	public boolean verify(String t)
+	{
+		return options.contains(t.toLowerCase());
+	}
+
 }
 
 /**
@@ -1005,433 +7844,891 @@ class Assignment
 	/**
 	 * @param conn
 	 *            An open database connection
-	 * @param productIDs
-	 *            An array of productIDs associated with an order
-	 * @param quantities
-	 *            An array of quantities of a product. The index of a quantity
-	 *            correspeonds with an index in productIDs
-	 * @param orderDate
-	 *            A string in the form of 'DD-Mon-YY' that represents the date
-	 *            the order was made
-	 * @param staffID
-	 *            The id of the staff member who sold the order
+	 * @param productIDs
+	 *            An array of productIDs associated with an order
+	 * @param quantities
+	 *            An array of quantities of a product. The index of a quantity
+	 *            correspeonds with an index in productIDs
+	 * @param orderDate
+	 *            A string in the form of 'DD-Mon-YY' that represents the date
+	 *            the order was made
+	 * @param staffID
+	 *            The id of the staff member who sold the order
+	 */
+	public static void option1(Connection conn, int[] productIDs, int[] quantities, String orderDate, int staffID)
+	{
+		printPlacedOrder(OrderPlacement.placeInStoreOrder(conn, productIDs, quantities, orderDate, staffID));
+	}
+
+	/**
+	 * @param conn
+	 *            An open database connection
+	 * @param productIDs
+	 *            An array of productIDs associated with an order
+	 * @param quantities
+	 *            An array of quantities of a product. The index of a quantity
+	 *            correspeonds with an index in productIDs
+	 * @param orderDate
+	 *            A string in the form of 'DD-Mon-YY' that represents the date
+	 *            the order was made
+	 * @param collectionDate
+	 *            A string in the form of 'DD-Mon-YY' that represents the date
+	 *            the order will be collected
+	 * @param fName
+	 *            The first name of the customer who will collect the order
+	 * @param LName
+	 *            The last name of the customer who will collect the order
+	 * @param staffID
+	 *            The id of the staff member who sold the order
+	 */
+	public static void option2(Connection conn, int[] productIDs, int[] quantities, String orderDate,
+			String collectionDate, String fName, String LName, int staffID)
+	{
+		printPlacedOrder(OrderPlacement.placeCollectionOrder(conn, productIDs, quantities, orderDate, staffID, fName,
+				LName, collectionDate));
+	}
+
+	/**
+	 * @param conn
+	 *            An open database connection
+	 * @param productIDs
+	 *            An array of productIDs associated with an order
+	 * @param quantities
+	 *            An array of quantities of a product. The index of a quantity
+	 *            correspeonds with an index in productIDs
+	 * @param orderDate
+	 *            A string in the form of 'DD-Mon-YY' that represents the date
+	 *            the order was made
+	 * @param deliveryDate
+	 *            A string in the form of 'DD-Mon-YY' that represents the date
+	 *            the order will be delivered
+	 * @param fName
+	 *            The first name of the customer who will receive the order
+	 * @param LName
+	 *            The last name of the customer who will receive the order
+	 * @param house
+	 *            The house name or number of the delivery address
+	 * @param street
+	 *            The street name of the delivery address
+	 * @param city
+	 *            The city name of the delivery address
+	 * @param staffID
+	 *            The id of the staff member who sold the order
+	 */
+	public static void option3(Connection conn, int[] productIDs, int[] quantities, String orderDate,
+			String deliveryDate, String fName, String LName, String house, String street, String city, int staffID)
+	{
+		printPlacedOrder(OrderPlacement.placeDeliveryOrder(conn, productIDs, quantities, orderDate, staffID, fName,
+				LName, house, street, city, deliveryDate));
+	}
+
+	/**
+	 * Show the stock left of every product of a placed order.
+	 *
+	 * @param placed
+	 *            The order that was placed or null if placing it failed.
+	 */
+	private static void printPlacedOrder(OrderPlacement.PlacedOrder placed)
+	{
+		if (placed == null)
+		{
+			System.err.println("[ERROR] Failed to place new order.");
+			return;
+		}
+		for (int i = 0; i < placed.productIDs.length; ++i)
+		{
+			System.out.printf("Product ID %d stock is now %d.\n", placed.productIDs[i], placed.stocks[i]);
+		}
+	}
+
+	private static final String[] op4_columns = { "ProductID", "ProductDesc", "TotalValueSold" };
+	private static final int[] op4_widths = { -10, -30, 10 };
+
+	/**
+	 * @param conn
+	 *            An open database connection
+	 */
+	public static void option4(Connection conn)
+	{
+		try (ReportOutput output = ReportOutput.open("option4"))
+		{
+			Report report = output.report(op4_columns, op4_widths);
+			Analytics.Ranked ranked = Analytics.enabled ? Analytics.productRevenue(conn) : null;
+			if (ranked != null)
+			{
+				for (int i = 0; i < ranked.ids.length; ++i)
+				{
+					report.cell(ranked.ids[i]).cell(ranked.labels[i]).money(ranked.amounts[i] / 100.0);
+				}
+			}
+			else
+			{
+				ResultSet r = ReportOutput.query(StatementCache.prepare(conn, op4_sql));
+				while (r.next())
+				{
+					op4Row(report, r);
+				}
+			}
+			report.finish();
+		}
+		catch (SQLException | IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Option 4 shown {@link ReportOutput#page} products at a time. Every page
+	 * after the first is selected by the revenue and id of the last product of
+	 * the one before, so showing a page costs the same however far down the
+	 * list it is.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @return The nanoseconds spent waiting for the user to ask for the next
+	 *         page.
+	 */
+	private static long option4Paged(Connection conn, Scanner s)
+	{
+		long waited = 0;
+		try (ReportOutput output = ReportOutput.open("option4"))
+		{
+			Report report = output.report(op4_columns, op4_widths);
+			PreparedStatement op4_select = StatementCache.prepare(conn, op4_first_sql);
+			op4_select.setInt(1, ReportOutput.page);
+			BigDecimal revenue = null;
+			int productid = 0;
+			for (;;)
+			{
+				ResultSet r = ReportOutput.query(op4_select);
+				int n = 0;
+				while (r.next())
+				{
+					++n;
+					productid = r.getInt("ProductID");
+					revenue = r.getBigDecimal("ProductRevenue");
+					op4Row(report, r);
+				}
+				report.flush();
+				if (n < ReportOutput.page)
+				{
+					break;
+				}
+				long asked = System.nanoTime();
+				boolean next = getSomeYesNo(s, "Show the next " + n + " products? (y/n) ");
+				waited += System.nanoTime() - asked;
+				if (!next)
+				{
+					break;
+				}
+				op4_select = StatementCache.prepare(conn, op4_next_sql);
+				op4_select.setBigDecimal(1, revenue);
+				op4_select.setBigDecimal(2, revenue);
+				op4_select.setInt(3, productid);
+				op4_select.setInt(4, ReportOutput.page);
+			}
+			report.finish();
+		}
+		catch (SQLException | IOException e)
+		{
+			e.printStackTrace();
+		}
+		return waited;
+	}
+
+	private static void op4Row(Report report, ResultSet r) throws SQLException
+	{
+		report.cell(r.getInt("ProductID")).cell(r.getString("ProductDesc")).money(r.getDouble("ProductRevenue"));
+	}
+
+	/**
+	 * Select all from view VIEW_REVENUE_PER_PRODUCT.
+	 */
+	private static final String op4_sql = "SELECT * FROM v_opt4";
+
+	/**
+	 * The first page of option 4, ties broken by ProductID.
+	 * 
+	 * @param 1
+	 *            INTEGER The number of products of a page
+	 */
+	//@formatter:off
+	private static final String op4_first_sql = "SELECT ProductID, ProductDesc, ProductRevenue FROM v_opt4"
+			+ " ORDER BY ProductRevenue DESC, ProductID"
+			+ " FETCH FIRST ? ROWS ONLY";
+	//@formatter:on
+
+	/**
+	 * The page of option 4 after a product.
+	 * 
+	 * @param 1
+	 *            NUMBER The ProductRevenue of the last product shown
+	 * @param 2
+	 *            NUMBER The ProductRevenue of the last product shown
+	 * @param 3
+	 *            INTEGER The ProductID of the last product shown
+	 * @param 4
+	 *            INTEGER The number of products of a page
+	 */
+	//@formatter:off
+	private static final String op4_next_sql = "SELECT ProductID, ProductDesc, ProductRevenue FROM v_opt4"
+			+ " WHERE ProductRevenue < ? OR ProductRevenue = ? AND ProductID > ?"
+			+ " ORDER BY ProductRevenue DESC, ProductID"
+			+ " FETCH FIRST ? ROWS ONLY";
+	//@formatter:on
+	private static final String op6_sql = "SELECT * FROM v_opt6";
+	private static final String op7_sql = "SELECT * FROM v_opt7";
+	/**
+	 * Staff that sold at least 30000 in a year and sold every product that sold
+	 * at least 20000 in that year, in one pass over the order lines of the
+	 * year. Each line carries the revenue of its product in the year and the
+	 * number of best selling products (analytic functions over all lines of
+	 * the year), so a member of staff sold every best selling product if the
+	 * best selling products among their lines are as many.
+	 * 
+	 * @param 1
+	 *            DATE The first day of the year.
+	 * @param 2
+	 *            DATE The first day of the next year.
+	 */
+	//@formatter:off
+	private static final String op8_sql = "SELECT s.FName, s.LName"
+			+ " FROM (SELECT so.StaffID, SUM(l.LineValue) AS Sales,"
+					+ " COUNT(DISTINCT CASE WHEN l.ProductRevenue >= 20000 THEN l.ProductID END) AS BestSold,"
+					+ " MAX(l.BestCount) AS BestCount"
+				+ " FROM (SELECT OrderID, ProductID, LineValue, ProductRevenue,"
+						+ " COUNT(DISTINCT CASE WHEN ProductRevenue >= 20000 THEN ProductID END) OVER () AS BestCount"
+					+ " FROM (SELECT op.OrderID, op.ProductID, op.ProductQuantity * i.ProductPrice AS LineValue,"
+							+ " SUM(op.ProductQuantity * i.ProductPrice) OVER (PARTITION BY op.ProductID) AS ProductRevenue"
+						+ " FROM ORDERS o"
+							+ " INNER JOIN ORDER_PRODUCTS op ON op.OrderID = o.OrderID"
+							+ " INNER JOIN INVENTORY i ON i.ProductID = op.ProductID"
+						+ " WHERE o.OrderPlaced >= ? AND o.OrderPlaced < ?)) l"
+					+ " INNER JOIN STAFF_ORDERS so ON so.OrderID = l.OrderID"
+				+ " GROUP BY so.StaffID) y"
+				+ " INNER JOIN STAFF s ON s.StaffID = y.StaffID"
+			+ " WHERE y.Sales >= 30000 AND y.BestSold = y.BestCount";
+	//@formatter:on
+	/**
+	 * The definition of option 8 by views, kept to check {@link #op8_sql}
+	 * against.
+	 * 
+	 * @param 1
+	 *            INTEGER The year of the sales.
+	 */
+	//@formatter:off
+	private static final String op8_reference_sql = "SELECT FName, LName"
+			+ " FROM v_sub_opt8"
+			+ " WHERE OrderYear = ?";
+	//@formatter:on
+
+	/**
+	 * @param conn
+	 *            An open database connection
+	 * @param date
+	 *            The target date to test collection deliveries against
+	 */
+	public static void option5(Connection conn, String date)
+	{
+		if (StaleCollections.each)
+		{
+			cancelEach(conn, date);
+			return;
+		}
+		StaleCollections.Cancelled cancelled = StaleCollections.cancel(conn, OracleDateFormat.stringToDate(date));
+		if (cancelled == null)
+		{
+			System.out.println("Failed to cancel orders");
+			return;
+		}
+		for (int i = 0; i < cancelled.orderIDs.length; ++i)
+		{
+			System.out.println("Order " + cancelled.orderIDs[i] + " has been cancelled (date:"
+					+ OracleDateFormat.dateToString(cancelled.collectionDates[i]) + ")");
+		}
+	}
+
+	/**
+	 * Option 5 with the orders cancelled one at a time by
+	 * {@link Order#cancelOrder(Connection)}. In auto-commit mode every release
+	 * of stock and every delete commits on its own, so an order that fails
+	 * halfway keeps the stock already given back.
+	 */
+	private static void cancelEach(Connection conn, String date)
+	{
+		try
+		{
+			PreparedStatement op5_select = StatementCache.prepare(conn, StaleCollections.select_sql);
+			op5_select.setDate(1, StaleCollections.cutoff(OracleDateFormat.stringToDate(date)));
+			ResultSet r = op5_select.executeQuery();
+			while (r.next())
+			{
+				int orderid = r.getInt("OrderID");
+				Order ord = Order.select(conn, orderid);
+				if (ord == null)
+				{
+					System.err.println("Failed select order with id " + orderid);
+					continue;
+				}
+				if (ord.cancelOrder(conn))
+				{
+					System.out.println("Order " + orderid + " has been cancelled (date:"
+							+ OracleDateFormat.dateToString(r.getDate("CollectionDate")) + ")");
+				}
+				else
+				{
+					System.out.println("Failed to cancel order " + ord.id);
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param conn
+	 *            An open database connection
 	 */
-	public static void option1(Connection conn, int[] productIDs, int[] quantities, String orderDate, int staffID)
+	public static void option6(Connection conn)
 	{
-		Order ord = Order.insertInStoreOrder(orderDate);
-		if (ord == null)
+		Analytics.Ranked ranked = Analytics.enabled ? Analytics.staffSales(conn) : null;
+		if (ranked != null)
 		{
-			System.err.println("Failed to insert new order");
+			option6(ranked);
 			return;
 		}
-		for (int i = 0; i < productIDs.length; ++i)
+		try (ReportOutput output = ReportOutput.open("option6"))
 		{
-			int pid = productIDs[i];
-			int amount = quantities[i];
-			Product p = ord.addProduct(pid, amount);
-			if (p == null)
+			ResultSet r = ReportOutput.query(StatementCache.prepare(conn, op6_sql));
+			if (r.next())
 			{
-				continue;
+				Report report = output.report(new String[] { "EmployeeName", "TotalValueSold" }, new int[] { -30, 10 });
+				do
+				{
+					report.cell(r.getString("FName") + ' ' + r.getString("LName")).money(r.getDouble("StaffSales"));
+				} while (r.next());
+				report.finish();
+			}
+			else
+			{
+				output.info("[INFO] No staff that match the criteria.");
 			}
-			System.out.printf("Product ID %d stock is now %d.\n", p.id, p.getStock());
 		}
-		StaffOrders.link(staffID, ord.id);
+		catch (SQLException | IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Option 6 from {@link Analytics}.
+	 */
+	private static void option6(Analytics.Ranked ranked)
+	{
+		try (ReportOutput output = ReportOutput.open("option6"))
+		{
+			if (ranked.ids.length == 0)
+			{
+				output.info("[INFO] No staff that match the criteria.");
+				return;
+			}
+			Report report = output.report(new String[] { "EmployeeName", "TotalValueSold" }, new int[] { -30, 10 });
+			for (int i = 0; i < ranked.ids.length; ++i)
+			{
+				report.cell(ranked.labels[i]).money(ranked.amounts[i] / 100.0);
+			}
+			report.finish();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
 	}
 
 	/**
 	 * @param conn
 	 *            An open database connection
-	 * @param productIDs
-	 *            An array of productIDs associated with an order
-	 * @param quantities
-	 *            An array of quantities of a product. The index of a quantity
-	 *            correspeonds with an index in productIDs
-	 * @param orderDate
-	 *            A string in the form of 'DD-Mon-YY' that represents the date
-	 *            the order was made
-	 * @param collectionDate
-	 *            A string in the form of 'DD-Mon-YY' that represents the date
-	 *            the order will be collected
-	 * @param fName
-	 *            The first name of the customer who will collect the order
-	 * @param LName
-	 *            The last name of the customer who will collect the order
-	 * @param staffID
-	 *            The id of the staff member who sold the order
 	 */
-	public static void option2(Connection conn, int[] productIDs, int[] quantities, String orderDate,
-			String collectionDate, String fName, String LName, int staffID)
+	public static void option7(Connection conn)
 	{
+		Pivot pivot = new Pivot();
+		if (Analytics.enabled && Analytics.bestSellers(conn, pivot))
+		{
+			printPivot(pivot);
+			return;
+		}
+		try
+		{
+			ResultSet r = ReportOutput.query(StatementCache.prepare(conn, op7_sql));
+			while (r.next())
+			{
+				int staffid = r.getInt("StaffID");
+				int row = pivot.rowOf(staffid);
+				if (row < 0)
+				{
+					row = pivot.addRow(staffid, r.getString("FName") + ' ' + r.getString("LName"));
+				}
+				pivot.add(row, pivot.col(r.getInt("ProductID")), r.getInt("ProductSoldCount"));
+			}
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		printPivot(pivot);
+	}
 
-		Order ord = Order.insertCollectionOrder(orderDate);
-		if (ord == null)
+	private static void printPivot(Pivot pivot)
+	{
+		if (pivot.cols() == 0)
 		{
-			System.err.println("Failed to insert new order");
+			System.out.println("[INFO] No best selling products.");
 			return;
 		}
-		for (int i = 0; i < productIDs.length; ++i)
+
+		String[] columns = new String[pivot.cols() + 1];
+		int[] widths = new int[columns.length];
+		columns[0] = "EmployeeName";
+		widths[0] = -60;
+		for (int j = 0; j < pivot.cols(); ++j)
 		{
-			int pid = productIDs[i];
-			int amount = quantities[i];
-			Product p = ord.addProduct(pid, amount);
-			if (p == null)
+			columns[j + 1] = "Product " + pivot.colKey(j);
+			widths[j + 1] = -20;
+		}
+		try (ReportOutput output = ReportOutput.open("option7"))
+		{
+			Report report = output.report(columns, widths);
+			for (int i = 0; i < pivot.rows(); ++i)
 			{
-				continue;
+				report.cell(pivot.rowLabel(i));
+				for (int j = 0; j < pivot.cols(); ++j)
+				{
+					report.cell(pivot.get(i, j));
+				}
 			}
-			System.out.printf("Product ID %d stock is now %d.\n", p.id, p.getStock());
+			report.finish();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
 		}
-		Collection.insert(ord, fName, LName, collectionDate);
-		StaffOrders.link(staffID, ord.id);
 	}
 
 	/**
 	 * @param conn
 	 *            An open database connection
-	 * @param productIDs
-	 *            An array of productIDs associated with an order
-	 * @param quantities
-	 *            An array of quantities of a product. The index of a quantity
-	 *            correspeonds with an index in productIDs
-	 * @param orderDate
-	 *            A string in the form of 'DD-Mon-YY' that represents the date
-	 *            the order was made
-	 * @param deliveryDate
-	 *            A string in the form of 'DD-Mon-YY' that represents the date
-	 *            the order will be delivered
-	 * @param fName
-	 *            The first name of the customer who will receive the order
-	 * @param LName
-	 *            The last name of the customer who will receive the order
-	 * @param house
-	 *            The house name or number of the delivery address
-	 * @param street
-	 *            The street name of the delivery address
-	 * @param city
-	 *            The city name of the delivery address
-	 * @param staffID
-	 *            The id of the staff member who sold the order
+	 * @param year
+	 *            The target year we match employee and product sales against
 	 */
-	public static void option3(Connection conn, int[] productIDs, int[] quantities, String orderDate,
-			String deliveryDate, String fName, String LName, String house, String street, String city, int staffID)
+	public static void option8(Connection conn, int year)
 	{
-		Order ord = Order.insertDeliveryOrder(orderDate);
-		if (ord == null)
-		{
-			System.err.println("[ERROR] Failed to insert new order.");
-			return;
-		}
-		for (int i = 0; i < productIDs.length; ++i)
+		try (ReportOutput output = ReportOutput.open("option8"))
 		{
-			int pid = productIDs[i];
-			int amount = quantities[i];
-			Product p = ord.addProduct(pid, amount);
-			if (p == null)
+			List<String> names = promotedStaff(conn, year);
+			if (names.isEmpty())
 			{
-				continue;
+				output.info("[INFO] No staff that match the criteria.");
+				return;
+			}
+			Report report = output.report(new String[] { "EmployeeName" }, new int[] { -60 });
+			for (String name : names)
+			{
+				report.cell(name);
 			}
-			System.out.printf("Product ID %d stock is now %d.\n", p.id, p.getStock());
+			report.finish();
+		}
+		catch (SQLException | IOException e)
+		{
+			e.printStackTrace();
 		}
-		Delivery.insert(ord, fName, LName, house, street, city, deliveryDate);
-		StaffOrders.link(staffID, ord.id);
 	}
 
 	/**
-	 * Prepend GBP symbol and show two fixed decimals
-	 * 
-	 * @param x
-	 *            The number to be formatted to
-	 * @return Formatted string
+	 * @return The names of the staff found by option 8, sorted.
+	 */
+	private static List<String> promotedStaff(Connection conn, int year) throws SQLException
+	{
+		List<String> names = Analytics.enabled ? Analytics.promotedStaff(conn, year) : null;
+		return names != null ? names : promotedStaffSql(conn, year);
+	}
+
+	/**
+	 * @return The names of the staff found by {@link #op8_sql}, sorted.
 	 */
-	private static String gbpFormat(double x)
+	private static List<String> promotedStaffSql(Connection conn, int year) throws SQLException
 	{
-		return "$" + String.format("%.2f", x);
+		PreparedStatement op8_select = StatementCache.prepare(conn, op8_sql);
+		op8_select.setDate(1, Date.valueOf(LocalDate.of(year, 1, 1)));
+		op8_select.setDate(2, Date.valueOf(LocalDate.of(year + 1, 1, 1)));
+		return names(ReportOutput.query(op8_select));
+	}
+
+	private static List<String> names(ResultSet r) throws SQLException
+	{
+		List<String> names = new ArrayList<>();
+		while (r.next())
+		{
+			names.add(r.getString("FName") + ' ' + r.getString("LName"));
+		}
+		Collections.sort(names);
+		return names;
 	}
 
 	/**
+	 * Compare the results of option 8 with those of the view v_sub_opt8 for a
+	 * range of years. {@link #op8_sql} is always compared; with
+	 * -Danalytics=true the in-memory copy is compared as well.
+	 * 
 	 * @param conn
 	 *            An open database connection
+	 * @return The number of years whose results differ, or -1 if they could
+	 *         not be compared.
 	 */
-	public static void option4(Connection conn)
+	public static int verifyOption8(Connection conn, int firstYear, int lastYear)
 	{
-		final String fstr = "%-10s %-30s %10s\n";
-		System.out.printf(fstr, "ProductID,", "ProductDesc,", "TotalValueSold");
+		int differ = 0;
 		try
 		{
-			ResultSet r = op4_select.executeQuery();
-			while (r.next())
+			PreparedStatement reference_select = StatementCache.prepare(conn, op8_reference_sql);
+			for (int year = firstYear; year <= lastYear; ++year)
 			{
-				System.out.printf(fstr, r.getInt("ProductID") + ",", r.getString("ProductDesc") + ',',
-						gbpFormat(r.getDouble("ProductRevenue")));
+				reference_select.setInt(1, year);
+				List<String> expected = names(reference_select.executeQuery());
+				List<String> actual = promotedStaffSql(conn, year);
+				boolean same = expected.equals(actual);
+				if (!same)
+				{
+					System.out.println("[WARN] " + year + ": v_sub_opt8 " + expected + ", option 8 " + actual);
+				}
+				if (Analytics.enabled)
+				{
+					List<String> copy = Analytics.promotedStaff(conn, year);
+					if (!expected.equals(copy))
+					{
+						same = false;
+						System.out.println("[WARN] " + year + ": v_sub_opt8 " + expected + ", analytics " + copy);
+					}
+				}
+				if (!same)
+				{
+					++differ;
+				}
 			}
 		}
 		catch (SQLException e)
 		{
 			e.printStackTrace();
+			return -1;
 		}
+		System.out.println("[INFO] " + (differ == 0 ? "Option 8 matches v_sub_opt8." : differ + " years differ."));
+		return differ;
 	}
 
 	/**
-	 * Select all from view VIEW_REVENUE_PER_PRODUCT.
-	 */
-	private static PreparedStatement op4_select;
-	/**
-	 * Get all orders of type Collection that have yet to be completed and are
-	 * at least 8 days old.
+	 * Used during development to connect to Oracle DB run on localhost. You
+	 * should only need to fetch the connection details once
 	 * 
-	 * @param 1
-	 *            DATE The date relative to which all orders will be checked.
+	 * @return
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
 	 */
-	private static PreparedStatement op5_select, op6_select, op7_select, op8_select;
-
-	private static boolean prepareStatements(Connection conn)
+	public static Connection getConnection2() throws ClassNotFoundException, SQLException
 	{
-		try
-		{
-			Order.prepareStatements(conn);
-			OrderItems.prepareStatements(conn);
-			StaffOrders.prepareStatements(conn);
-			Staff.prepareStatements(conn);
-			Collection.prepareStatements(conn);
-			Product.prepareStatements(conn);
-			Delivery.prepareStatements(conn);
+		Class.forName("oracle.jdbc.driver.OracleDriver");
+		// DriverManager.registerDriver (new oracle.jdbc.OracleDriver());
 
-			String sql = "SELECT * FROM v_opt4";
-			op4_select = conn.prepareStatement(sql);
+		final String user = "c##jaccy";
+		final String passwrd = "jacc3421";
+		return DriverManager.getConnection("jdbc:oracle:thin:@localhost:1521:ORCL256", user, passwrd);
+	}
 
-			//@formatter:off
-			sql = "SELECT OrderID, CollectionDate"
-					+ " FROM (SELECT * FROM ORDERS WHERE OrderType = 'Collection' AND OrderCompleted = 0)"
-						+ " INNER JOIN Collections USING (OrderID)"
-					+ " WHERE ? - CollectionDate >= 8";
-			//@formatter:on
-			op5_select = conn.prepareStatement(sql);
+	/**
+	 * You should only need to fetch the connection details once. Original
+	 * method used to create connection with prod Oracle DB run on
+	 * csv.warwick.ac.uk
+	 * 
+	 * @return Established connection or if error occurred null is returned
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 */
+	public static Connection getConnection() throws ClassNotFoundException, SQLException
+	{
+		// User and password should be left blank. Do not alter!
+		String user = "";
+		String passwrd = "";
+		Connection conn;
 
-			sql = "SELECT * FROM v_opt6";
-			op6_select = conn.prepareStatement(sql);
+		Class.forName("oracle.jdbc.driver.OracleDriver");
+		conn = DriverManager.getConnection("jdbc:oracle:thin:@arryn-ora-prod-db-1.warwick.ac.uk:1521:cs2db", user,
+				passwrd);
+		return conn;
 
-			sql = "SELECT * FROM v_opt7";
-			op7_select = conn.prepareStatement(sql);
+	}
 
-			//@formatter:off
-			sql = "SELECT FName, LName"
-					+ " FROM v_sub_opt8"
-					+ " WHERE OrderYear = ?";
-			//@formatter:on
-			op8_select = conn.prepareStatement(sql);
-			return true;
+	/**
+	 * Serve orders over TCP instead of the interactive menu.
+	 * 
+	 * @param args
+	 *            server [port [workers [connections]]]
+	 */
+	// side is only there to be closed once the server has stopped.
+	@SuppressWarnings("try")
+	private static void serve(String args[]) throws IOException
+	{
+		final int port = args.length > 1 ? Integer.parseInt(args[1]) : 4258;
+		final int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		final int connections = args.length > 3 ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+		try (SideWriter side = startSideWriter();
+				ConnectionPool pool = new ConnectionPool(Assignment::getConnection2, connections);
+				OrderServer server = new OrderServer(port, pool, sessions))
+		{
+			server.run();
 		}
 		catch (SQLException e)
 		{
 			e.printStackTrace();
-			return false;
+			System.err.println("[ERROR] Could not write the side records left in the journal");
 		}
 	}
 
 	/**
-	 * @param conn
-	 *            An open database connection
-	 * @param date
-	 *            The target date to test collection deliveries against
+	 * Place orders on a running server from many simulated tills.
+	 * 
+	 * @param args
+	 *            loadtest host port tills orders [think-ms]
 	 */
-	public static void option5(Connection conn, String date)
+	private static void loadTest(String args[]) throws InterruptedException
 	{
-		try
+		if (args.length < 5)
 		{
-			op5_select.setDate(1, OracleDateFormat.stringToDate(date));
-			ResultSet r = op5_select.executeQuery();
-			while (r.next())
-			{
-				int orderid = r.getInt("OrderID");
-				Order ord = Order.select(orderid);
-				if (ord == null)
-				{
-					System.err.println("Failed select order with id " + orderid);
-					continue;
-				}
-				if (ord.cancelOrder())
-				{
-					System.out.println("Order " + orderid + " has been cancelled (date:"
-							+ OracleDateFormat.dateToString(r.getDate("CollectionDate")) + ")");
-				}
-				else
-				{
-					System.out.println("Failed to cancel order " + ord.id);
-				}
-			}
+			System.err.println("[ERROR] Usage: java Assignment loadtest host port tills orders [think-ms]");
+			return;
+		}
+		new LoadTest(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+				args.length > 5 ? Integer.parseInt(args[5]) : 0).run();
+	}
+
+	/**
+	 * Start writing the side records of orders behind their placement if
+	 * -Dside.journal names a journal file.
+	 * 
+	 * @return The writer, to be closed at the end, or null.
+	 */
+	private static SideWriter startSideWriter() throws IOException, SQLException
+	{
+		String journal = System.getProperty("side.journal");
+		return journal == null ? null : SideWriter.start(journal, Assignment::getConnection2);
+	}
+
+	/**
+	 * Import the orders of a file instead of showing the interactive menu.
+	 * 
+	 * @param args
+	 *            import file [rejects-file]
+	 */
+	private static void importOrders(String args[])
+	{
+		if (args.length < 2)
+		{
+			System.err.println("[ERROR] Usage: java Assignment import file [rejects-file]");
+			return;
+		}
+		final String rejects = args.length > 2 ? args[2] : args[1] + ".rejects";
+		try (Connection conn = getConnection2())
+		{
+			OrderImport.run(conn, args[1], rejects);
+		}
+		catch (ClassNotFoundException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Driver could not be loaded");
 		}
 		catch (SQLException e)
 		{
 			e.printStackTrace();
+			System.err.println("[ERROR] Error while retrieving connection");
 		}
 	}
 
 	/**
-	 * @param conn
-	 *            An open database connection
+	 * Check or recompute the sales summary tables.
+	 * 
+	 * @param args
+	 *            summary verify|rebuild
 	 */
-	public static void option6(Connection conn)
+	private static void summary(String args[])
 	{
-		final String fstr = "%-30s %10s\n";
-		try
+		if (args.length != 2 || !args[1].equals("verify") && !args[1].equals("rebuild"))
 		{
-			ResultSet r = op6_select.executeQuery();
-			if (r.next())
+			System.err.println("[ERROR] Usage: java Assignment summary verify|rebuild");
+			return;
+		}
+		try (Connection conn = getConnection2())
+		{
+			if (args[1].equals("verify"))
 			{
-				System.out.printf(fstr, "EmployeeName,", "TotalValueSold");
-				do
-				{
-					String name = r.getString("FName") + ' ' + r.getString("LName") + ',';
-					System.out.printf(fstr, name, gbpFormat(r.getDouble("StaffSales")));
-				} while (r.next());
+				SalesSummary.verify(conn);
 			}
 			else
 			{
-				System.out.println("[INFO] No staff that match the criteria.");
+				SalesSummary.rebuild(conn);
 			}
 		}
+		catch (ClassNotFoundException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Driver could not be loaded");
+		}
 		catch (SQLException e)
 		{
 			e.printStackTrace();
+			System.err.println("[ERROR] Error while retrieving connection");
 		}
 	}
 
 	/**
-	 * @param conn
-	 *            An open database connection
+	 * Check option 8 against its reference view.
+	 * 
+	 * @param args
+	 *            verify8 first-year [last-year]
 	 */
-	public static void option7(Connection conn)
+	private static void verify8(String args[])
 	{
-		List<Integer> staffs = new ArrayList<>(), products = new ArrayList<>();
-		Map<Integer, String> names = new HashMap<>();
-		Map<Integer, List<Integer>> q = new HashMap<>();
-		try
+		if (args.length < 2)
 		{
-			ResultSet r = op7_select.executeQuery();
-			while (r.next())
-			{
-				int staffid = r.getInt("StaffID");
-				if (!staffs.contains(staffid))
-				{
-					staffs.add(staffid);
-					names.put(staffid, r.getString("FName") + ' ' + r.getString("LName"));
-					q.put(staffid, new ArrayList<Integer>());
-				}
-				int prodid = r.getInt("ProductID");
-				if (!products.contains(prodid))
-				{
-					products.add(prodid);
-				}
-				int quantity = r.getInt("ProductSoldCount");
-				q.get(staffid).add(quantity);
-			}
-			if (products.isEmpty())
-			{
-				System.out.println("[INFO] No best selling products.");
-				return;
-			}
-			final String fstr__1 = "%-60s";
-			final String fstr__2 = " %-20s";
-			System.out.printf(fstr__1, "EmployeeName,");
-			for (int i = 0; i < products.size() - 1; ++i)
-			{
-				System.out.printf(fstr__2, "Product " + products.get(i) + ',');
-			}
-			System.out.printf(fstr__2 + '\n', "Product " + products.get(products.size() - 1));
-
-			for (int i = 0; i < staffs.size(); ++i)
-			{
-				int staffid = staffs.get(i);
-				System.out.printf(fstr__1, names.get(staffid));
-				List<Integer> quantities = q.get(staffid);
-				for (int j = 0; j < quantities.size() - 1; ++j)
-				{
-					System.out.printf(fstr__2, quantities.get(j) + ",");
-				}
-				System.out.printf(fstr__2 + '\n', quantities.get(quantities.size() - 1));
-			}
+			System.err.println("[ERROR] Usage: java Assignment verify8 first-year [last-year]");
+			return;
+		}
+		final int first = Integer.parseInt(args[1]);
+		final int last = args.length > 2 ? Integer.parseInt(args[2]) : first;
+		try (Connection conn = getConnection2())
+		{
+			verifyOption8(conn, first, last);
+		}
+		catch (ClassNotFoundException e)
+		{
+			e.printStackTrace();
+			System.err.println("[ERROR] Driver could not be loaded");
 		}
 		catch (SQLException e)
 		{
 			e.printStackTrace();
+			System.err.println("[ERROR] Error while retrieving connection");
 		}
 	}
 
 	/**
-	 * @param conn
-	 *            An open database connection
-	 * @param year
-	 *            The target year we match employee and product sales against
+	 * Fill the empty tables with random data, or write it to files for
+	 * SQL*Loader.
+	 * 
+	 * @param args
+	 *            generate orders [products [staff [directory]]]
 	 */
-	public static void option8(Connection conn, int year)
+	private static void generate(String args[])
 	{
+		if (args.length < 2)
+		{
+			System.err.println("[ERROR] Usage: java Assignment generate orders [products [staff [directory]]]");
+			return;
+		}
+		final int orders = Integer.parseInt(args[1]);
+		final int products = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(100, orders / 3);
+		final int staff = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(10, orders / 30);
+		final int threads = Integer.getInteger("generate.threads", Runtime.getRuntime().availableProcessors());
+		final DataGenerator data;
 		try
 		{
-			op8_select.setInt(1, year);
-			ResultSet r = op8_select.executeQuery();
-			while (r.next())
+			data = DataGenerator.fromProperties(staff, products, orders);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("[ERROR] " + e.getMessage());
+			return;
+		}
+		final long start = System.nanoTime();
+		if (args.length > 4)
+		{
+			try
 			{
-				System.out.println(r.getString("FName") + ' ' + r.getString("LName"));
+				data.write(args[4], threads);
+			}
+			catch (IOException | InterruptedException e)
+			{
+				e.printStackTrace();
+				System.err.println("[ERROR] Could not write the data to " + args[4]);
+				return;
 			}
 		}
-		catch (SQLException e)
+		else
 		{
-			e.printStackTrace();
+			try (ConnectionPool pool = new ConnectionPool(Assignment::getConnection2, threads))
+			{
+				data.load(pool, threads);
+			}
+			catch (SQLException | InterruptedException e)
+			{
+				e.printStackTrace();
+				System.err.println("[ERROR] Could not load the data, the tables may be partly filled");
+				return;
+			}
 		}
+		System.out.printf("[INFO] Generated %d orders, %d products and %d staff in %d ms.%n", orders, products, staff,
+				(System.nanoTime() - start) / 1000000);
 	}
 
-	/**
-	 * Used during development to connect to Oracle DB run on localhost. You
-	 * should only need to fetch the connection details once
-	 * 
-	 * @return
-	 * @throws ClassNotFoundException
-	 * @throws SQLException
-	 */
-	public static Connection getConnection2() throws ClassNotFoundException, SQLException
-	{
-		Class.forName("oracle.jdbc.driver.OracleDriver");
-		// DriverManager.registerDriver (new oracle.jdbc.OracleDriver());
-
-		final String user = "c##jaccy";
-		final String passwrd = "jacc3421";
-		return DriverManager.getConnection("jdbc:oracle:thin:@localhost:1521:ORCL256", user, passwrd);
-	}
-
-	/**
-	 * You should only need to fetch the connection details once. Original
-	 * method used to create connection with prod Oracle DB run on
-	 * csv.warwick.ac.uk
-	 * 
-	 * @return Established connection or if error occurred null is returned
-	 * @throws ClassNotFoundException
-	 * @throws SQLException
-	 */
-	public static Connection getConnection() throws ClassNotFoundException, SQLException
-	{
-		// User and password should be left blank. Do not alter!
-		String user = "";
-		String passwrd = "";
-		Connection conn;
-
-		Class.forName("oracle.jdbc.driver.OracleDriver");
-		conn = DriverManager.getConnection("jdbc:oracle:thin:@arryn-ora-prod-db-1.warwick.ac.uk:1521:cs2db", user,
-				passwrd);
-		return conn;
-
-	}
-
+	// side is only there to be closed when the menu is left.
+	@SuppressWarnings("try")
 	public static void main(String args[]) throws SQLException, IOException
 	{
+		Metrics.start();
+		if (args.length > 0 && args[0].equals("server"))
+		{
+			serve(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("import"))
+		{
+			importOrders(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("summary"))
+		{
+			summary(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("verify8"))
+		{
+			verify8(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("generate"))
+		{
+			generate(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("loadtest"))
+		{
+			try
+			{
+				loadTest(args);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
 		// try-with-resources statement ensures that each resource is closed at
 		// the end of the statement (Oracle,
 		// https://docs.oracle.com/javase/tutorial/essential/exceptions/tryResourceClose.html)
-		try (Connection conn = getConnection2(); Scanner scnr = new Scanner(System.in))
+		try (Connection conn = getConnection2();
+				Scanner scnr = new Scanner(System.in);
+				SideWriter side = startSideWriter())
 		{
-			if (!prepareStatements(conn))
-			{
-				System.err.println("[CRITICAL ERROR] FAILED TO PREPARE STATEMENTS");
-				return;
-			}
 			int option;
 			for (;;)
 			{
@@ -1491,28 +8788,47 @@ class Assignment
 
 	private static void handleOption8(Connection conn, Scanner s)
 	{
-		option8(conn, getSomeInt(s, "Enter the year: "));
+		int year = getSomeInt(s, "Enter the year: ");
+		long start = System.nanoTime();
+		option8(conn, year);
+		Metrics.option(8, start);
 	}
 
 	private static void handleOption7(Connection conn, Scanner s)
 	{
+		long start = System.nanoTime();
 		option7(conn);
+		Metrics.option(7, start);
 	}
 
 	private static void handleOption6(Connection conn, Scanner s)
 	{
+		long start = System.nanoTime();
 		option6(conn);
-
+		Metrics.option(6, start);
 	}
 
 	private static void handleOption5(Connection conn, Scanner s)
 	{
-		option5(conn, getSomeOracleDate(s, "Enter the date: "));
+		String date = getSomeOracleDate(s, "Enter the date: ");
+		long start = System.nanoTime();
+		option5(conn, date);
+		Metrics.option(5, start);
 	}
 
 	private static void handleOption4(Connection conn, Scanner s)
 	{
-		option4(conn);
+		long start = System.nanoTime();
+		if (ReportOutput.paged())
+		{
+			// The time waiting for the user is not part of the option.
+			start += option4Paged(conn, s);
+		}
+		else
+		{
+			option4(conn);
+		}
+		Metrics.option(4, start);
 	}
 
 	private static String getSomeVarChar(Scanner s, String prompt, int minlen, int maxlen)
@@ -1550,17 +8866,60 @@ class Assignment
 
 	private static void handleOption3(Connection conn, Scanner s)
 	{
-		Queue<Integer> amounts = new LinkedList<>();
-		Queue<Integer> products = new LinkedList<>();
+		IntList amounts = new IntList();
+		IntList products = new IntList();
+		getSomeProducts(conn, s, products, amounts);
+		if (products.isEmpty())
+		{
+			System.out.println("No products given, no order was placed.");
+			return;
+		}
+		String orderDate = getSomeOracleDate(s, "Enter the date sold: ");
+		String deliveryDate = getSomeOracleDate(s, "Enter the date of delivery: ");
+		String fname = getSomeVarChar(s, "Enter the first name of the recipient:  ", 30);
+		String lname = getSomeVarChar(s, "Enter the last name of the recipient: ", 30);
+		String house = getSomeVarChar(s, "Enter the house name/no: ", 30);
+		String street = getSomeVarChar(s, "Enter the street: ", 30);
+		String city = getSomeVarChar(s, "Enter the City: ", 30);
+		int staffid;
+		while (!Staff.exists(conn, staffid = getSomeInt(s, "Enter your staff ID: ")))
+		{
+			System.out.println("Staff with ID " + staffid + " does not exist");
+		}
+		int[] quantities = amounts.toArray();
+		int[] productIDs = products.toArray();
+		long start = System.nanoTime();
+		option3(conn, productIDs, quantities, orderDate, deliveryDate, fname, lname, house, street, city, staffid);
+		Metrics.option(3, start);
+	}
+
+	/**
+	 * Prompt the user for the products of an order and their quantities until
+	 * they say there are no more. Products that do not exist, are out of stock
+	 * or were already given are not added.
+	 * 
+	 * @param conn
+	 *            An open database connection
+	 * @param s
+	 *            Scanner to read lines from.
+	 * @param products
+	 *            Filled with the ids of the products, in the order they were
+	 *            given.
+	 * @param amounts
+	 *            Filled with the quantity of each product in products.
+	 */
+	private static void getSomeProducts(Connection conn, Scanner s, IntList products, IntList amounts)
+	{
+		IntIntMap added = new IntIntMap();
 		do
 		{
 			int pid = getSomeInt(s, "Enter a product ID: ");
-			if (products.contains(pid))
+			if (added.containsKey(pid))
 			{
 				System.out.println("Product already added to order previously.");
 				continue;
 			}
-			Product prod = Product.select(pid);
+			Product prod = ProductCache.get(conn, pid);
 			if (prod == null)
 			{
 				System.out.println("No product exists with such ID: " + pid);
@@ -1582,30 +8941,10 @@ class Assignment
 				System.out.println("Product quantity must be a positive integer.");
 				continue;
 			}
+			added.put(prod.id, amount);
 			amounts.add(amount);
 			products.add(prod.id);
 		} while (getSomeYesNo(s, "Is there another product in the order?: "));
-		if (products.isEmpty())
-		{
-			System.out.println("No products given, no order was placed.");
-			return;
-		}
-		String orderDate = getSomeOracleDate(s, "Enter the date sold: ");
-		String deliveryDate = getSomeOracleDate(s, "Enter the date of delivery: ");
-		String fname = getSomeVarChar(s, "Enter the first name of the recipient:  ", 30);
-		String lname = getSomeVarChar(s, "Enter the last name of the recipient: ", 30);
-		String house = getSomeVarChar(s, "Enter the house name/no: ", 30);
-		String street = getSomeVarChar(s, "Enter the street: ", 30);
-		String city = getSomeVarChar(s, "Enter the City: ", 30);
-		int staffid;
-		while (!Staff.exists(staffid = getSomeInt(s, "Enter your staff ID: ")))
-		{
-			System.out.println("Staff with ID " + staffid + " does not exist");
-		}
-		// convert queues to arrays
-		int[] quantities = amounts.stream().mapToInt(Integer::intValue).toArray();
-		int[] productIDs = products.stream().mapToInt(Integer::intValue).toArray();
-		option3(conn, productIDs, quantities, orderDate, deliveryDate, fname, lname, house, street, city, staffid);
 	}
 
 	private static boolean getSomeYesNo(Scanner s, String prompt)
@@ -1661,41 +9000,9 @@ class Assignment
 
 	private static void handleOption2(Connection conn, Scanner s)
 	{
-		Queue<Integer> amounts = new LinkedList<>();
-		Queue<Integer> products = new LinkedList<>();
-		do
-		{
-			int pid = getSomeInt(s, "Enter a product ID: ");
-			if (products.contains(pid))
-			{
-				System.out.println("Product already added to order previously.");
-				continue;
-			}
-			Product prod = Product.select(pid);
-			if (prod == null)
-			{
-				System.out.println("No product exists with such ID: " + pid);
-				continue;
-			}
-			if (prod.getStock() == 0)
-			{
-				System.out.println("Selected product is out of stock!");
-				continue;
-			}
-			int amount = getSomeInt(s, "Enter the quantity sold: ");
-			if (amount > prod.getStock())
-			{
-				System.out.println("Product not ordered, not enough stock, only " + prod.getStock() + " left");
-				continue;
-			}
-			if (amount <= 0)
-			{
-				System.out.println("Product quantity must be a positive integer.");
-				continue;
-			}
-			amounts.add(amount);
-			products.add(prod.id);
-		} while (getSomeYesNo(s, "Is there another product in the order?: "));
+		IntList amounts = new IntList();
+		IntList products = new IntList();
+		getSomeProducts(conn, s, products, amounts);
 		if (products.isEmpty())
 		{
 			System.out.println("No products given, no order was placed.");
@@ -1706,53 +9013,22 @@ class Assignment
 		String fname = getSomeVarChar(s, "Enter the first name of the collector: ", 30);
 		String lname = getSomeVarChar(s, "Enter the last name of the collector: ", 30);
 		int staffid;
-		while (!Staff.exists(staffid = getSomeInt(s, "Enter your Staff ID: ")))
+		while (!Staff.exists(conn, staffid = getSomeInt(s, "Enter your Staff ID: ")))
 		{
 			System.out.println("Staff with ID " + staffid + " does not exist");
 		}
-		// convert queues to arrays
-		int[] quantities = amounts.stream().mapToInt(Integer::intValue).toArray();
-		int[] productIDs = products.stream().mapToInt(Integer::intValue).toArray();
+		int[] quantities = amounts.toArray();
+		int[] productIDs = products.toArray();
+		long start = System.nanoTime();
 		option2(conn, productIDs, quantities, orderDate, collectionDate, fname, lname, staffid);
+		Metrics.option(2, start);
 	}
 
 	private static void handleOption1(Connection conn, Scanner s)
 	{
-		Queue<Integer> amounts = new LinkedList<>();
-		Queue<Integer> products = new LinkedList<>();
-		do
-		{
-			int pid = getSomeInt(s, "Enter a product ID: ");
-			if (products.contains(pid))
-			{
-				System.out.println("Product already added to order previously.");
-				continue;
-			}
-			Product prod = Product.select(pid);
-			if (prod == null)
-			{
-				System.out.println("No product exists with such ID: " + pid);
-				continue;
-			}
-			if (prod.getStock() == 0)
-			{
-				System.out.println("Selected product is out of stock!");
-				continue;
-			}
-			int amount = getSomeInt(s, "Enter the quantity sold: ");
-			if (amount > prod.getStock())
-			{
-				System.out.println("Product not ordered, not enough stock, only " + prod.getStock() + " left");
-				continue;
-			}
-			if (amount <= 0)
-			{
-				System.out.println("Product quantity must be a positive integer.");
-				continue;
-			}
-			amounts.add(amount);
-			products.add(prod.id);
-		} while (getSomeYesNo(s, "Is there another product in the order?: "));
+		IntList amounts = new IntList();
+		IntList products = new IntList();
+		getSomeProducts(conn, s, products, amounts);
 		if (products.isEmpty())
 		{
 			System.out.println("No products given, no order was placed.");
@@ -1760,13 +9036,14 @@ class Assignment
 		}
 		String date = getSomeOracleDate(s, "Enter the date sold: ");
 		int staffid;
-		while (!Staff.exists(staffid = getSomeInt(s, "Enter your Staff ID: ")))
+		while (!Staff.exists(conn, staffid = getSomeInt(s, "Enter your Staff ID: ")))
 		{
 			System.out.println("Invalid Staff ID given");
 		}
-		// convert queues to arrays
-		int[] quantities = amounts.stream().mapToInt(Integer::intValue).toArray();
-		int[] productIDs = products.stream().mapToInt(Integer::intValue).toArray();
+		int[] quantities = amounts.toArray();
+		int[] productIDs = products.toArray();
+		long start = System.nanoTime();
 		option1(conn, productIDs, quantities, date, staffid);
+		Metrics.option(1, start);
 	}
 }
@@ -0,0 +1,24 @@
+-- Add the indexes of schema.sql to a database created before them. Indexes
+-- that already exist are skipped, so the script can be run again.
+
+DECLARE
+	PROCEDURE add_index(ddl VARCHAR2) IS
+	BEGIN
+		EXECUTE IMMEDIATE ddl;
+	EXCEPTION
+		-- ORA-00955: name is already used, ORA-01408: columns already indexed
+		WHEN OTHERS THEN
+			IF SQLCODE NOT IN (-955, -1408) THEN
+				RAISE;
+			END IF;
+	END;
+BEGIN
+	add_index('CREATE INDEX ORDER_PRODUCTS_PRODUCT_IX ON ORDER_PRODUCTS (ProductID)');
+	add_index('CREATE INDEX STAFF_ORDERS_ORDER_IX ON STAFF_ORDERS (OrderID)');
+	add_index('CREATE INDEX SUM_STAFF_SALES_PRODUCT_IX ON SUM_STAFF_PRODUCT_SALES (ProductID)');
+	add_index('CREATE INDEX COLLECTIONS_DATE_IX ON COLLECTIONS (CollectionDate)');
+	add_index('CREATE INDEX ORDERS_PENDING_COLLECTION_IX ON ORDERS (CASE WHEN OrderType = ''Collection'' AND OrderCompleted = 0 THEN 1 END)');
+	add_index('CREATE INDEX ORDERS_PLACED_IX ON ORDERS (OrderPlaced)');
+	add_index('CREATE INDEX ORDERS_YEAR_IX ON ORDERS (EXTRACT(YEAR FROM OrderPlaced))');
+END;
+/
@@ -0,0 +1,127 @@
+-- The views of schema.sql for H2 in Oracle mode, which rejects unqualified
+-- columns of joins with USING. Only the joins are written differently; the
+-- views must return the same rows as those of schema.sql.
+
+-- OPTION 4
+
+CREATE VIEW VIEW_PRODUCT_SALES AS
+	SELECT ProductID, UnitsSold AS ProductTimesBought
+	FROM SUM_PRODUCT_SALES;
+
+CREATE VIEW VIEW_REVENUE_PER_PRODUCT AS
+	SELECT s.ProductID, s.ProductTimesBought * i.ProductPrice AS ProductRevenue
+	FROM VIEW_PRODUCT_SALES s INNER JOIN INVENTORY i ON i.ProductID = s.ProductID;
+
+CREATE VIEW v_opt4 AS
+	SELECT i.ProductID, i.ProductDesc, NVL(r.ProductRevenue, 0) AS ProductRevenue
+	FROM INVENTORY i LEFT JOIN VIEW_REVENUE_PER_PRODUCT r ON r.ProductID = i.ProductID
+	ORDER BY ProductRevenue DESC;
+
+-- OPTION 6
+
+CREATE VIEW VIEW_ORDER_TOTALS AS
+	SELECT op.OrderID, SUM(op.ProductQuantity * i.ProductPrice) AS OrderTotal
+	FROM ORDER_PRODUCTS op INNER JOIN INVENTORY i ON i.ProductID = op.ProductID
+	GROUP BY op.OrderID;
+
+CREATE VIEW VIEW_ORDER_TOTAL_PER_STAFF AS
+	SELECT s.StaffID, SUM(s.UnitsSold * i.ProductPrice) AS StaffSales
+	FROM SUM_STAFF_PRODUCT_SALES s INNER JOIN INVENTORY i ON i.ProductID = s.ProductID
+	WHERE s.UnitsSold > 0
+	GROUP BY s.StaffID;
+
+CREATE VIEW VIEW_STAFF_SALES AS
+	SELECT s.StaffID, s.FName, s.LName, t.StaffSales
+	FROM STAFF s INNER JOIN VIEW_ORDER_TOTAL_PER_STAFF t ON t.StaffID = s.StaffID;
+
+CREATE VIEW v_opt6 AS
+	SELECT Fname, Lname, StaffSales
+	FROM VIEW_STAFF_SALES
+	WHERE StaffSales >= 5000
+	ORDER BY StaffSales DESC;
+
+-- OPTION 7
+
+CREATE VIEW VIEW_BEST_SELLING AS
+	SELECT ProductID, ProductRevenue
+	FROM VIEW_REVENUE_PER_PRODUCT
+	WHERE ProductRevenue >= 20000;
+
+CREATE VIEW VIEW_PRODUCT_COUNT_PER_STAFF AS
+	SELECT StaffID, ProductID, UnitsSold AS ProductSoldCount
+	FROM SUM_STAFF_PRODUCT_SALES
+	WHERE UnitsSold > 0;
+
+CREATE VIEW VIEW_BEST_SELLING_SELLERS AS
+	SELECT x.FName, x.LName, x.StaffID, x.ProductID, NVL(c.ProductSoldCount, 0) AS ProductSoldCount
+	FROM
+		(
+			SELECT ss.FName, ss.LName, ss.StaffID, bs.ProductID
+			FROM
+				(SELECT FName, LName, StaffID FROM VIEW_STAFF_SALES ORDER BY StaffSales DESC) ss
+				CROSS JOIN
+				(SELECT ProductID FROM VIEW_BEST_SELLING) bs
+		) x
+		LEFT JOIN
+		VIEW_PRODUCT_COUNT_PER_STAFF c
+		ON c.StaffID = x.StaffID AND c.ProductID = x.ProductID;
+
+CREATE VIEW v_opt7 AS
+	SELECT FName, LName, StaffID, ProductID, ProductSoldCount
+	FROM VIEW_BEST_SELLING_SELLERS;
+
+-- OPTION 8
+
+CREATE VIEW v_yearly_staff_sales AS
+	SELECT EXTRACT(YEAR FROM o.OrderPlaced) AS OrderYear, so.StaffID, SUM(t.OrderTotal) AS StaffYearlySales
+	FROM
+		VIEW_ORDER_TOTALS t
+		INNER JOIN ORDERS o ON o.OrderID = t.OrderID
+		INNER JOIN STAFF_ORDERS so ON so.OrderID = t.OrderID
+	GROUP BY EXTRACT(YEAR FROM o.OrderPlaced), so.StaffID;
+
+CREATE VIEW v_yearly_product_sales AS
+	SELECT op.ProductID, SUM(op.ProductQuantity) AS ProductTimesBought, EXTRACT(YEAR FROM o.OrderPlaced) AS OrderYear
+	FROM ORDERS o INNER JOIN ORDER_PRODUCTS op ON op.OrderID = o.OrderID
+	GROUP BY op.ProductID, EXTRACT(YEAR FROM o.OrderPlaced);
+
+CREATE VIEW v_yearly_product_revenue AS
+	SELECT s.OrderYear, s.ProductID, s.ProductTimesBought * i.ProductPrice AS ProductYearlyRevenue
+	FROM v_yearly_product_sales s INNER JOIN INVENTORY i ON i.ProductID = s.ProductID;
+
+CREATE VIEW v_yearly_best_selling AS
+	SELECT DISTINCT ProductID, OrderYear
+	FROM v_yearly_product_revenue
+	WHERE ProductYearlyRevenue >= 20000;
+
+CREATE VIEW v_yearly_best_staff AS
+	SELECT StaffID, OrderYear
+	FROM v_yearly_staff_sales
+	WHERE StaffYearlySales >= 30000;
+
+CREATE VIEW v_products_sold_per_staff_per_year AS
+	SELECT DISTINCT so.StaffID, op.ProductID, EXTRACT(YEAR FROM o.OrderPlaced) AS OrderYear
+	FROM
+		ORDERS o
+		INNER JOIN ORDER_PRODUCTS op ON op.OrderID = o.OrderID
+		INNER JOIN STAFF_ORDERS so ON so.OrderID = o.OrderID;
+
+-- H2 cannot correlate into the operands of MINUS, so the difference is
+-- written as a NOT EXISTS.
+CREATE VIEW v_promotion_year_per_staff AS
+	SELECT ybs.StaffID, ybs.OrderYear
+	FROM v_yearly_best_staff ybs
+	WHERE NOT EXISTS (
+		SELECT ybs2.ProductID
+		FROM v_yearly_best_selling ybs2
+		WHERE ybs2.OrderYear = ybs.OrderYear AND NOT EXISTS (
+			SELECT pspspy.ProductID
+			FROM v_products_sold_per_staff_per_year pspspy
+			WHERE pspspy.StaffID = ybs.StaffID AND pspspy.OrderYear = ybs.OrderYear
+				AND pspspy.ProductID = ybs2.ProductID
+		)
+	);
+
+CREATE VIEW v_sub_opt8 AS
+	SELECT s.Fname, s.Lname, p.OrderYear
+	FROM v_promotion_year_per_staff p INNER JOIN STAFF s ON s.StaffID = p.StaffID;
@@ -0,0 +1,86 @@
+package wcs;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The reports of {@link ReportBench} computed by {@link Analytics} from its
+ * copy of the sales, including the query that brings the copy up to date
+ * before each one. reload measures loading the whole copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AnalyticsBench
+{
+	@Param({ "1", "10" })
+	public int scale;
+
+	private Connection conn;
+
+	@Setup
+	public void setup() throws SQLException, IOException
+	{
+		conn = BenchDatabase.seeded(scale);
+		Analytics.invalidate();
+	}
+
+	@TearDown
+	public void close() throws SQLException
+	{
+		StatementCache.close(conn);
+		conn.close();
+	}
+
+	@Benchmark
+	public Analytics.Ranked option4()
+	{
+		return Analytics.productRevenue(conn);
+	}
+
+	@Benchmark
+	public Analytics.Ranked option6()
+	{
+		return Analytics.staffSales(conn);
+	}
+
+	@Benchmark
+	public Pivot option7()
+	{
+		Pivot pivot = new Pivot();
+		Analytics.bestSellers(conn, pivot);
+		return pivot;
+	}
+
+	@Benchmark
+	public List<String> option8()
+	{
+		return Analytics.promotedStaff(conn, 2010);
+	}
+
+	@Benchmark
+	public Analytics.Ranked reload()
+	{
+		Analytics.invalidate();
+		return Analytics.productRevenue(conn);
+	}
+}
@@ -0,0 +1,109 @@
+package wcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory H2 database in Oracle mode with the tables of schema.sql, the
+ * views of h2views.sql and random data from {@link DataGenerator}.
+ */
+final class BenchDatabase
+{
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	private BenchDatabase()
+	{
+	}
+
+	/**
+	 * Open a new, empty database with the schema.
+	 */
+	static Connection create() throws SQLException, IOException
+	{
+		Connection conn = DriverManager.getConnection(
+				"jdbc:h2:mem:bench" + databases.incrementAndGet() + ";MODE=Oracle;DB_CLOSE_DELAY=-1");
+		// The views of schema.sql are replaced by those of h2views.sql.
+		run(conn, "schema.sql", true);
+		run(conn, "h2views.sql", false);
+		return conn;
+	}
+
+	/**
+	 * Open a new database filled with the data of a {@link DataGenerator}.
+	 * 
+	 * @param scale
+	 *            The scale of the data, 1 being that of makeranddata.py.
+	 */
+	static Connection seeded(int scale) throws SQLException, IOException
+	{
+		Connection conn = create();
+		new DataGenerator(scale, 258).load(conn);
+		return conn;
+	}
+
+	/**
+	 * Run the statements of an SQL script from the classpath, skipping SQL*Plus
+	 * commands and function-based indexes.
+	 */
+	private static void run(Connection conn, String script, boolean skipViews) throws SQLException, IOException
+	{
+		String sql;
+		try (InputStream in = BenchDatabase.class.getClassLoader().getResourceAsStream(script))
+		{
+			if (in == null)
+			{
+				throw new IOException(script + " is not on the classpath");
+			}
+			sql = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		StringBuilder statement = new StringBuilder();
+		try (Statement stmnt = conn.createStatement())
+		{
+			for (String line : sql.split("\r?\n"))
+			{
+				String t = line.trim();
+				if (statement.length() == 0 && (t.isEmpty() || t.startsWith("--") || t.startsWith("START ")))
+				{
+					continue;
+				}
+				statement.append(line).append('\n');
+				if (t.endsWith(";"))
+				{
+					String s = statement.toString().trim();
+					statement.setLength(0);
+					// H2 has no function-based indexes.
+					if (!(skipViews && s.startsWith("CREATE VIEW")) && !functionIndex(s))
+					{
+						stmnt.execute(s.substring(0, s.length() - 1));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Whether a statement creates an index on an expression rather
+	 *         than on columns.
+	 */
+	private static boolean functionIndex(String s)
+	{
+		return s.startsWith("CREATE INDEX") && !s.matches("(?s)[^(]*\\([\\w\\s,]+\\)\\s*;?");
+	}
+
+	/**
+	 * A stream that discards everything, to keep the reports of the options
+	 * off the console while they are measured.
+	 */
+	static PrintStream nullStream()
+	{
+		return new PrintStream(OutputStream.nullOutputStream());
+	}
+}
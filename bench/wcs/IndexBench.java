@@ -0,0 +1,149 @@
+package wcs;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deleting an order, which cascades to its lines, its links to staff and its
+ * collection or delivery, and the lookups of the reports, with the indexes of
+ * schema.sql (except the function-based ones) and without them. H2 indexes
+ * every foreign key by itself, so only options 5 and 8 differ here; on Oracle the
+ * cascade and the lookups by ProductID and OrderID scan their tables without
+ * the indexes. Deletes are rolled back so every invocation finds the same
+ * data. The default scale has
+ * 3000 orders; -p scale=6000 gives about 10 million order lines and needs a
+ * larger heap (-jvmArgs -Xmx16g).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IndexBench
+{
+	private static final String[] indexes = { "ORDER_PRODUCTS_PRODUCT_IX", "STAFF_ORDERS_ORDER_IX",
+			"SUM_STAFF_SALES_PRODUCT_IX", "COLLECTIONS_DATE_IX", "ORDERS_PLACED_IX" };
+
+	@Param({ "10" })
+	public int scale;
+
+	@Param({ "true", "false" })
+	public boolean indexed;
+
+	private Connection conn;
+	private DataGenerator data;
+	private PrintStream out;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws SQLException, IOException
+	{
+		conn = BenchDatabase.seeded(scale);
+		data = new DataGenerator(scale, 258);
+		if (!indexed)
+		{
+			try (Statement stmnt = conn.createStatement())
+			{
+				for (String index : indexes)
+				{
+					stmnt.execute("DROP INDEX " + index);
+				}
+			}
+		}
+		conn.setAutoCommit(false);
+		out = System.out;
+		System.setOut(BenchDatabase.nullStream());
+	}
+
+	@TearDown
+	public void close() throws SQLException
+	{
+		System.setOut(out);
+		conn.rollback();
+		StatementCache.close(conn);
+		conn.close();
+	}
+
+	private int order()
+	{
+		next = (next + 1) % data.orders();
+		return next;
+	}
+
+	@Benchmark
+	public int cascadeDelete() throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn, "DELETE FROM ORDERS WHERE OrderID = ?");
+		stmnt.setInt(1, order());
+		int deleted = stmnt.executeUpdate();
+		conn.rollback();
+		return deleted;
+	}
+
+	@Benchmark
+	public int staffOfOrder() throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn, "SELECT StaffID FROM STAFF_ORDERS WHERE OrderID = ?");
+		stmnt.setInt(1, order());
+		try (ResultSet r = stmnt.executeQuery())
+		{
+			return r.next() ? r.getInt(1) : -1;
+		}
+	}
+
+	@Benchmark
+	public int linesOfProduct() throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn,
+				"SELECT COUNT(*) FROM ORDER_PRODUCTS WHERE ProductID = ?");
+		stmnt.setInt(1, next++ % data.products());
+		try (ResultSet r = stmnt.executeQuery())
+		{
+			r.next();
+			return r.getInt(1);
+		}
+	}
+
+	@Benchmark
+	public int staleCollections() throws SQLException
+	{
+		PreparedStatement stmnt = StatementCache.prepare(conn, StaleCollections.select_sql);
+		stmnt.setDate(1, StaleCollections.cutoff(Date.valueOf("2010-06-01")));
+		int stale = 0;
+		try (ResultSet r = stmnt.executeQuery())
+		{
+			while (r.next())
+			{
+				++stale;
+			}
+		}
+		return stale;
+	}
+
+	@Benchmark
+	public void option8()
+	{
+		Assignment.option8(conn, 2010);
+	}
+}
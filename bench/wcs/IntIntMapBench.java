@@ -0,0 +1,91 @@
+package wcs;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collecting the lines of a basket, checking each product for duplicates, as
+ * the order pipeline does with {@link IntIntMap} and as it did with a
+ * {@link HashMap} of boxed ints. Run with <code>-prof gc</code> to compare
+ * the allocation per basket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IntIntMapBench
+{
+	@Param({ "10", "100", "1000" })
+	public int lines;
+
+	private int[] productIDs;
+	private int[] quantities;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(258);
+		productIDs = new int[lines];
+		quantities = new int[lines];
+		for (int i = 0; i < lines; ++i)
+		{
+			// Outside of the Integer cache so that boxing allocates.
+			productIDs[i] = 1000 + random.nextInt(1000000);
+			quantities[i] = 1000 + random.nextInt(10);
+		}
+	}
+
+	@Benchmark
+	public int intIntMap()
+	{
+		IntIntMap basket = new IntIntMap();
+		for (int i = 0; i < lines; ++i)
+		{
+			if (!basket.containsKey(productIDs[i]))
+			{
+				basket.put(productIDs[i], quantities[i]);
+			}
+		}
+		int total = 0;
+		for (int i = basket.next(-1); i >= 0; i = basket.next(i))
+		{
+			total += basket.valueAt(i);
+		}
+		return total;
+	}
+
+	@Benchmark
+	public int hashMap()
+	{
+		Map<Integer, Integer> basket = new HashMap<>();
+		for (int i = 0; i < lines; ++i)
+		{
+			if (!basket.containsKey(productIDs[i]))
+			{
+				basket.put(productIDs[i], quantities[i]);
+			}
+		}
+		int total = 0;
+		for (int quantity : basket.values())
+		{
+			total += quantity;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,113 @@
+package wcs;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The order DAO and placement paths. Orders added during an iteration are
+ * removed after it and stock is kept high enough that no order falls short.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OrderBench
+{
+	@Param({ "1" })
+	public int scale;
+
+	private Connection conn;
+	private DataGenerator data;
+	private int next = 0;
+	private final int[] quantities = { 1, 2 };
+
+	@Setup
+	public void setup() throws SQLException, IOException
+	{
+		conn = BenchDatabase.seeded(scale);
+		data = new DataGenerator(scale, 258);
+		System.setOut(BenchDatabase.nullStream());
+		restock();
+	}
+
+	@TearDown(Level.Iteration)
+	public void removeOrders() throws SQLException
+	{
+		try (Statement stmnt = conn.createStatement())
+		{
+			stmnt.executeUpdate("DELETE FROM ORDERS WHERE OrderID >= " + data.orders());
+		}
+		SalesSummary.rebuild(conn);
+		restock();
+	}
+
+	@TearDown
+	public void close() throws SQLException
+	{
+		StatementCache.close(conn);
+		conn.close();
+	}
+
+	private void restock() throws SQLException
+	{
+		try (Statement stmnt = conn.createStatement())
+		{
+			stmnt.executeUpdate("UPDATE INVENTORY SET ProductStockAmount = 1000000000");
+		}
+		ProductCache.invalidateAll();
+	}
+
+	private int product()
+	{
+		next = (next + 1) % data.products();
+		return next;
+	}
+
+	@Benchmark
+	public Order insert()
+	{
+		return Order.insertInStoreOrder(conn, "1-Dec-19");
+	}
+
+	@Benchmark
+	public boolean insertAndAddProduct()
+	{
+		Order ord = Order.insertInStoreOrder(conn, "1-Dec-19");
+		return ord.addProduct(conn, product(), 1);
+	}
+
+	@Benchmark
+	public OrderPlacement.PlacedOrder placeInStoreOrder()
+	{
+		int[] basket = { product(), product() };
+		return OrderPlacement.placeInStoreOrder(conn, basket, quantities, "1-Dec-19", next % data.staff());
+	}
+
+	@Benchmark
+	public boolean placeAndCancel()
+	{
+		int[] basket = { product(), product() };
+		OrderPlacement.PlacedOrder placed = OrderPlacement.placeInStoreOrder(conn, basket, quantities, "1-Dec-19",
+				next % data.staff());
+		return Order.select(conn, placed.id).cancelOrder(conn);
+	}
+}
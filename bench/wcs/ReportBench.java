@@ -0,0 +1,157 @@
+package wcs;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The reports of the menu, printed to a stream that discards them. The data is
+ * not changed so every invocation reports the same rows, except by option 5,
+ * which runs on a database of its own where the orders it cancels are put back
+ * after every invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReportBench
+{
+	@Param({ "1", "10" })
+	public int scale;
+
+	private Connection conn;
+	private PrintStream out;
+
+	@Setup
+	public void setup() throws SQLException, IOException
+	{
+		conn = BenchDatabase.seeded(scale);
+		out = System.out;
+		System.setOut(BenchDatabase.nullStream());
+	}
+
+	@TearDown
+	public void close() throws SQLException
+	{
+		System.setOut(out);
+		StatementCache.close(conn);
+		conn.close();
+	}
+
+	@Benchmark
+	public void option4()
+	{
+		Assignment.option4(conn);
+	}
+
+	/**
+	 * A database for option 5 with copies of the collections that are stale on
+	 * {@link #date}, their lines and links, the stock and the sales summaries,
+	 * to put them back as they were.
+	 */
+	@State(Scope.Thread)
+	public static class Stale
+	{
+		static final String date = "1-Jun-10";
+
+		/** The tables restored after every invocation, in the order of their keys. */
+		private static final String[] tables = { "ORDERS", "COLLECTIONS", "STAFF_ORDERS", "ORDER_PRODUCTS" };
+		private static final String[] copied = { "INVENTORY", "SUM_PRODUCT_SALES", "SUM_STAFF_PRODUCT_SALES" };
+
+		private Connection conn;
+
+		@Setup
+		public void setup(ReportBench bench) throws SQLException, IOException
+		{
+			conn = BenchDatabase.seeded(bench.scale);
+			Date cutoff = StaleCollections.cutoff(OracleDateFormat.stringToDate(date));
+			try (Statement stmnt = conn.createStatement())
+			{
+				stmnt.execute("CREATE TABLE STALE_ORDERS AS SELECT o.* FROM ORDERS o"
+						+ " INNER JOIN COLLECTIONS c ON c.OrderID = o.OrderID"
+						+ " WHERE o.OrderType = 'Collection' AND o.OrderCompleted = 0"
+						+ " AND c.CollectionDate <= DATE '" + cutoff + "'");
+				for (int i = 1; i < tables.length; ++i)
+				{
+					stmnt.execute("CREATE TABLE STALE_" + tables[i] + " AS SELECT * FROM " + tables[i]
+							+ " WHERE OrderID IN (SELECT OrderID FROM STALE_ORDERS)");
+				}
+				for (String table : copied)
+				{
+					stmnt.execute("CREATE TABLE COPY_" + table + " AS SELECT * FROM " + table);
+				}
+			}
+		}
+
+		@TearDown(Level.Invocation)
+		public void restore() throws SQLException
+		{
+			try (Statement stmnt = conn.createStatement())
+			{
+				for (String table : tables)
+				{
+					stmnt.executeUpdate("INSERT INTO " + table + " SELECT * FROM STALE_" + table);
+				}
+				stmnt.executeUpdate("UPDATE INVENTORY i SET ProductStockAmount ="
+						+ " (SELECT c.ProductStockAmount FROM COPY_INVENTORY c WHERE c.ProductID = i.ProductID)");
+				for (int i = 1; i < copied.length; ++i)
+				{
+					stmnt.executeUpdate("DELETE FROM " + copied[i]);
+					stmnt.executeUpdate("INSERT INTO " + copied[i] + " SELECT * FROM COPY_" + copied[i]);
+				}
+			}
+			ProductCache.invalidateAll();
+		}
+
+		@TearDown
+		public void close() throws SQLException
+		{
+			StatementCache.close(conn);
+			conn.close();
+		}
+	}
+
+	@Benchmark
+	public void option5(Stale stale)
+	{
+		Assignment.option5(stale.conn, Stale.date);
+	}
+
+	@Benchmark
+	public void option6()
+	{
+		Assignment.option6(conn);
+	}
+
+	@Benchmark
+	public void option7()
+	{
+		Assignment.option7(conn);
+	}
+
+	@Benchmark
+	public void option8()
+	{
+		Assignment.option8(conn, 2010);
+	}
+}
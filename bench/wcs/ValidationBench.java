@@ -0,0 +1,76 @@
+package wcs;
+
+import java.sql.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The checks that every input of an order goes through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ValidationBench
+{
+	private final String[] dates = { "1-Dec-19", "25-dec-2019", "31-Jan-01", "12-Foo-19", "7-Jun-20", "40-Mar-18" };
+	private final String[] types = { "InStore", "Collection", "Delivery", "instore", "Takeaway" };
+	private final StringOptions type_check = new StringOptions("InStore", "Collection", "Delivery");
+	private final StringOptionsNoCase type_check_nocase = new StringOptionsNoCase("InStore", "Collection",
+			"Delivery");
+	private final IntRangeCheck range_check = new IntRangeCheck(0, 2);
+	private final LengthCheck name_check = new LengthCheck(1, 31);
+	private int i = 0;
+
+	private int next()
+	{
+		return i = (i + 1) & 0xffff;
+	}
+
+	@Benchmark
+	public boolean dateIsValid()
+	{
+		return OracleDateFormat.isValid(dates[next() % dates.length]);
+	}
+
+	@Benchmark
+	public Date stringToDate()
+	{
+		return OracleDateFormat.stringToDate(dates[next() % dates.length]);
+	}
+
+	@Benchmark
+	public boolean stringOptions()
+	{
+		return type_check.verify(types[next() % types.length]);
+	}
+
+	@Benchmark
+	public boolean stringOptionsNoCase()
+	{
+		return type_check_nocase.verify(types[next() % types.length]);
+	}
+
+	@Benchmark
+	public boolean intRange()
+	{
+		return range_check.verify(next() % 3);
+	}
+
+	@Benchmark
+	public boolean length()
+	{
+		return name_check.verify(types[next() % types.length]);
+	}
+}
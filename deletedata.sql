@@ -1,6 +1,8 @@
 -- Return database to its initial state, right after schema.sql was executed.
 
 -- Remove all inserted data
+DELETE FROM SUM_STAFF_PRODUCT_SALES;
+DELETE FROM SUM_PRODUCT_SALES;
 DELETE FROM INVENTORY;
 DELETE FROM ORDERS;
 DELETE FROM STAFF;
@@ -1,3 +1,5 @@
+DROP TABLE SUM_STAFF_PRODUCT_SALES;
+DROP TABLE SUM_PRODUCT_SALES;
 DROP TABLE ORDER_PRODUCTS;
 DROP TABLE STAFF_ORDERS;
 DROP TABLE DELIVERIES;
@@ -26,4 +28,8 @@ DROP VIEW v_yearly_best_selling;
 DROP VIEW v_yearly_best_staff;
 DROP VIEW v_products_sold_per_staff_per_year;
 DROP VIEW v_promotion_year_per_staff;
-DROP VIEW v_sub_opt8;
\ No newline at end of file
+DROP VIEW v_sub_opt8;
+DROP PACKAGE order_api;
+DROP TYPE stock_list;
+DROP TYPE order_line_list;
+DROP TYPE order_line;
\ No newline at end of file
@@ -76,3 +76,6 @@ INSERT INTO STAFF_ORDERS VALUES(2, 10);
 INSERT INTO STAFF_ORDERS VALUES(3, 11);
 INSERT INTO STAFF_ORDERS VALUES(3, 12);
 INSERT INTO STAFF_ORDERS VALUES(0, 13);
+
+-- Count the orders above in the sales summaries
+START rebuildsummary;
@@ -1544,3 +1544,6 @@ INSERT INTO ORDER_PRODUCTS VALUES (298, 2, 3);
 INSERT INTO ORDER_PRODUCTS VALUES (298, 11, 2);
 INSERT INTO ORDER_PRODUCTS VALUES (299, 77, 1);
 INSERT INTO ORDER_PRODUCTS VALUES (299, 19, 1);
+
+-- Count the orders above in the sales summaries
+START rebuildsummary;
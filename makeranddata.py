@@ -99,6 +99,9 @@ for i in range(order_total):
 		sql += ord_prod_sql.format(i,item,count) + '\n'
 		productcount -= count
 
+# Count the orders above in the sales summaries
+sql += '\nSTART rebuildsummary;\n'
+
 print(sql)
 
 with open(filename, 'w') as f:
@@ -0,0 +1,116 @@
+-- order_api.place_order places a whole order (the ORDERS row, its lines, the
+-- stock taken, the COLLECTIONS/DELIVERIES record, the STAFF_ORDERS link and
+-- the sales summaries) in one call, see OrderPlacement. schema.sql runs this
+-- script; run it once to add the package to a database created before it.
+-- The procedure does not commit, so the caller decides the transaction.
+
+CREATE OR REPLACE TYPE order_line FORCE AS OBJECT (
+	ProductID INTEGER,
+	Quantity INTEGER
+);
+/
+
+CREATE OR REPLACE TYPE order_line_list FORCE AS TABLE OF order_line;
+/
+
+CREATE OR REPLACE TYPE stock_list FORCE AS TABLE OF INTEGER;
+/
+
+CREATE OR REPLACE PACKAGE order_api AS
+	-- Raised with the product, quantity and order when a product has not
+	-- enough stock left for its line.
+	not_enough_stock EXCEPTION;
+	PRAGMA EXCEPTION_INIT(not_enough_stock, -20001);
+
+	-- p_order_id: the OrderID to use, or null to take seq_ord.nextval; set to
+	--             the OrderID of the new order.
+	-- p_lines:    the products of the order, no duplicates.
+	-- p_staff_id: the member of staff to link the order with, or null to
+	--             leave it unlinked.
+	-- p_fname .. p_due: the COLLECTIONS (p_fname, p_lname, p_due) or
+	--             DELIVERIES (all) record, or nulls to leave it out.
+	-- p_stocks:   the stock left of each product of p_lines, in that order.
+	PROCEDURE place_order(
+		p_order_id  IN OUT ORDERS.OrderID%TYPE,
+		p_type      IN ORDERS.OrderType%TYPE,
+		p_completed IN ORDERS.OrderCompleted%TYPE,
+		p_placed    IN ORDERS.OrderPlaced%TYPE,
+		p_lines     IN order_line_list,
+		p_staff_id  IN STAFF.StaffID%TYPE,
+		p_fname     IN DELIVERIES.FName%TYPE,
+		p_lname     IN DELIVERIES.LName%TYPE,
+		p_house     IN DELIVERIES.House%TYPE,
+		p_street    IN DELIVERIES.Street%TYPE,
+		p_city      IN DELIVERIES.City%TYPE,
+		p_due       IN DATE,
+		p_stocks    OUT stock_list);
+END order_api;
+/
+
+CREATE OR REPLACE PACKAGE BODY order_api AS
+	PROCEDURE place_order(
+		p_order_id  IN OUT ORDERS.OrderID%TYPE,
+		p_type      IN ORDERS.OrderType%TYPE,
+		p_completed IN ORDERS.OrderCompleted%TYPE,
+		p_placed    IN ORDERS.OrderPlaced%TYPE,
+		p_lines     IN order_line_list,
+		p_staff_id  IN STAFF.StaffID%TYPE,
+		p_fname     IN DELIVERIES.FName%TYPE,
+		p_lname     IN DELIVERIES.LName%TYPE,
+		p_house     IN DELIVERIES.House%TYPE,
+		p_street    IN DELIVERIES.Street%TYPE,
+		p_city      IN DELIVERIES.City%TYPE,
+		p_due       IN DATE,
+		p_stocks    OUT stock_list)
+	IS
+	BEGIN
+		IF p_order_id IS NULL THEN
+			SELECT seq_ord.nextval INTO p_order_id FROM DUAL;
+		END IF;
+		INSERT INTO ORDERS VALUES (p_order_id, p_type, p_completed, p_placed);
+
+		-- Same as Product.reserve_sql: no row is updated on a shortfall.
+		p_stocks := stock_list();
+		p_stocks.EXTEND(p_lines.COUNT);
+		FOR i IN 1 .. p_lines.COUNT LOOP
+			UPDATE INVENTORY SET ProductStockAmount = ProductStockAmount - p_lines(i).Quantity
+				WHERE ProductID = p_lines(i).ProductID AND ProductStockAmount >= p_lines(i).Quantity
+				RETURNING ProductStockAmount INTO p_stocks(i);
+			IF SQL%ROWCOUNT = 0 THEN
+				RAISE_APPLICATION_ERROR(-20001, 'Not enough stock of product ' || p_lines(i).ProductID
+					|| ' to add quantity ' || p_lines(i).Quantity || ' to order ' || p_order_id);
+			END IF;
+		END LOOP;
+
+		INSERT INTO ORDER_PRODUCTS (OrderID, ProductID, ProductQuantity)
+			SELECT p_order_id, l.ProductID, l.Quantity FROM TABLE(p_lines) l;
+
+		IF p_fname IS NULL THEN
+			NULL;
+		ELSIF p_type = 'Collection' THEN
+			INSERT INTO COLLECTIONS VALUES (p_order_id, p_fname, p_lname, p_due);
+		ELSIF p_type = 'Delivery' THEN
+			INSERT INTO DELIVERIES VALUES (p_order_id, p_fname, p_lname, p_house, p_street, p_city, p_due);
+		END IF;
+
+		IF p_staff_id IS NOT NULL THEN
+			INSERT INTO STAFF_ORDERS VALUES (p_staff_id, p_order_id);
+		END IF;
+
+		-- Same as SalesSummary.orderAdded.
+		MERGE INTO SUM_PRODUCT_SALES s
+			USING (SELECT l.ProductID, l.Quantity AS Units FROM TABLE(p_lines) l) d
+			ON (s.ProductID = d.ProductID)
+			WHEN MATCHED THEN UPDATE SET s.UnitsSold = s.UnitsSold + d.Units
+			WHEN NOT MATCHED THEN INSERT (ProductID, UnitsSold) VALUES (d.ProductID, d.Units);
+		IF p_staff_id IS NOT NULL THEN
+			MERGE INTO SUM_STAFF_PRODUCT_SALES s
+				USING (SELECT l.ProductID, l.Quantity AS Units FROM TABLE(p_lines) l) d
+				ON (s.StaffID = p_staff_id AND s.ProductID = d.ProductID)
+				WHEN MATCHED THEN UPDATE SET s.UnitsSold = s.UnitsSold + d.Units
+				WHEN NOT MATCHED THEN INSERT (StaffID, ProductID, UnitsSold)
+					VALUES (p_staff_id, d.ProductID, d.Units);
+		END IF;
+	END place_order;
+END order_api;
+/
@@ -0,0 +1,20 @@
+-- Recompute the sales summary tables from ORDER_PRODUCTS and STAFF_ORDERS.
+-- Run after loading orders with SQL instead of the application, or when
+-- "java Assignment summary verify" reports drift.
+
+LOCK TABLE SUM_PRODUCT_SALES, SUM_STAFF_PRODUCT_SALES IN EXCLUSIVE MODE;
+
+DELETE FROM SUM_STAFF_PRODUCT_SALES;
+DELETE FROM SUM_PRODUCT_SALES;
+
+INSERT INTO SUM_PRODUCT_SALES (ProductID, UnitsSold)
+	SELECT ProductID, SUM(ProductQuantity)
+	FROM ORDER_PRODUCTS
+	GROUP BY ProductID;
+
+INSERT INTO SUM_STAFF_PRODUCT_SALES (StaffID, ProductID, UnitsSold)
+	SELECT StaffID, ProductID, SUM(ProductQuantity)
+	FROM STAFF_ORDERS INNER JOIN ORDER_PRODUCTS USING (OrderID)
+	GROUP BY StaffID, ProductID;
+
+COMMIT;
@@ -11,10 +11,12 @@ CREATE SEQUENCE seq_inv
 	CACHE 10;
 	
 -- ORDERS(OrderID) generator
+-- Every value is the first of a block of 20 OrderIDs that the application
+-- hands out from memory (see OrderIdAllocator).
 CREATE SEQUENCE seq_ord
 	MINVALUE 0
 	START WITH 0
-	INCREMENT BY 1
+	INCREMENT BY 20
 	CACHE 10;
 
 -- STAFF(StaffID) generator
@@ -94,12 +96,62 @@ CREATE TABLE STAFF_ORDERS (
 		ON DELETE CASCADE
 );
 
+-- SUMMARY TABLES --
+-- Units sold per product and per staff and product. The application updates
+-- them in the same transaction as the orders they count (see SalesSummary);
+-- rebuildsummary.sql recomputes them from ORDER_PRODUCTS and STAFF_ORDERS.
+-- Cancelling orders can leave rows with no units sold, which the views of
+-- options 6 and 7 leave out as a rebuild would.
+
+CREATE TABLE SUM_PRODUCT_SALES (
+	ProductID INTEGER PRIMARY KEY,
+	UnitsSold INTEGER NOT NULL,
+	FOREIGN KEY (ProductID) REFERENCES INVENTORY(ProductID)
+		ON DELETE CASCADE
+);
+
+CREATE TABLE SUM_STAFF_PRODUCT_SALES (
+	StaffID INTEGER,
+	ProductID INTEGER,
+	UnitsSold INTEGER NOT NULL,
+	PRIMARY KEY (StaffID, ProductID),
+	FOREIGN KEY (StaffID) REFERENCES STAFF(StaffID)
+		ON DELETE CASCADE,
+	FOREIGN KEY (ProductID) REFERENCES INVENTORY(ProductID)
+		ON DELETE CASCADE
+);
+
+-- INDEXES --
+-- The primary keys index ORDER_PRODUCTS and STAFF_ORDERS by their first
+-- column only. Without these indexes, deleting an order (option 5) scans
+-- STAFF_ORDERS for the rows to cascade to and locks it whole, and the reports
+-- scan every order to find those of a product, a member of staff or a year.
+-- addindexes.sql adds them to a database created before them.
+
+CREATE INDEX ORDER_PRODUCTS_PRODUCT_IX ON ORDER_PRODUCTS (ProductID);
+
+CREATE INDEX STAFF_ORDERS_ORDER_IX ON STAFF_ORDERS (OrderID);
+
+CREATE INDEX SUM_STAFF_SALES_PRODUCT_IX ON SUM_STAFF_PRODUCT_SALES (ProductID);
+
+CREATE INDEX COLLECTIONS_DATE_IX ON COLLECTIONS (CollectionDate);
+
+-- Only the uncompleted collections have a key in this index, since Oracle
+-- leaves out entries whose key is null, so option 5 finds them without
+-- reading the completed orders.
+CREATE INDEX ORDERS_PENDING_COLLECTION_IX ON ORDERS (CASE WHEN OrderType = 'Collection' AND OrderCompleted = 0 THEN 1 END);
+
+-- Option 8 selects the orders of a year by a range of OrderPlaced, the views
+-- of v_sub_opt8 by EXTRACT(YEAR FROM OrderPlaced).
+CREATE INDEX ORDERS_PLACED_IX ON ORDERS (OrderPlaced);
+
+CREATE INDEX ORDERS_YEAR_IX ON ORDERS (EXTRACT(YEAR FROM OrderPlaced));
+
 -- OPTION 4
 
 CREATE VIEW VIEW_PRODUCT_SALES AS
-	SELECT ProductID, SUM(ProductQuantity) ProductTimesBought
-	FROM ORDER_PRODUCTS
-	GROUP BY ProductID;
+	SELECT ProductID, UnitsSold AS ProductTimesBought
+	FROM SUM_PRODUCT_SALES;
 
 CREATE VIEW VIEW_REVENUE_PER_PRODUCT AS
 	SELECT ProductID, ProductTimesBought * ProductPrice AS ProductRevenue
@@ -117,9 +169,10 @@ CREATE VIEW VIEW_ORDER_TOTALS AS
 	FROM ORDER_PRODUCTS INNER JOIN INVENTORY USING (ProductID)
 	GROUP BY OrderID;
 
-CREATE VIEW VIEW_ORDER_TOTAL_PER_STAFF AS	
-	SELECT StaffID, SUM(OrderTotal) AS StaffSales
-	FROM STAFF_ORDERS INNER JOIN VIEW_ORDER_TOTALS USING (OrderID)
+CREATE VIEW VIEW_ORDER_TOTAL_PER_STAFF AS
+	SELECT StaffID, SUM(UnitsSold * ProductPrice) AS StaffSales
+	FROM SUM_STAFF_PRODUCT_SALES INNER JOIN INVENTORY USING (ProductID)
+	WHERE UnitsSold > 0
 	GROUP BY StaffID;
 
 CREATE VIEW VIEW_STAFF_SALES AS
@@ -140,9 +193,9 @@ CREATE VIEW VIEW_BEST_SELLING AS
 	WHERE ProductRevenue >= 20000;
 
 CREATE VIEW VIEW_PRODUCT_COUNT_PER_STAFF AS
-	SELECT StaffID, ProductID, SUM(ProductQuantity) AS ProductSoldCount
-	FROM STAFF_ORDERS INNER JOIN ORDER_PRODUCTS USING (OrderID)
-	GROUP BY StaffID, ProductID;
+	SELECT StaffID, ProductID, UnitsSold AS ProductSoldCount
+	FROM SUM_STAFF_PRODUCT_SALES
+	WHERE UnitsSold > 0;
 
 CREATE VIEW VIEW_BEST_SELLING_SELLERS AS
 	SELECT FName, LName, StaffID, ProductID, NVL(ProductSoldCount, 0) AS ProductSoldCount
@@ -242,10 +295,17 @@ CREATE VIEW v_promotion_year_per_staff AS
 			)
 	);
 
+-- Reference definition of option 8. The program answers option 8 with a
+-- single query over the orders of the year (Assignment.op8_sql);
+-- "java Assignment verify8 first-year [last-year]" compares the two.
 CREATE VIEW v_sub_opt8 AS
 	SELECT Fname, Lname, OrderYear
 	FROM
 		v_promotion_year_per_staff
 		INNER JOIN
 		STAFF
-		USING (StaffID);
\ No newline at end of file
+		USING (StaffID);
+
+-- ORDER PLACEMENT
+-- The package order_api, which places an order in one call.
+START placeorder;